@@ -0,0 +1,37 @@
+package com.swrobotics.messenger.client;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycles {@link MessageBuilder}s returned by {@link MessengerClient#preparePooled}. Each thread
+ * has its own free list, so obtaining and releasing a builder needs no locking and, once a thread
+ * has sent a few messages, no allocation.
+ */
+final class BuilderPool {
+    // Bounds on what is kept, so that a burst of nested builders or one very
+    // large message doesn't hold onto memory forever
+    private static final int MAX_FREE_PER_THREAD = 8;
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+    private final MessengerClient client;
+    private final ThreadLocal<ArrayDeque<MessageBuilder>> free;
+
+    BuilderPool(MessengerClient client) {
+        this.client = client;
+        free = ThreadLocal.withInitial(ArrayDeque::new);
+    }
+
+    MessageBuilder obtain(String type) {
+        MessageBuilder builder = free.get().pollFirst();
+        if (builder == null) builder = new MessageBuilder(client, this);
+
+        builder.reset(type);
+        return builder;
+    }
+
+    void release(MessageBuilder builder) {
+        ArrayDeque<MessageBuilder> list = free.get();
+        if (list.size() < MAX_FREE_PER_THREAD && builder.getCapacity() <= MAX_POOLED_CAPACITY)
+            list.addFirst(builder);
+    }
+}
@@ -0,0 +1,144 @@
+package com.swrobotics.messenger.client;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reassembles large messages the server has split into {@code _Chunk} messages. Buffers grow as
+ * chunks arrive rather than being allocated at the declared size up front. Messages of streamed
+ * types are not reassembled at all, and their chunks are only checked so that they can be passed
+ * on to the stream handler one at a time.
+ *
+ * @see MessengerClient
+ */
+final class ChunkAssembler {
+    static final int FLAG_FIRST = 1;
+    static final int FLAG_LAST = 2;
+
+    // Buffers start at this size and double as needed, up to the declared
+    // size of the message
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /** Returned by {@link #accept} for chunks of streamed messages. */
+    static final Completed STREAMED = new Completed(null, null);
+
+    /** A fully reassembled message. */
+    static final class Completed {
+        final String type;
+        final byte[] data;
+
+        Completed(String type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    private static final class Partial {
+        final String type;
+        final int size;
+        final boolean streamed;
+        byte[] data;
+        int position;
+
+        Partial(String type, int size, boolean streamed) {
+            this.type = type;
+            this.size = size;
+            this.streamed = streamed;
+            data = streamed ? null : new byte[Math.min(size, INITIAL_CAPACITY)];
+            position = 0;
+        }
+    }
+
+    private final Set<String> streamedTypes;
+    private final Map<Integer, Partial> partials = new HashMap<>();
+    private volatile int maxMessageSize;
+
+    /**
+     * @param streamedTypes types whose chunks are passed on instead of reassembled
+     * @param maxMessageSize largest message that can be reassembled
+     */
+    ChunkAssembler(Set<String> streamedTypes, int maxMessageSize) {
+        this.streamedTypes = streamedTypes;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Adds a received chunk.
+     *
+     * @param chunk data of the {@code _Chunk} message
+     * @return the complete message if this was the last chunk, {@link #STREAMED} if the chunk is
+     *     part of a streamed message, otherwise {@code null}
+     * @throws IOException if the chunk is malformed or the message is too large
+     */
+    Completed accept(ByteBuffer chunk) throws IOException {
+        try {
+            return acceptChunk(chunk);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated chunk", e);
+        }
+    }
+
+    private Completed acceptChunk(ByteBuffer in) throws IOException {
+        int streamId = in.getInt();
+        int flags = in.get();
+
+        Partial partial;
+        if ((flags & FLAG_FIRST) != 0) {
+            String type = ModifiedUtf8.read(in);
+            int size = in.getInt();
+            if (size < 0) throw new IOException("Invalid chunked message size " + size);
+
+            // Streamed messages are never held in memory, so they can be any size
+            boolean streamed = streamedTypes.contains(type);
+            if (!streamed && size > maxMessageSize)
+                throw new IOException(
+                        "Chunked message of "
+                                + size
+                                + " bytes exceeds maximum size of "
+                                + maxMessageSize);
+
+            partial = new Partial(type, size, streamed);
+            partials.put(streamId, partial);
+        } else {
+            partial = partials.get(streamId);
+            if (partial == null) throw new IOException("Chunk for unknown stream " + streamId);
+        }
+
+        int len = in.remaining();
+        if (partial.position + len > partial.size)
+            throw new IOException("Chunked message exceeds declared size");
+
+        if (!partial.streamed) {
+            if (partial.position + len > partial.data.length) {
+                int capacity = Math.max(partial.position + len, partial.data.length * 2);
+                partial.data = Arrays.copyOf(partial.data, Math.min(capacity, partial.size));
+            }
+            in.get(partial.data, partial.position, len);
+        }
+        partial.position += len;
+
+        boolean last = (flags & FLAG_LAST) != 0;
+        if (last) {
+            partials.remove(streamId);
+            if (partial.position != partial.size)
+                throw new IOException("Chunked message shorter than declared size");
+        }
+
+        if (partial.streamed) return STREAMED;
+        return last ? new Completed(partial.type, partial.data) : null;
+    }
+
+    /** Discards all partially received messages, for example after reconnecting. */
+    void reset() {
+        partials.clear();
+    }
+}
@@ -0,0 +1,105 @@
+package com.swrobotics.messenger.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the messages a client handles by type, and records how long each takes from being
+ * received to its handlers returning. Only accessed by the thread calling {@link
+ * MessengerClient#readMessages}, and doesn't allocate once a type has been seen.
+ */
+final class ClientStats {
+    private static final String SEND_QUEUE_NAME = "Send queue";
+
+    private static final class Counter {
+        long messages;
+        long bytes;
+    }
+
+    private final Map<String, Counter> counters;
+    private final LatencyHistogram handleLatency;
+    private long lastSnapshotTime;
+
+    ClientStats() {
+        counters = new HashMap<>();
+        handleLatency = new LatencyHistogram();
+        lastSnapshotTime = System.nanoTime();
+    }
+
+    void recordMessage(String type, int dataSize, long latency) {
+        Counter counter = counters.get(type);
+        if (counter == null) {
+            counter = new Counter();
+            counters.put(type, counter);
+        }
+
+        counter.messages++;
+        counter.bytes += dataSize;
+        handleLatency.record(latency);
+    }
+
+    long getLastSnapshotTime() {
+        return lastSnapshotTime;
+    }
+
+    /**
+     * Encodes the statistics recorded since the previous snapshot as a {@code Messenger:Stats}
+     * message, and resets them.
+     *
+     * @param source name of the client
+     * @param queuedBytes bytes waiting in the send queue
+     * @param dropped messages dropped because the send queue was full
+     * @return message data
+     */
+    byte[] takeSnapshot(String source, long queuedBytes, long dropped) {
+        long now = System.nanoTime();
+        double interval = (now - lastSnapshotTime) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastSnapshotTime = now;
+
+        try {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(b);
+
+            d.writeUTF(source);
+            d.writeDouble(interval);
+
+            int typeCount = 0;
+            for (Counter counter : counters.values()) {
+                if (counter.messages > 0) typeCount++;
+            }
+            d.writeInt(typeCount);
+            for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+                Counter counter = entry.getValue();
+                if (counter.messages == 0) continue;
+
+                d.writeUTF(entry.getKey());
+                d.writeLong(counter.messages);
+                d.writeLong(counter.bytes);
+                counter.messages = 0;
+                counter.bytes = 0;
+            }
+
+            d.writeInt(1);
+            d.writeUTF(SEND_QUEUE_NAME);
+            d.writeLong(queuedBytes);
+            d.writeLong(dropped);
+
+            handleLatency.takeSnapshot();
+            d.writeLong(handleLatency.getCount());
+            d.writeLong(handleLatency.getMean());
+            d.writeLong(handleLatency.getPercentile(0.5));
+            d.writeLong(handleLatency.getPercentile(0.9));
+            d.writeLong(handleLatency.getPercentile(0.99));
+            d.writeLong(handleLatency.getMax());
+
+            return b.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new RuntimeException(e);
+        }
+    }
+}
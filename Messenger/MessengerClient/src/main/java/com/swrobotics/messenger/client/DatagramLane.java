@@ -0,0 +1,278 @@
+package com.swrobotics.messenger.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends and receives messages of lossy types as UDP datagrams, so that a lost packet only loses
+ * that message instead of delaying everything behind it on the TCP connection. The server hands
+ * out a token over TCP that identifies this client's datagrams. Hellos are exchanged every
+ * heartbeat, and messages are only sent as datagrams while the server's replies keep arriving.
+ *
+ * <p>Received datagrams are conflated: each call to {@link #receive} handles only the newest
+ * datagram of each type, and anything not newer than the last one handled is dropped.
+ *
+ * <p>The server's end is {@code com.swrobotics.messenger.server.DatagramLane}, which documents the
+ * datagram format both sides must agree on.
+ */
+final class DatagramLane {
+    static final int FEATURE_DATAGRAM = 8;
+    static final String TOKEN = "_Datagram";
+
+    // Messages larger than this are sent over TCP, so datagrams are never
+    // fragmented
+    private static final int MAX_DATAGRAM_SIZE = 1400;
+
+    // How long after the server's last hello to keep sending datagrams
+    private static final long HELLO_TIMEOUT = TimeUnit.SECONDS.toNanos(3);
+
+    /** Handles a message received as a datagram. */
+    interface Handler {
+        void handle(String type, byte[] data, int length, long receiveTime);
+    }
+
+    /** Newest datagram received of one type. */
+    private static final class Latest {
+        final String type;
+        int sequence;
+        byte[] data = new byte[64];
+        int length;
+        long receiveTime;
+        boolean pending;
+
+        Latest(String type) {
+            this.type = type;
+        }
+    }
+
+    private final Set<String> lossyTypes;
+    private final Map<String, AtomicInteger> sentSequences;
+
+    // Guarded by sendLock
+    private final Object sendLock;
+    private final ByteBuffer sendBuf;
+
+    private volatile DatagramChannel channel;
+    private volatile long token;
+    private volatile long lastHelloTime;
+    private volatile boolean helloReceived;
+
+    // Only accessed by the thread calling receive()
+    private final ByteBuffer receiveBuf;
+    private final Map<String, Latest> latest;
+    private final List<Latest> latestList;
+    private long receiveToken;
+
+    DatagramLane() {
+        lossyTypes = ConcurrentHashMap.newKeySet();
+        sentSequences = new ConcurrentHashMap<>();
+        sendLock = new Object();
+        sendBuf = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+        receiveBuf = ByteBuffer.allocate(65536);
+        latest = new HashMap<>();
+        latestList = new ArrayList<>();
+    }
+
+    Set<String> getLossyTypes() {
+        return lossyTypes;
+    }
+
+    /**
+     * Starts exchanging datagrams with the server for a new connection.
+     *
+     * @param server address of the server
+     * @param token token the server assigned to this connection
+     * @throws IOException if the socket can't be opened
+     */
+    void open(InetSocketAddress server, long token) throws IOException {
+        close();
+
+        DatagramChannel ch = DatagramChannel.open();
+        ch.configureBlocking(false);
+        ch.connect(server);
+
+        sentSequences.clear();
+        this.token = token;
+        channel = ch;
+        sendHello();
+    }
+
+    /** Stops using datagrams until the next call to {@link #open}. */
+    void close() {
+        DatagramChannel ch = channel;
+        channel = null;
+        helloReceived = false;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Whether the server's hellos are currently getting through
+    private boolean isUp() {
+        return helloReceived && System.nanoTime() - lastHelloTime < HELLO_TIMEOUT;
+    }
+
+    /**
+     * Sends a hello, so that the server knows where to send datagrams and whether they arrive.
+     * Called every heartbeat.
+     */
+    void sendHello() {
+        synchronized (sendLock) {
+            sendBuf.clear();
+            sendBuf.putLong(token);
+            sendBuf.putShort((short) 0);
+            sendBuf.putInt(0);
+            sendBuf.put((byte) (isUp() ? 1 : 0));
+            write();
+        }
+    }
+
+    /**
+     * Sends a message as a datagram if its type is lossy and datagrams currently get through.
+     *
+     * @param type type of the message
+     * @param data array containing the data
+     * @param offset offset of the data in the array
+     * @param length length of the data in bytes
+     * @return whether the message was sent. If not, it should be sent over TCP instead.
+     */
+    boolean send(String type, byte[] data, int offset, int length) {
+        if (channel == null || !lossyTypes.contains(type) || !isUp()) return false;
+        if (8 + 2 + ModifiedUtf8.encodedLength(type) + 4 + length > MAX_DATAGRAM_SIZE)
+            return false;
+
+        AtomicInteger sequence = sentSequences.get(type);
+        if (sequence == null) {
+            sequence = new AtomicInteger();
+            AtomicInteger existing = sentSequences.putIfAbsent(type, sequence);
+            if (existing != null) sequence = existing;
+        }
+
+        synchronized (sendLock) {
+            sendBuf.clear();
+            sendBuf.putLong(token);
+            try {
+                ModifiedUtf8.write(type, sendBuf);
+            } catch (IOException e) {
+                return false;
+            }
+            sendBuf.putInt(sequence.getAndIncrement());
+            sendBuf.put(data, offset, length);
+            return write();
+        }
+    }
+
+    // Must hold sendLock
+    private boolean write() {
+        DatagramChannel ch = channel;
+        if (ch == null) return false;
+
+        sendBuf.flip();
+        try {
+            return ch.write(sendBuf) > 0;
+        } catch (IOException e) {
+            // Datagrams are allowed to be lost, and an unreachable port shows
+            // up here. Falling back to TCP until the next hello is answered.
+            helloReceived = false;
+            return false;
+        }
+    }
+
+    /**
+     * Reads every datagram that has arrived, then handles the newest of each type.
+     *
+     * @param handler handler for received messages
+     */
+    void receive(Handler handler) {
+        DatagramChannel ch = channel;
+        if (ch == null) return;
+
+        // Sequence numbers restart with each connection
+        long currentToken = token;
+        if (receiveToken != currentToken) {
+            latest.clear();
+            latestList.clear();
+            receiveToken = currentToken;
+        }
+
+        boolean any = false;
+        while (true) {
+            receiveBuf.clear();
+            try {
+                if (ch.read(receiveBuf) <= 0) break;
+            } catch (IOException e) {
+                // Nothing to read, or an error reported for an earlier send
+                break;
+            }
+            receiveBuf.flip();
+
+            try {
+                any |= accept(receiveBuf, currentToken);
+            } catch (BufferUnderflowException | IOException e) {
+                // Malformed datagrams are dropped like lost ones
+            }
+        }
+        if (!any) return;
+
+        for (Latest l : latestList) {
+            if (!l.pending) continue;
+            l.pending = false;
+            handler.handle(l.type, l.data, l.length, l.receiveTime);
+        }
+    }
+
+    // Returns whether the datagram was a message that should be handled
+    private boolean accept(ByteBuffer buf, long currentToken) throws IOException {
+        long receiveTime = System.nanoTime();
+        if (buf.getLong() != currentToken) return false;
+
+        String type = ModifiedUtf8.read(buf);
+        int sequence = buf.getInt();
+
+        if (type.isEmpty()) {
+            lastHelloTime = receiveTime;
+            if (!helloReceived) {
+                helloReceived = true;
+
+                // Tell the server right away that its datagrams get through
+                sendHello();
+            }
+            return false;
+        }
+
+        Latest l = latest.get(type);
+        if (l == null) {
+            l = new Latest(type);
+            latest.put(type, l);
+            latestList.add(l);
+        } else if (sequence - l.sequence <= 0) {
+            // Not newer than the last one received. Comparing the difference
+            // handles the sequence number wrapping around.
+            return false;
+        }
+
+        int length = buf.remaining();
+        if (l.data.length < length) l.data = new byte[Math.max(length, l.data.length * 2)];
+        buf.get(l.data, 0, length);
+        l.length = length;
+        l.sequence = sequence;
+        l.receiveTime = receiveTime;
+        l.pending = true;
+        return true;
+    }
+}
@@ -0,0 +1,87 @@
+package com.swrobotics.messenger.client;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the {@link MessageHandler}s for incoming messages. Exact types are looked up in a hash map,
+ * and wildcard patterns are stored in a trie keyed by the characters of their prefix, so the cost
+ * of dispatching a message depends on the length of its type and the number of matching handlers,
+ * not the total number of handlers.
+ *
+ * <p>Dispatching does not lock and may run concurrently with adding handlers.
+ */
+final class HandlerIndex {
+    private static final MessageHandler[] NONE = new MessageHandler[0];
+
+    private static final class TrieNode {
+        final Map<Character, TrieNode> children = new ConcurrentHashMap<>();
+        volatile MessageHandler[] handlers = NONE;
+    }
+
+    private final Map<String, MessageHandler[]> exact;
+    private final TrieNode wildcardRoot;
+
+    HandlerIndex() {
+        exact = new ConcurrentHashMap<>();
+        wildcardRoot = new TrieNode();
+    }
+
+    /**
+     * Adds a handler for a pattern. If the pattern ends in '*', it matches all types starting with
+     * the preceding characters. Otherwise it matches the type exactly.
+     *
+     * @param pattern pattern to handle
+     * @param handler handler to invoke for matching messages
+     */
+    synchronized void add(String pattern, MessageHandler handler) {
+        if (pattern.endsWith("*")) {
+            TrieNode node = wildcardRoot;
+            for (int i = 0; i < pattern.length() - 1; i++) {
+                node = node.children.computeIfAbsent(pattern.charAt(i), (c) -> new TrieNode());
+            }
+            node.handlers = append(node.handlers, handler);
+        } else {
+            exact.put(pattern, append(exact.getOrDefault(pattern, NONE), handler));
+        }
+    }
+
+    /**
+     * Invokes every handler matching a message type. The reader is rewound before each handler,
+     * so each one sees the whole message.
+     *
+     * @param type type of the message
+     * @param reader reader over the message data
+     */
+    void dispatch(String type, MessageReader reader) {
+        MessageHandler[] handlers = exact.get(type);
+        if (handlers != null) invokeAll(handlers, type, reader);
+
+        // Every trie node along the type's characters is a matching prefix
+        TrieNode node = wildcardRoot;
+        for (int i = 0; node != null; i++) {
+            invokeAll(node.handlers, type, reader);
+            if (i == type.length()) break;
+            node = node.children.get(type.charAt(i));
+        }
+    }
+
+    private static void invokeAll(MessageHandler[] handlers, String type, MessageReader reader) {
+        for (MessageHandler handler : handlers) {
+            reader.rewind();
+            try {
+                handler.handle(type, reader);
+            } catch (Throwable t) {
+                System.err.println("Error in message handler " + t.toString() + ":");
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private static MessageHandler[] append(MessageHandler[] array, MessageHandler handler) {
+        MessageHandler[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = handler;
+        return result;
+    }
+}
@@ -1,30 +1,150 @@
 package com.swrobotics.messenger.client;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Allows easy storage of data into a message.
+ * Allows easy storage of data into a message. Data is written directly into a growable buffer,
+ * which is copied straight into the client's send queue when the message is sent.
+ *
+ * <p>Builders obtained from {@link MessengerClient#preparePooled} are recycled once sent, so
+ * sending a message from them does not allocate once the pool is warmed up. A pooled builder must
+ * not be used after calling {@link #send}.
  *
  * @author rmheuer
  */
 public final class MessageBuilder {
+    private static final int INITIAL_CAPACITY = 64;
+
     private final MessengerClient client;
-    private final String type;
-    private final ByteArrayOutputStream b;
-    private final DataOutputStream out;
+    private final BuilderPool pool;
+    private String type;
+    private ByteBuffer buf;
+    private boolean released;
+
+    // ID of the request this replies to, or 0 if it is a normal message
+    private long replyTo;
 
     public MessageBuilder(MessengerClient client, String type) {
+        this(client, (BuilderPool) null);
+        this.type = type;
+    }
+
+    MessageBuilder(MessengerClient client, BuilderPool pool) {
         this.client = client;
+        this.pool = pool;
+        buf = ByteBuffer.allocate(INITIAL_CAPACITY);
+        released = pool != null;
+    }
+
+    // Prepares a pooled builder for a new message
+    void reset(String type) {
         this.type = type;
-        b = new ByteArrayOutputStream();
-        out = new DataOutputStream(b);
+        buf.clear();
+        released = false;
+        replyTo = 0;
+    }
+
+    void setReplyTo(long replyTo) {
+        this.replyTo = replyTo;
     }
 
-    /** Sends the message with the type and data. */
+    /**
+     * Sends the message with the type and data. If this builder is pooled, it is returned to the
+     * pool and must not be used afterwards.
+     */
     public void send() {
-        client.sendMessage(type, b.toByteArray());
+        checkNotReleased();
+        if (replyTo != 0) {
+            client.sendMessage(RequestTracker.REPLY, encodeReply());
+        } else {
+            client.sendMessage(type, buf.array(), 0, buf.position());
+        }
+
+        if (pool != null) {
+            released = true;
+            pool.release(this);
+        }
+    }
+
+    /**
+     * Queues the message to be sent by the client's writer thread, and returns without waiting for
+     * it to be written. If this builder is pooled, it is returned to the pool and must not be used
+     * afterwards.
+     *
+     * @return future completed once the message has been written to the socket
+     */
+    public CompletableFuture<Void> sendAsync() {
+        checkNotReleased();
+        CompletableFuture<Void> future;
+        if (replyTo != 0) {
+            byte[] reply = encodeReply();
+            future = client.sendMessageAsync(RequestTracker.REPLY, reply, 0, reply.length);
+        } else {
+            future = client.sendMessageAsync(type, buf.array(), 0, buf.position());
+        }
+
+        if (pool != null) {
+            released = true;
+            pool.release(this);
+        }
+        return future;
+    }
+
+    /**
+     * Sends the message as a request, and waits for a reply. See {@link MessengerClient#request}.
+     * If this builder is pooled, it is returned to the pool and must not be used afterwards.
+     *
+     * @return future completed with the reply
+     */
+    public CompletableFuture<MessageReader> request() {
+        return request(MessengerClient.DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Sends the message as a request, and waits for a reply. See {@link MessengerClient#request}.
+     * If this builder is pooled, it is returned to the pool and must not be used afterwards.
+     *
+     * @param timeout time to wait for a reply in milliseconds
+     * @return future completed with the reply
+     */
+    public CompletableFuture<MessageReader> request(long timeout) {
+        checkNotReleased();
+        CompletableFuture<MessageReader> future =
+                client.request(type, buf.array(), 0, buf.position(), timeout);
+
+        if (pool != null) {
+            released = true;
+            pool.release(this);
+        }
+        return future;
+    }
+
+    private byte[] encodeReply() {
+        return MessengerClient.encodeRequest(replyTo, type, buf.array(), 0, buf.position());
+    }
+
+    int getCapacity() {
+        return buf.capacity();
+    }
+
+    private void checkNotReleased() {
+        if (released) throw new IllegalStateException("Pooled builder used after send()");
+    }
+
+    // Makes sure there is room to add the given number of bytes
+    private ByteBuffer ensureSpace(int bytes) {
+        checkNotReleased();
+        if (buf.remaining() < bytes) {
+            int required = buf.position() + bytes;
+            ByteBuffer newBuf = ByteBuffer.allocate(Math.max(required, buf.capacity() * 2));
+            buf.flip();
+            newBuf.put(buf);
+            buf = newBuf;
+        }
+        return buf;
     }
 
     /**
@@ -34,11 +154,7 @@ public final class MessageBuilder {
      * @return this
      */
     public MessageBuilder addBoolean(boolean b) {
-        try {
-            out.writeBoolean(b);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write boolean", e);
-        }
+        ensureSpace(1).put((byte) (b ? 1 : 0));
         return this;
     }
 
@@ -50,7 +166,7 @@ public final class MessageBuilder {
      */
     public MessageBuilder addString(String s) {
         try {
-            out.writeUTF(s);
+            ModifiedUtf8.write(s, ensureSpace(2 + ModifiedUtf8.encodedLength(s)));
         } catch (IOException e) {
             throw new RuntimeException("Failed to write String", e);
         }
@@ -64,11 +180,7 @@ public final class MessageBuilder {
      * @return this
      */
     public MessageBuilder addChar(char c) {
-        try {
-            out.writeChar(c);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write char", e);
-        }
+        ensureSpace(2).putChar(c);
         return this;
     }
 
@@ -79,11 +191,7 @@ public final class MessageBuilder {
      * @return this
      */
     public MessageBuilder addByte(byte b) {
-        try {
-            out.writeByte(b);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write byte", e);
-        }
+        ensureSpace(1).put(b);
         return this;
     }
 
@@ -94,11 +202,7 @@ public final class MessageBuilder {
      * @return this
      */
     public MessageBuilder addShort(short s) {
-        try {
-            out.writeShort(s);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write short", e);
-        }
+        ensureSpace(2).putShort(s);
         return this;
     }
 
@@ -109,11 +213,7 @@ public final class MessageBuilder {
      * @return this
      */
     public MessageBuilder addInt(int i) {
-        try {
-            out.writeInt(i);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write int", e);
-        }
+        ensureSpace(4).putInt(i);
         return this;
     }
 
@@ -124,11 +224,7 @@ public final class MessageBuilder {
      * @return this
      */
     public MessageBuilder addLong(long l) {
-        try {
-            out.writeLong(l);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write long", e);
-        }
+        ensureSpace(8).putLong(l);
         return this;
     }
 
@@ -139,11 +235,7 @@ public final class MessageBuilder {
      * @return this
      */
     public MessageBuilder addFloat(float f) {
-        try {
-            out.writeFloat(f);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write float", e);
-        }
+        ensureSpace(4).putFloat(f);
         return this;
     }
 
@@ -154,11 +246,7 @@ public final class MessageBuilder {
      * @return this
      */
     public MessageBuilder addDouble(double d) {
-        try {
-            out.writeDouble(d);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write double", e);
-        }
+        ensureSpace(8).putDouble(d);
         return this;
     }
 
@@ -169,15 +257,12 @@ public final class MessageBuilder {
      * @return self
      */
     public MessageBuilder addRaw(byte[] b) {
-        try {
-            out.write(b);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to write raw data", e);
-        }
+        ensureSpace(b.length).put(b);
         return this;
     }
 
     public byte[] getData() {
-        return b.toByteArray();
+        checkNotReleased();
+        return Arrays.copyOf(buf.array(), buf.position());
     }
 }
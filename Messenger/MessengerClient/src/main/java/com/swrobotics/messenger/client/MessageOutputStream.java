@@ -0,0 +1,123 @@
+package com.swrobotics.messenger.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the data of one large message, sending each chunk as soon as it is full instead of
+ * holding the whole message in memory. If the send queue is full, writing waits until there is
+ * room. If the server can't receive chunks, or the message fits in one chunk, the data is buffered
+ * and sent as one message on {@link #close}.
+ *
+ * @see MessengerClient#openStream
+ */
+final class MessageOutputStream extends OutputStream {
+    private static final long QUEUE_FULL_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final MessengerClient client;
+    private final SendQueue queue;
+    private final String type;
+    private final int size;
+    private final boolean chunked;
+    private final int generation;
+    private final int streamId;
+
+    private final byte[] buf;
+    private int buffered;
+    private int written;
+    private boolean closed;
+
+    /**
+     * @param client client to send with
+     * @param queue client's send queue
+     * @param type type of the message
+     * @param size total size of the message data
+     * @param chunkSize size of each chunk, or 0 to send the message whole
+     */
+    MessageOutputStream(
+            MessengerClient client, SendQueue queue, String type, int size, int chunkSize) {
+        this.client = client;
+        this.queue = queue;
+        this.type = type;
+        this.size = size;
+
+        chunked = chunkSize > 0 && size > chunkSize;
+        buf = new byte[chunked ? chunkSize : size];
+        generation = queue.getGeneration();
+        streamId = chunked ? queue.newStreamId() : 0;
+        buffered = 0;
+        written = 0;
+        closed = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream is closed");
+        if (written + buffered + len > size)
+            throw new IOException("Message is larger than its declared size of " + size);
+
+        while (len > 0) {
+            int n = Math.min(len, buf.length - buffered);
+            System.arraycopy(b, off, buf, buffered, n);
+            buffered += n;
+            off += n;
+            len -= n;
+
+            if (chunked && buffered == buf.length) sendChunk();
+        }
+    }
+
+    /**
+     * Sends the rest of the message. If fewer bytes were written than the declared size, the rest
+     * is filled with zeros so that the receiver isn't left waiting for it, and an exception is
+     * thrown.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        int missing = size - written - buffered;
+        if (!chunked) {
+            client.sendMessage(type, buf, 0, size);
+        } else {
+            while (written + buffered < size) {
+                int n = Math.min(size - written - buffered, buf.length - buffered);
+                Arrays.fill(buf, buffered, buffered + n, (byte) 0);
+                buffered += n;
+                if (buffered == buf.length) sendChunk();
+            }
+            if (buffered > 0) sendChunk();
+        }
+
+        if (missing > 0)
+            throw new IOException(
+                    "Stream closed " + missing + " bytes short of its declared size " + size);
+    }
+
+    private void sendChunk() throws IOException {
+        boolean first = written == 0;
+        boolean last = written + buffered == size;
+        while (!queue.addStreamChunk(
+                generation, streamId, type, size, first, last, buf, 0, buffered)) {
+            if (!client.isConnected()) throw new IOException("Not connected");
+
+            // Wait for the queue to drain
+            client.sendQueued();
+            LockSupport.parkNanos(QUEUE_FULL_WAIT);
+            if (Thread.interrupted()) throw new IOException("Interrupted while streaming");
+        }
+        client.sendQueued();
+
+        written += buffered;
+        buffered = 0;
+    }
+}
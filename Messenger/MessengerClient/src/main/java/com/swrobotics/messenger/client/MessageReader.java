@@ -1,17 +1,21 @@
 package com.swrobotics.messenger.client;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Allows easy access to data stored within a message.
  *
+ * <p>Readers passed to a {@link MessageHandler} are views over the client's receive buffer, which
+ * is reused for the next message. They are only valid until the handler returns, so any data that
+ * is needed later must be read out before then.
+ *
  * @author rmheuer
  */
 public final class MessageReader {
-    private final DataInputStream in;
-    private boolean closed;
+    private ByteBuffer buf;
+    private int start;
 
     /**
      * Creates a new MessageReader that reads from a raw byte array.
@@ -19,8 +23,32 @@ public final class MessageReader {
      * @param data raw data
      */
     public MessageReader(byte[] data) {
-        in = new DataInputStream(new ByteArrayInputStream(data));
-        closed = false;
+        set(data, 0, data.length);
+    }
+
+    // Creates a reader with no data, to be pointed at messages with set()
+    MessageReader() {}
+
+    /**
+     * Points this reader at a region of an array, without copying it.
+     *
+     * @param data array containing the message data
+     * @param offset offset of the data within the array
+     * @param length length of the data in bytes
+     */
+    void set(byte[] data, int offset, int length) {
+        // Only wrap again if the array changed, so reuse doesn't allocate
+        if (buf == null || buf.array() != data) buf = ByteBuffer.wrap(data);
+
+        buf.clear();
+        buf.limit(offset + length);
+        buf.position(offset);
+        start = offset;
+    }
+
+    // Moves back to the start of the data, so another handler can read it
+    void rewind() {
+        buf.position(start);
     }
 
     /**
@@ -30,8 +58,8 @@ public final class MessageReader {
      */
     public boolean readBoolean() {
         try {
-            return in.readBoolean();
-        } catch (IOException e) {
+            return buf.get() != 0;
+        } catch (BufferUnderflowException e) {
             throw new RuntimeException("Failed to read boolean", e);
         }
     }
@@ -43,7 +71,7 @@ public final class MessageReader {
      */
     public String readString() {
         try {
-            return in.readUTF();
+            return ModifiedUtf8.read(buf);
         } catch (IOException e) {
             throw new RuntimeException("Failed to read String", e);
         }
@@ -56,8 +84,8 @@ public final class MessageReader {
      */
     public char readChar() {
         try {
-            return in.readChar();
-        } catch (IOException e) {
+            return buf.getChar();
+        } catch (BufferUnderflowException e) {
             throw new RuntimeException("Failed to read char", e);
         }
     }
@@ -69,8 +97,8 @@ public final class MessageReader {
      */
     public byte readByte() {
         try {
-            return in.readByte();
-        } catch (IOException e) {
+            return buf.get();
+        } catch (BufferUnderflowException e) {
             throw new RuntimeException("Failed to read byte", e);
         }
     }
@@ -82,8 +110,8 @@ public final class MessageReader {
      */
     public short readShort() {
         try {
-            return in.readShort();
-        } catch (IOException e) {
+            return buf.getShort();
+        } catch (BufferUnderflowException e) {
             throw new RuntimeException("Failed to read short", e);
         }
     }
@@ -95,8 +123,8 @@ public final class MessageReader {
      */
     public int readInt() {
         try {
-            return in.readInt();
-        } catch (IOException e) {
+            return buf.getInt();
+        } catch (BufferUnderflowException e) {
             throw new RuntimeException("Failed to read int", e);
         }
     }
@@ -108,8 +136,8 @@ public final class MessageReader {
      */
     public long readLong() {
         try {
-            return in.readLong();
-        } catch (IOException e) {
+            return buf.getLong();
+        } catch (BufferUnderflowException e) {
             throw new RuntimeException("Failed to read long", e);
         }
     }
@@ -121,8 +149,8 @@ public final class MessageReader {
      */
     public float readFloat() {
         try {
-            return in.readFloat();
-        } catch (IOException e) {
+            return buf.getFloat();
+        } catch (BufferUnderflowException e) {
             throw new RuntimeException("Failed to read float", e);
         }
     }
@@ -134,8 +162,8 @@ public final class MessageReader {
      */
     public double readDouble() {
         try {
-            return in.readDouble();
-        } catch (IOException e) {
+            return buf.getDouble();
+        } catch (BufferUnderflowException e) {
             throw new RuntimeException("Failed to read double", e);
         }
     }
@@ -148,10 +176,10 @@ public final class MessageReader {
      */
     public byte[] readRaw(int length) {
         try {
-            byte[] buf = new byte[length];
-            in.readFully(buf);
-            return buf;
-        } catch (IOException e) {
+            byte[] data = new byte[length];
+            buf.get(data);
+            return data;
+        } catch (BufferUnderflowException e) {
             throw new RuntimeException("Failed to read data", e);
         }
     }
@@ -162,23 +190,11 @@ public final class MessageReader {
      * @return data read
      */
     public byte[] readAllData() {
-        try {
-            return readRaw(in.available());
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to read data", e);
-        }
+        return readRaw(buf.remaining());
     }
 
     /** Closes the reader when done reading. */
     public void close() {
-        if (!closed) {
-            try {
-                in.close();
-            } catch (IOException e) {
-                throw new RuntimeException("Failed to close reader", e);
-            }
-
-            closed = true;
-        }
+        // Nothing to release, since the reader does not own its data
     }
 }
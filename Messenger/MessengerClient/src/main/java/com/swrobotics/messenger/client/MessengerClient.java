@@ -1,15 +1,27 @@
 package com.swrobotics.messenger.client;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Represents a connection to the Messenger server. This can be used to send messages between
@@ -21,12 +33,61 @@ public final class MessengerClient {
     public static final String EVENT_TYPE = "Messenger:Event";
     public static final String GET_CLIENTS_TYPE = "Messenger:GetClients";
     public static final String CLIENT_LIST_TYPE = "Messenger:Clients";
+    public static final String STATS_TYPE = "Messenger:Stats";
 
     private static final String HEARTBEAT = "_Heartbeat";
     private static final String LISTEN = "_Listen";
     private static final String DISCONNECT = "_Disconnect";
+    private static final String FEATURES = "_Features";
+    private static final String RETAIN = "_Retain";
+    private static final String UNRETAIN = "_Unretain";
+    static final String CHUNK = "_Chunk";
+    static final String UPGRADE = "_Upgrade";
+
+    private static final int FEATURE_CHUNKING = 1;
+    private static final int FEATURE_V2 = 2;
+    private static final int CLIENT_FEATURES =
+            FEATURE_CHUNKING
+                    | FEATURE_V2
+                    | DatagramLane.FEATURE_DATAGRAM
+                    | RequestTracker.FEATURE_REQUESTS;
+
+    // Messages larger than this are split into chunks if the server supports it
+    private static final int CHUNK_SIZE = 16 * 1024;
 
     private static final long TIMEOUT = 4000L;
+    static final long DEFAULT_REQUEST_TIMEOUT = 5000L;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Maximum number of messages the receive thread can get ahead of
+    // readMessages() before it stops reading from the socket
+    private static final int RECEIVE_QUEUE_CAPACITY = 4096;
+    private static final long RECEIVE_QUEUE_FULL_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+    private static final int DEFAULT_MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Incoming framing state of one connection. A new decoder is published for each connection
+     * before it is marked connected, and readers take it once per frame, so a frame still being
+     * decoded from the previous connection never sees the new one's state. After publication, the
+     * fields are only used by the thread reading frames.
+     */
+    private static final class Decoder {
+        final InputStream socketIn;
+        DataInputStream in;
+
+        // Frames switch to v2 once the server's features arrive
+        boolean v2;
+        final List<String> types;
+
+        Decoder(InputStream socketIn) {
+            this.socketIn = socketIn;
+            in = new DataInputStream(socketIn);
+            types = new ArrayList<>();
+        }
+    }
 
     private String host;
     private int port;
@@ -40,16 +101,90 @@ public final class MessengerClient {
     private final Thread watchdogThread;
 
     private Socket socket;
-    private DataInputStream in;
-    private DataOutputStream out;
+    private volatile int serverFeatures;
+    private final ChunkAssembler chunkAssembler;
+    private volatile int maxMessageSize;
+
+    // Large messages of these types are handled piece by piece as they
+    // arrive, instead of being reassembled first
+    private final Map<String, StreamHandler> streamHandlers;
+    private final StreamDispatcher streams;
+    private final BuilderPool builderPool;
+
+    // Outgoing messages are queued, then written either by the sending
+    // thread or, for asynchronous sends, by the writer thread
+    private final SendQueue sendQueue;
+    private final Thread writerThread;
+    private volatile boolean writing;
+    private volatile boolean writeRequested;
+    private volatile boolean asyncSend;
+    private final AtomicLong droppedMessages;
+    private final Map<String, StateTopic> stateTopics;
+
+    // Types the server retains, and the last message sent of each, which is
+    // sent again after reconnecting in case the server restarted
+    private final Set<String> retainedTypes;
+    private final Map<String, byte[]> retainedValues;
+
+    // Whether to ask a server on the same host to use shared memory instead
+    // of the socket. Read when connecting.
+    private volatile boolean sharedMemoryEnabled;
+    private SharedMemory sharedMemory;
+    private SharedMemory.Wakeup wakeup;
+    private volatile boolean usingSharedMemory;
+
+    // Lossy message types are sent and received as datagrams when possible
+    private final DatagramLane datagrams;
+    private final DatagramLane.Handler datagramHandler;
+
+    // Where to send datagrams on the current connection, kept so the lane
+    // can be opened if datagrams are enabled after the server's token
+    // arrives. Guarded by datagramLock.
+    private final Object datagramLock;
+    private boolean datagramEnabled;
+    private InetSocketAddress datagramServer;
+    private long datagramToken;
+
+    // Requests waiting for a reply. The connection ID changes whenever the
+    // connection is lost, so that requests sent on it are failed.
+    private final RequestTracker requests;
+    private volatile int connectionId;
+
+    // ID of the request whose handlers are running, or 0 if the message being
+    // handled is not a request. Only accessed by the thread calling
+    // readMessages().
+    private long currentRequestId;
+
+    // Incoming message data is read into a shared buffer, and handlers get a
+    // reader that views it, so receiving doesn't allocate per message
+    private byte[] receiveBuf;
+    private final MessageReader reader;
+
+    // Last frame decoded by readFrame(Decoder)
+    private String frameType;
+    private byte[] frameData;
+    private int frameSize;
+
+    // Only accessed by the thread calling readMessages()
+    private final ClientStats stats;
+    private volatile long statsInterval;
+
+    // Only used if receiving on a background thread
+    private final ReceiveQueue receiveQueue;
+    private final Thread receiveThread;
+    private volatile boolean receiving;
+
+    // Incoming framing state of the current connection. Outgoing framing is
+    // tracked by the send queue.
+    private volatile Decoder decoder;
 
     private final Set<String> listening;
-    private final Set<Handler> handlers;
+    private final HandlerIndex handlers;
     private final Set<Runnable> disconnectHandlers;
 
     private Exception lastConnectFailException;
 
-    private long prevServerHeartbeatTimestamp;
+    private volatile long prevServerHeartbeatTimestamp;
 
     /**
      * Creates a new instance and attempts to connect to a Messenger server at the given address.
@@ -59,29 +194,101 @@ public final class MessengerClient {
      * @param name unique string used in logging
      */
     public MessengerClient(String host, int port, String name) {
+        this(host, port, name, false);
+    }
+
+    /**
+     * Creates a new instance and attempts to connect to a Messenger server at the given address.
+     *
+     * <p>If {@code receiveThread} is true, a dedicated thread reads and decodes incoming messages
+     * as soon as they arrive and queues them, so {@link #readMessages} only has to invoke the
+     * handlers. This keeps socket I/O off the thread calling {@link #readMessages}, and lets the
+     * client respond to heartbeats even if {@link #readMessages} is not called for a while.
+     *
+     * @param host server host
+     * @param port server port
+     * @param name unique string used in logging
+     * @param receiveThread whether to receive messages on a background thread
+     */
+    public MessengerClient(String host, int port, String name, boolean receiveThread) {
+        this(host, port, name, receiveThread, false);
+    }
+
+    /**
+     * Creates a new instance and attempts to connect to a Messenger server at the given address.
+     * This is the same as {@link #MessengerClient(String, int, String, boolean)}, but can also
+     * enable shared memory for the first connection, since it is negotiated when connecting.
+     *
+     * @param host server host
+     * @param port server port
+     * @param name unique string used in logging
+     * @param receiveThread whether to receive messages on a background thread
+     * @param sharedMemory whether to use shared memory if possible, see {@link
+     *     #setSharedMemoryEnabled}
+     */
+    public MessengerClient(
+            String host, int port, String name, boolean receiveThread, boolean sharedMemory) {
         this.host = host;
         this.port = port;
         this.name = name;
 
         socket = null;
         connected = new AtomicBoolean(false);
+        maxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+        streamHandlers = new ConcurrentHashMap<>();
+        chunkAssembler = new ChunkAssembler(streamHandlers.keySet(), maxMessageSize);
+        builderPool = new BuilderPool(this);
+        receiveBuf = new byte[1024];
+        reader = new MessageReader();
+        streams = new StreamDispatcher(streamHandlers, reader);
+        stats = new ClientStats();
+        statsInterval = 0;
+
+        sendQueue = new SendQueue(DEFAULT_MAX_QUEUED_BYTES);
+        droppedMessages = new AtomicLong(0);
+        stateTopics = new ConcurrentHashMap<>();
+        retainedTypes = ConcurrentHashMap.newKeySet();
+        retainedValues = new ConcurrentHashMap<>();
+        datagrams = new DatagramLane();
+        datagramHandler = this::dispatch;
+        datagramLock = new Object();
+        datagramEnabled = false;
+        requests = new RequestTracker();
+        asyncSend = false;
+        sharedMemoryEnabled = sharedMemory;
+        writing = true;
+        writerThread = new Thread(this::writeLoop, "Messenger Writer Thread");
+        writerThread.setDaemon(true);
+        writerThread.start();
 
         executor = Executors.newSingleThreadScheduledExecutor();
         heartbeatFuture =
                 executor.scheduleAtFixedRate(
                         () -> {
-                            sendMessage(HEARTBEAT, new byte[0]);
+                            sendMessage(HEARTBEAT, EMPTY);
+                            if (connected.get()) datagrams.sendHello();
                         },
                         0,
                         1,
                         TimeUnit.SECONDS);
 
         listening = Collections.synchronizedSet(new HashSet<>());
-        handlers = new HashSet<>();
+        handlers = new HandlerIndex();
         disconnectHandlers = new HashSet<>();
 
         lastConnectFailException = null;
 
+        if (receiveThread) {
+            receiveQueue = new ReceiveQueue(RECEIVE_QUEUE_CAPACITY);
+            receiving = true;
+            this.receiveThread = new Thread(this::receiveLoop, "Messenger Receive Thread");
+            this.receiveThread.setDaemon(true);
+            this.receiveThread.start();
+        } else {
+            receiveQueue = null;
+            this.receiveThread = null;
+        }
+
         startConnectThread();
         watchdogThread = startWatchdog();
     }
@@ -125,11 +332,56 @@ public final class MessengerClient {
                                 try {
                                     socket = new Socket();
                                     socket.setSoTimeout(1000);
+
+                                    // Messages are written in batches, so there is no need to
+                                    // wait for more data before sending
+                                    socket.setTcpNoDelay(true);
                                     socket.connect(new InetSocketAddress(host, port), 1000);
-                                    in = new DataInputStream(socket.getInputStream());
-                                    out = new DataOutputStream(socket.getOutputStream());
-                                    out.writeUTF(name);
+                                    InputStream socketIn =
+                                            new BufferedInputStream(socket.getInputStream());
+                                    OutputStream out = socket.getOutputStream();
+                                    sendQueue.reset(out);
+                                    sharedMemory = null;
+                                    usingSharedMemory = false;
+                                    closeDatagrams();
+                                    wakeup = new SharedMemory.Wakeup(out);
+
+                                    // Servers that don't understand the features message will
+                                    // ignore it, so optional features stay disabled until the
+                                    // server replies
+                                    serverFeatures = 0;
+                                    chunkAssembler.reset();
+
+                                    ByteArrayOutputStream b = new ByteArrayOutputStream();
+                                    DataOutputStream handshake = new DataOutputStream(b);
+                                    handshake.writeUTF(name);
+                                    handshake.writeUTF(FEATURES);
+                                    handshake.writeInt(4);
+                                    handshake.writeInt(
+                                            sharedMemoryEnabled && SharedMemory.isLocalHost(host)
+                                                    ? CLIENT_FEATURES
+                                                            | SharedMemory.FEATURE_SHARED_MEMORY
+                                                    : CLIENT_FEATURES);
+
+                                    // Declared before anything else is sent, so that the server
+                                    // retains the first message of each type
+                                    for (String type : retainedTypes) {
+                                        byte[] typeData = encodeString(type);
+                                        handshake.writeUTF(RETAIN);
+                                        handshake.writeInt(typeData.length);
+                                        handshake.write(typeData);
+                                    }
+                                    out.write(b.toByteArray());
 
+                                    // The receive thread blocks until data arrives, and a read
+                                    // timeout partway through a frame would lose its place in the
+                                    // stream. The watchdog closes the socket if the server stops
+                                    // responding, which still unblocks it.
+                                    if (receiveQueue != null) socket.setSoTimeout(0);
+
+                                    // A receive thread still decoding a frame from the previous
+                                    // connection keeps using that connection's decoder
+                                    decoder = new Decoder(socketIn);
                                     connected.set(true);
                                     System.out.println("Messenger connection established");
 
@@ -143,6 +395,24 @@ public final class MessengerClient {
                                         if (listen.equals(EVENT_TYPE)) continue;
                                         listen(listen);
                                     }
+
+                                    // Bring the new server up to date with the current state
+                                    boolean resent = false;
+                                    for (StateTopic topic : stateTopics.values()) {
+                                        resent |= topic.resend();
+                                    }
+                                    for (Map.Entry<String, byte[]> entry :
+                                            retainedValues.entrySet()) {
+                                        byte[] value = entry.getValue();
+                                        resent |=
+                                                queueMessage(
+                                                        entry.getKey(),
+                                                        value,
+                                                        0,
+                                                        value.length,
+                                                        null);
+                                    }
+                                    if (resent) sendQueued();
                                 } catch (Exception e) {
                                     lastConnectFailException = e;
                                     System.err.println(
@@ -218,6 +488,8 @@ public final class MessengerClient {
         } catch (IOException e) {
             e.printStackTrace();
         }
+        closeDatagrams();
+        connectionId++;
 
         for (Runnable handler : disconnectHandlers) {
             handler.run();
@@ -232,35 +504,242 @@ public final class MessengerClient {
      * invoked from this method.
      */
     public void readMessages() {
+        readMessages(Long.MAX_VALUE);
+    }
+
+    /**
+     * Reads incoming messages until there are none left or the time budget is used up, whichever
+     * comes first. Message handlers will be invoked from this method. Messages that arrive while
+     * this is running are left for the next call, so it always returns.
+     *
+     * <p>At least one waiting message is handled each call, so a budget that is too small still
+     * makes progress. Without a receive thread, messages are only decoded as they are read, so
+     * ones still in the socket buffer are not counted as deferred.
+     *
+     * @param maxNanos time budget in nanoseconds
+     * @return number of received messages that were deferred to a later call
+     */
+    public int readMessages(long maxNanos) {
+        int deferred = handleMessages(maxNanos);
+
+        long interval = statsInterval;
+        if (interval > 0 && System.nanoTime() - stats.getLastSnapshotTime() >= interval) {
+            sendMessage(
+                    STATS_TYPE,
+                    stats.takeSnapshot(name, sendQueue.getQueuedBytes(), droppedMessages.get()));
+        }
+
+        return deferred;
+    }
+
+    private int handleMessages(long maxNanos) {
+        requests.expire(connectionId);
         if (!isConnected()) {
             if (connectThread == null) startConnectThread();
 
-            return;
+            // Messages queued before disconnecting can still be handled
+            if (receiveQueue == null) return 0;
+        }
+
+        // Datagrams that arrive while handling the rest wait for the next
+        // call, since only the newest of each type is handled anyway
+        long start = System.nanoTime();
+        datagrams.receive(datagramHandler);
+
+        if (receiveQueue != null) {
+            int count = receiveQueue.size();
+            for (int i = 0; i < count; i++) {
+                if (i > 0 && System.nanoTime() - start >= maxNanos) break;
+
+                ReceiveQueue.Slot slot = receiveQueue.peek();
+                dispatch(slot.type, slot.data, slot.length, slot.receiveTime);
+                receiveQueue.release();
+            }
+            return receiveQueue.size();
         }
 
         try {
-            while (in.available() > 0) {
-                String type = in.readUTF();
-                int dataSize = in.readInt();
-                byte[] data = new byte[dataSize];
-                in.readFully(data);
-
-                if (type.equals(HEARTBEAT)) {
-                    prevServerHeartbeatTimestamp = System.currentTimeMillis();
-                } else {
-                    for (Handler handler : handlers) {
-                        try {
-                            handler.handle(type, data);
-                        } catch (Throwable t) {
-                            System.err.println("Error in message handler " + t.toString() + ":");
-                            t.printStackTrace();
-                        }
-                    }
-                }
+            Decoder d = decoder;
+            boolean first = true;
+            while (d.in.available() > 0) {
+                if (!first && System.nanoTime() - start >= maxNanos) break;
+                first = false;
+
+                if (readFrame(d)) dispatch(frameType, frameData, frameSize, System.nanoTime());
             }
         } catch (IOException e) {
             handleError(e);
         }
+        return 0;
+    }
+
+    private void receiveLoop() {
+        while (receiving) {
+            if (!connected.get()) {
+                LockSupport.parkNanos(RECEIVE_QUEUE_FULL_WAIT * 10);
+                continue;
+            }
+
+            Socket s = socket;
+            Decoder d = decoder;
+            try {
+                if (!readFrame(d)) continue;
+                long receiveTime = System.nanoTime();
+
+                // Wait for readMessages() to catch up. The socket isn't read
+                // meanwhile, so the server's outbound queue policies apply.
+                while (!receiveQueue.offer(frameType, frameData, frameSize, receiveTime)) {
+                    if (!receiving) return;
+                    LockSupport.parkNanos(RECEIVE_QUEUE_FULL_WAIT);
+                }
+            } catch (IOException e) {
+                // Closing the socket to reconnect or disconnect also ends up here
+                if (receiving && s == socket && connected.get()) handleError(e);
+            } catch (RuntimeException e) {
+                // A frame that can't be decoded leaves the stream at an unknown
+                // position, so reconnect instead of letting the thread die
+                if (receiving && s == socket && connected.get())
+                    handleError(new IOException("Failed to decode incoming frame", e));
+            }
+        }
+    }
+
+    // Reads one frame, blocking until it is complete. Internal messages are
+    // handled here and false is returned. Otherwise the message is left in
+    // frameType, frameData and frameSize and true is returned.
+    private boolean readFrame(Decoder d) throws IOException {
+        DataInputStream in = d.in;
+        String type;
+        int dataSize;
+        if (d.v2) {
+            int typeRef = Varint.read(in);
+            if (typeRef == 0) {
+                type = in.readUTF();
+                d.types.add(type);
+            } else if (typeRef <= d.types.size()) {
+                type = d.types.get(typeRef - 1);
+            } else {
+                throw new IOException("Undefined type reference " + typeRef);
+            }
+            dataSize = Varint.read(in);
+        } else {
+            type = in.readUTF();
+            dataSize = in.readInt();
+        }
+        if (dataSize < 0) throw new IOException("Invalid message size " + dataSize);
+        if (dataSize > maxMessageSize)
+            throw new IOException(
+                    "Message of " + dataSize + " bytes exceeds maximum size of " + maxMessageSize);
+        if (dataSize > receiveBuf.length)
+            receiveBuf = new byte[Math.max(dataSize, receiveBuf.length * 2)];
+        in.readFully(receiveBuf, 0, dataSize);
+
+        if (type.equals(HEARTBEAT)) {
+            prevServerHeartbeatTimestamp = System.currentTimeMillis();
+            return false;
+        } else if (type.equals(FEATURES)) {
+            if (dataSize < 4) throw new IOException("Truncated " + FEATURES + " message");
+            serverFeatures = ByteBuffer.wrap(receiveBuf, 0, dataSize).getInt();
+
+            // The server sends everything after its features in v2
+            if ((serverFeatures & FEATURE_V2) != 0) {
+                d.v2 = true;
+                upgradeOutput();
+            }
+            return false;
+        } else if (type.equals(CHUNK)) {
+            ChunkAssembler.Completed msg =
+                    chunkAssembler.accept(ByteBuffer.wrap(receiveBuf, 0, dataSize));
+            if (msg == null) return false;
+
+            // Streamed chunks are passed on as they are
+            if (msg == ChunkAssembler.STREAMED) {
+                frameType = CHUNK;
+                frameData = receiveBuf;
+                frameSize = dataSize;
+                return true;
+            }
+
+            frameType = msg.type;
+            frameData = msg.data;
+            frameSize = msg.data.length;
+            return true;
+        } else if (type.equals(DatagramLane.TOKEN)) {
+            if (dataSize < 8) throw new IOException("Truncated " + DatagramLane.TOKEN + " message");
+            long token = ByteBuffer.wrap(receiveBuf, 0, dataSize).getLong();
+            synchronized (datagramLock) {
+                datagramServer = new InetSocketAddress(socket.getInetAddress(), port);
+                datagramToken = token;
+                if (datagramEnabled) openDatagrams();
+            }
+            return false;
+        } else if (type.equals(SharedMemory.OFFER)) {
+            openSharedMemory(ModifiedUtf8.read(ByteBuffer.wrap(receiveBuf, 0, dataSize)));
+            return false;
+        } else if (type.equals(SharedMemory.SWITCH)) {
+            // This was the server's last frame on the socket
+            if (sharedMemory == null) throw new IOException("Unexpected shared memory switch");
+            d.in =
+                    new DataInputStream(
+                            new BufferedInputStream(
+                                    sharedMemory.openInputStream(d.socketIn, wakeup)));
+            usingSharedMemory = true;
+            return false;
+        }
+
+        frameType = type;
+        frameData = receiveBuf;
+        frameSize = dataSize;
+        return true;
+    }
+
+    private void dispatch(String type, byte[] data, int length, long receiveTime) {
+        int offset = 0;
+        try {
+            switch (type) {
+                case RequestTracker.REPLY:
+                    requests.onReply(ByteBuffer.wrap(data, 0, length));
+                    return;
+                case RequestTracker.FAILED:
+                    requests.onFailed(ByteBuffer.wrap(data, 0, length));
+                    return;
+                case CHUNK:
+                    {
+                        String streamType = streams.dispatchChunk(data, length, connectionId);
+                        if (streamType != null && statsInterval > 0)
+                            stats.recordMessage(
+                                    streamType, length, System.nanoTime() - receiveTime);
+                        return;
+                    }
+                case RequestTracker.REQUEST:
+                    {
+                        // Handled like a message of the requested type, except
+                        // that replies go back to the requester
+                        ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+                        currentRequestId = buf.getLong();
+                        type = ModifiedUtf8.read(buf);
+                        offset = buf.position();
+                        break;
+                    }
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            System.err.println("Messenger: Malformed " + type + " message");
+            e.printStackTrace();
+            return;
+        }
+
+        try {
+            if (streamHandlers.isEmpty()
+                    || !streams.dispatchWhole(type, data, offset, length - offset)) {
+                reader.set(data, offset, length - offset);
+                handlers.dispatch(type, reader);
+            }
+        } finally {
+            currentRequestId = 0;
+        }
+
+        if (statsInterval > 0)
+            stats.recordMessage(type, length - offset, System.nanoTime() - receiveTime);
     }
 
     /**
@@ -278,14 +757,229 @@ public final class MessengerClient {
      */
     public void disconnect() {
         send(DISCONNECT);
+        flushQueue();
 
         heartbeatFuture.cancel(false);
         executor.shutdown();
 
+        receiving = false;
+        writing = false;
         disconnectSocket();
         connected.set(false);
 
         watchdogThread.interrupt();
+        LockSupport.unpark(writerThread);
+        if (receiveThread != null) LockSupport.unpark(receiveThread);
+    }
+
+    /**
+     * Sets whether sending a message waits for it to be written. If enabled, {@link #send} and
+     * {@link MessageBuilder#send} only queue the message and return immediately, and a background
+     * thread writes queued messages to the socket in batches. This keeps the calling thread from
+     * stalling if the connection is slow. Disabled by default.
+     *
+     * @param asyncSend whether to send asynchronously
+     */
+    public void setAsyncSend(boolean asyncSend) {
+        this.asyncSend = asyncSend;
+    }
+
+    /**
+     * Sets the maximum number of bytes of message data that can be waiting to be written. Messages
+     * sent while the queue is full are dropped, and asynchronous sends fail with a {@link
+     * RejectedExecutionException}. A message larger than the limit is still accepted if nothing
+     * else is queued. Internal messages such as heartbeats are not limited.
+     *
+     * @param maxQueuedBytes maximum queued bytes
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        sendQueue.setMaxQueuedBytes(maxQueuedBytes);
+    }
+
+    /**
+     * Sets the size of the largest message this client accepts, including one received in chunks.
+     * If the server sends a larger message, the connection is closed and reestablished, so that a
+     * bad size can't make the client allocate arbitrary amounts of memory. Messages of types with
+     * a {@linkplain #addStreamHandler stream handler} are not limited if they arrive in chunks,
+     * since they are never held in memory whole. Defaults to 64 MiB.
+     *
+     * @param maxMessageSize maximum message data size in bytes
+     */
+    public void setMaxMessageSize(int maxMessageSize) {
+        if (maxMessageSize < 0) throw new IllegalArgumentException("Size can't be negative");
+        this.maxMessageSize = maxMessageSize;
+        chunkAssembler.setMaxMessageSize(maxMessageSize);
+    }
+
+    /**
+     * Marks a message type as describing the current value of some state, such as the robot's
+     * position, where only the most recent value matters. Sending a message of this type then only
+     * sets the value to send: a value is not sent again if it is identical to the last one sent, a
+     * newer value replaces one that is still waiting to be sent, and values are sent at most {@code
+     * maxRate} times per second. The latest value is sent again after reconnecting.
+     *
+     * <p>Messages sent with {@link #sendAsync} or {@link MessageBuilder#sendAsync} are not
+     * conflated. If the type is also {@linkplain #addLossyType lossy}, identical values are still
+     * sent at the maximum rate, since the previous one may have been lost.
+     *
+     * @param type message type
+     * @param maxRate maximum number of messages to send per second, or 0 for no limit
+     */
+    public void addStateTopic(String type, double maxRate) {
+        if (type.startsWith("_"))
+            throw new IllegalArgumentException("Internal message types can't be state topics");
+        if (maxRate < 0) throw new IllegalArgumentException("Rate can't be negative");
+
+        long minInterval = maxRate == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / maxRate);
+        stateTopics.put(type, new StateTopic(this, executor, type, minInterval));
+    }
+
+    /**
+     * Stops conflating messages of a type previously passed to {@link #addStateTopic}. A value
+     * still waiting to be sent is sent immediately.
+     *
+     * @param type message type
+     */
+    public void removeStateTopic(String type) {
+        StateTopic topic = stateTopics.remove(type);
+        if (topic != null && topic.flushPending()) sendQueued();
+    }
+
+    /**
+     * Asks the server to retain the most recent message of a type. A client that starts listening
+     * to the type then receives that message immediately, so it doesn't need to request it. This is
+     * meant for information that rarely changes, and saves publishers from answering the same
+     * request for every client. The last message sent is sent again after reconnecting, in case
+     * the server restarted. Servers that don't support retained types ignore this.
+     *
+     * @param type message type, which must not end in '*'
+     */
+    public void addRetainedType(String type) {
+        if (type.startsWith("_"))
+            throw new IllegalArgumentException("Internal message types can't be retained");
+        if (type.endsWith("*"))
+            throw new IllegalArgumentException("Retained types can't be wildcards");
+
+        if (retainedTypes.add(type) && connected.get()) prepare(RETAIN).addString(type).send();
+    }
+
+    /**
+     * Asks the server to stop retaining messages of a type previously passed to {@link
+     * #addRetainedType}, and to forget its last message.
+     *
+     * @param type message type
+     */
+    public void removeRetainedType(String type) {
+        retainedValues.remove(type);
+        if (retainedTypes.remove(type) && connected.get()) prepare(UNRETAIN).addString(type).send();
+    }
+
+    /**
+     * Sets whether to send and receive lossy message types as UDP datagrams when the server
+     * supports it. Takes effect immediately, including for the current connection. Disabled by
+     * default, in which case lossy types are sent over TCP like any other.
+     *
+     * @param datagramEnabled whether to use datagrams
+     * @see #addLossyType
+     */
+    public void setDatagramEnabled(boolean datagramEnabled) {
+        synchronized (datagramLock) {
+            this.datagramEnabled = datagramEnabled;
+            if (!datagramEnabled) datagrams.close();
+            else if (datagramServer != null) openDatagrams();
+        }
+    }
+
+    // Must hold datagramLock
+    private void openDatagrams() {
+        try {
+            datagrams.open(datagramServer, datagramToken);
+        } catch (IOException e) {
+            System.err.println("Messenger: Failed to open datagram socket, using TCP only");
+            e.printStackTrace();
+        }
+    }
+
+    // Stops using datagrams until the next connection's token arrives
+    private void closeDatagrams() {
+        synchronized (datagramLock) {
+            datagramServer = null;
+            datagrams.close();
+        }
+    }
+
+    /**
+     * Marks a message type as lossy, meaning only its most recent value matters and losing one is
+     * better than delaying the next. Messages of this type are sent as UDP datagrams when {@link
+     * #setDatagramEnabled enabled} and the server supports it, so a lost packet doesn't hold up
+     * other messages the way it would on TCP. A datagram that arrives after a newer one of the same
+     * type is dropped. Messages that don't fit in one datagram, or are sent while datagrams aren't
+     * getting through, are sent over TCP as usual.
+     *
+     * <p>Lossy messages are received as datagrams if the sender marked them lossy and the receiving
+     * client has datagrams enabled, whether or not the receiving client marked them lossy.
+     *
+     * @param type message type
+     */
+    public void addLossyType(String type) {
+        if (type.startsWith("_"))
+            throw new IllegalArgumentException("Internal message types can't be lossy");
+        datagrams.getLossyTypes().add(type);
+    }
+
+    /**
+     * Sends messages of a type previously passed to {@link #addLossyType} over TCP again.
+     *
+     * @param type message type
+     */
+    public void removeLossyType(String type) {
+        datagrams.getLossyTypes().remove(type);
+    }
+
+    boolean isLossyType(String type) {
+        return datagrams.getLossyTypes().contains(type);
+    }
+
+    /**
+     * Sets how often this client sends a {@link #STATS_TYPE} message describing the messages it has
+     * handled since the previous one: their rate and size by type, and the time from receiving
+     * each message to its handlers returning. Statistics are recorded and sent by {@link
+     * #readMessages}, and only while enabled. Disabled by default.
+     *
+     * @param interval interval in milliseconds, or 0 to disable
+     */
+    public void setStatsInterval(long interval) {
+        statsInterval = TimeUnit.MILLISECONDS.toNanos(interval);
+    }
+
+    /**
+     * Sets whether to use shared memory instead of the socket when connected to a server on the
+     * same host. This skips the network stack, which reduces latency, and falls back to the socket
+     * if the server doesn't support it or has it disabled. Takes effect on the next connection.
+     * Disabled by default.
+     *
+     * @param sharedMemoryEnabled whether to use shared memory if possible
+     */
+    public void setSharedMemoryEnabled(boolean sharedMemoryEnabled) {
+        this.sharedMemoryEnabled = sharedMemoryEnabled;
+    }
+
+    /**
+     * Gets whether the current connection uses shared memory instead of the socket.
+     *
+     * @return whether shared memory is in use
+     */
+    public boolean isUsingSharedMemory() {
+        return connected.get() && usingSharedMemory;
+    }
+
+    /**
+     * Gets the number of messages that have been dropped because the send queue was full.
+     *
+     * @return number of dropped messages
+     */
+    public long getDroppedMessageCount() {
+        return droppedMessages.get();
     }
 
     /**
@@ -299,13 +993,130 @@ public final class MessengerClient {
         return new MessageBuilder(this, type);
     }
 
+    /**
+     * Prepares to send a message using a recycled {@link MessageBuilder}. This is the same as
+     * {@link #prepare}, except that the builder is returned to a pool when it is sent, so sending
+     * messages this way does not allocate once the pool is warmed up. The builder must not be kept
+     * or used after calling {@link MessageBuilder#send}.
+     *
+     * @param type type of the message to send
+     * @return builder to add data
+     */
+    public MessageBuilder preparePooled(String type) {
+        return builderPool.obtain(type);
+    }
+
+    /**
+     * Prepares to send a reply to the request currently being handled. Only the client that made
+     * the request receives the reply. This must be called from the message handler, and if the
+     * message being handled was not sent as a request, the reply is sent as a normal message, so
+     * handlers can answer both the same way.
+     *
+     * @param type type of the reply
+     * @return builder to add data
+     * @see #request
+     */
+    public MessageBuilder prepareReply(String type) {
+        MessageBuilder builder = new MessageBuilder(this, type);
+        builder.setReplyTo(currentRequestId);
+        return builder;
+    }
+
+    /**
+     * Sends a request with no data. See {@link #request(String, byte[], long)}.
+     *
+     * @param type type of the request
+     * @return future completed with the reply
+     */
+    public CompletableFuture<MessageReader> request(String type) {
+        return request(type, EMPTY, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Sends a request, timing out after 5 seconds. See {@link #request(String, byte[], long)}.
+     *
+     * @param type type of the request
+     * @param payload data of the request
+     * @return future completed with the reply
+     */
+    public CompletableFuture<MessageReader> request(String type, byte[] payload) {
+        return request(type, payload, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Sends a request to the clients listening to its type, and waits for a reply. Handlers
+     * receive the request like a message of the type, and reply to it using {@link
+     * #prepareReply}. The reply is sent only to this client instead of to every client listening
+     * to its type. If several clients reply, only the first reply is used.
+     *
+     * <p>The future is completed from {@link #readMessages}, so callbacks run on the same thread
+     * as message handlers. It fails with a {@link TimeoutException} if no reply arrives in time,
+     * and with an {@link IOException} if no client listens to the type, the connection is lost, or
+     * the server doesn't support requests.
+     *
+     * @param type type of the request
+     * @param payload data of the request
+     * @param timeout time to wait for a reply in milliseconds
+     * @return future completed with the reply
+     */
+    public CompletableFuture<MessageReader> request(String type, byte[] payload, long timeout) {
+        return request(type, payload, 0, payload.length, timeout);
+    }
+
+    CompletableFuture<MessageReader> request(
+            String type, byte[] payload, int offset, int length, long timeout) {
+        if (type.startsWith("_"))
+            throw new IllegalArgumentException("Internal message types can't be requested");
+
+        CompletableFuture<MessageReader> future = new CompletableFuture<>();
+        int features = serverFeatures;
+        if (features != 0 && (features & RequestTracker.FEATURE_REQUESTS) == 0) {
+            future.completeExceptionally(new IOException("Server does not support requests"));
+            return future;
+        }
+
+        long id = requests.add(future, TimeUnit.MILLISECONDS.toNanos(timeout), connectionId);
+        byte[] data = encodeRequest(id, type, payload, offset, length);
+        if (queueMessage(RequestTracker.REQUEST, data, 0, data.length, null)) {
+            sendQueued();
+        } else {
+            requests.remove(id);
+            future.completeExceptionally(
+                    new IOException(connected.get() ? "Send queue is full" : "Not connected"));
+        }
+        return future;
+    }
+
+    // Encodes the data of a request or reply
+    static byte[] encodeRequest(long id, String type, byte[] data, int offset, int length) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + 2 + ModifiedUtf8.encodedLength(type) + length);
+        buf.putLong(id);
+        try {
+            ModifiedUtf8.write(type, buf);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Message type is too long", e);
+        }
+        buf.put(data, offset, length);
+        return buf.array();
+    }
+
     /**
      * Immediately sends a message with no data.
      *
      * @param type type of the message to send
      */
     public void send(String type) {
-        sendMessage(type, new byte[0]);
+        sendMessage(type, EMPTY);
+    }
+
+    /**
+     * Queues a message with no data to be sent by the writer thread, and returns immediately.
+     *
+     * @param type type of the message to send
+     * @return future completed once the message has been written to the socket
+     */
+    public CompletableFuture<Void> sendAsync(String type) {
+        return sendMessageAsync(type, EMPTY, 0, 0);
     }
 
     /**
@@ -317,13 +1128,7 @@ public final class MessengerClient {
      * @param handler handler to invoke
      */
     public void addHandler(String type, MessageHandler handler) {
-        Handler h;
-        if (type.endsWith("*")) {
-            h = new WildcardHandler(type.substring(0, type.length() - 1), handler);
-        } else {
-            h = new DirectHandler(type, handler);
-        }
-        handlers.add(h);
+        handlers.add(type, handler);
 
         if (!listening.contains(type)) {
             listening.add(type);
@@ -334,6 +1139,52 @@ public final class MessengerClient {
         }
     }
 
+    /**
+     * Registers a {@link StreamHandler} to handle messages of a type piece by piece. Large
+     * messages sent in chunks are passed to the handler one chunk at a time as they arrive, so
+     * they never have to be held in memory whole, and smaller messages are passed as a single
+     * piece. Messages of the type are no longer passed to {@link MessageHandler}s, including ones
+     * registered with a wildcard. If the connection is lost partway through a message, the rest
+     * of it never arrives.
+     *
+     * @param type type of message to listen to, which must not end in '*'
+     * @param handler handler to invoke
+     */
+    public void addStreamHandler(String type, StreamHandler handler) {
+        if (type.startsWith("_"))
+            throw new IllegalArgumentException("Internal message types can't be streamed");
+        if (type.endsWith("*"))
+            throw new IllegalArgumentException("Stream handlers can't use wildcards");
+
+        streamHandlers.put(type, handler);
+        if (listening.add(type) && connected.get()) listen(type);
+    }
+
+    /**
+     * Opens a stream to write the data of a large message, which is sent in chunks as it is
+     * written rather than held in memory whole. Other messages can be sent while the stream is
+     * open, and are interleaved with its chunks. Writing waits if the send queue is full. If the
+     * server can't receive chunks, the data is buffered and sent when the stream is closed.
+     *
+     * <p>Exactly {@code size} bytes must be written before closing the stream. If the connection
+     * is lost while writing, the stream fails with an {@link IOException}, and the message has to
+     * be sent again from the start.
+     *
+     * @param type type of the message
+     * @param size size of the message data in bytes
+     * @return stream to write the data to
+     * @throws IOException if not connected
+     */
+    public OutputStream openStream(String type, int size) throws IOException {
+        if (type.startsWith("_"))
+            throw new IllegalArgumentException("Internal message types can't be streamed");
+        if (size < 0) throw new IllegalArgumentException("Size can't be negative");
+        if (!connected.get()) throw new IOException("Not connected");
+
+        boolean chunking = (serverFeatures & FEATURE_CHUNKING) != 0;
+        return new MessageOutputStream(this, sendQueue, type, size, chunking ? CHUNK_SIZE : 0);
+    }
+
     /**
      * Registers a function to call whenever the client disconnects.
      *
@@ -343,61 +1194,125 @@ public final class MessengerClient {
         disconnectHandlers.add(handler);
     }
 
+    private static byte[] encodeString(String s) throws IOException {
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        new DataOutputStream(b).writeUTF(s);
+        return b.toByteArray();
+    }
+
     private void listen(String type) {
         prepare(LISTEN).addString(type).send();
     }
 
     void sendMessage(String type, byte[] data) {
-        if (!connected.get()) return;
+        sendMessage(type, data, 0, data.length);
+    }
 
-        synchronized (out) {
-            try {
-                out.writeUTF(type);
-                out.writeInt(data.length);
-                out.write(data);
-            } catch (IOException e) {
-                handleError(e);
-            }
+    // The data is copied before this returns, so the caller may reuse the
+    // array afterwards
+    void sendMessage(String type, byte[] data, int offset, int length) {
+        StateTopic topic = stateTopics.get(type);
+        if (topic != null) {
+            if (topic.offer(data, offset, length)) sendQueued();
+            return;
         }
+
+        if (queueMessage(type, data, offset, length, null)) sendQueued();
     }
 
-    private interface Handler {
-        void handle(String type, byte[] data);
+    CompletableFuture<Void> sendMessageAsync(String type, byte[] data, int offset, int length) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (queueMessage(type, data, offset, length, future)) requestWrite();
+        return future;
     }
 
-    // Handles simple patterns (type must match exactly)
-    private static final class DirectHandler implements Handler {
-        private final String targetType;
-        private final MessageHandler handler;
+    boolean queueMessage(
+            String type, byte[] data, int offset, int length, CompletableFuture<Void> future) {
+        // Kept even if not connected, so it is sent once connected
+        if (!retainedTypes.isEmpty() && retainedTypes.contains(type))
+            retainedValues.put(type, Arrays.copyOfRange(data, offset, offset + length));
 
-        public DirectHandler(String targetType, MessageHandler handler) {
-            this.targetType = targetType;
-            this.handler = handler;
+        if (!connected.get()) {
+            if (future != null) future.completeExceptionally(new IOException("Not connected"));
+            return false;
         }
 
-        @Override
-        public void handle(String type, byte[] data) {
-            if (type.equals(targetType)) {
-                handler.handle(type, new MessageReader(data));
-            }
+        if (datagrams.send(type, data, offset, length)) {
+            if (future != null) future.complete(null);
+            return true;
         }
+
+        boolean queued;
+        if ((!type.startsWith("_") || RequestTracker.isRequestOrReply(type))
+                && (serverFeatures & FEATURE_CHUNKING) != 0
+                && length > CHUNK_SIZE) {
+            queued = sendQueue.addChunked(type, data, offset, length, CHUNK_SIZE, future);
+        } else {
+            queued = sendQueue.add(type, data, offset, length, future);
+        }
+
+        if (!queued) {
+            droppedMessages.incrementAndGet();
+            if (future != null)
+                future.completeExceptionally(
+                        new RejectedExecutionException("Send queue is full"));
+        }
+        return queued;
     }
 
-    // Handles wildcard patterns (i.e. patterns that end in '*')
-    private static final class WildcardHandler implements Handler {
-        private final String targetPrefix;
-        private final MessageHandler handler;
+    // Writes messages that were just queued, depending on the send mode
+    void sendQueued() {
+        if (asyncSend) requestWrite();
+        else flushQueue();
+    }
 
-        public WildcardHandler(String targetPrefix, MessageHandler handler) {
-            this.targetPrefix = targetPrefix;
-            this.handler = handler;
+    // Writes queued messages on the calling thread
+    private void flushQueue() {
+        Socket s = socket;
+        try {
+            sendQueue.flush();
+        } catch (IOException e) {
+            if (s == socket && connected.get()) handleError(e);
         }
+    }
 
-        @Override
-        public void handle(String type, byte[] data) {
-            if (type.startsWith(targetPrefix)) {
-                handler.handle(type, new MessageReader(data));
-            }
+    private void requestWrite() {
+        if (!writeRequested) {
+            writeRequested = true;
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private void writeLoop() {
+        while (writing) {
+            if (!writeRequested) LockSupport.park(this);
+
+            // Cleared before flushing, so messages queued during the flush
+            // request another one
+            writeRequested = false;
+            flushQueue();
+        }
+    }
+
+    // Maps the file offered by the server, and tells it that all following
+    // frames are written there. If the file can't be used, the client stays
+    // on the socket and the server never switches.
+    private void openSharedMemory(String path) {
+        try {
+            sharedMemory = SharedMemory.open(path);
+        } catch (IOException e) {
+            System.err.println("Messenger: Failed to open shared memory, staying on TCP");
+            e.printStackTrace();
+            return;
         }
+
+        sendQueue.addSwitch(SharedMemory.SWITCH, sharedMemory.openOutputStream(wakeup));
+        requestWrite();
+    }
+
+    // Tells the server that all following frames use v2 framing
+    private void upgradeOutput() {
+        sendQueue.add(UPGRADE, EMPTY, 0, 0, null);
+        requestWrite();
     }
 }
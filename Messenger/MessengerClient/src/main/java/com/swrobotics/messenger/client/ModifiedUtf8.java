@@ -0,0 +1,105 @@
+package com.swrobotics.messenger.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes strings in the modified UTF-8 format used by {@link
+ * java.io.DataOutput#writeUTF}, but directly on a {@link ByteBuffer} instead of through a stream.
+ *
+ * <p>Twin of {@code com.swrobotics.messenger.server.ModifiedUtf8}, which additionally checks for
+ * truncated input. Fixes to the encoding belong in both.
+ */
+final class ModifiedUtf8 {
+    /**
+     * Gets the number of bytes needed to encode a string, not including the length prefix.
+     *
+     * @param s string to measure
+     * @return encoded length
+     */
+    static int encodedLength(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) len++;
+            else if (c <= 0x07FF) len += 2;
+            else len += 3;
+        }
+        return len;
+    }
+
+    /**
+     * Writes a string with its 2-byte length prefix. The buffer must have room for {@code 2 +
+     * encodedLength(s)} bytes.
+     *
+     * @param s string to write
+     * @param buf buffer to write into
+     * @throws UTFDataFormatException if the encoded string is longer than 65535 bytes
+     */
+    static void write(String s, ByteBuffer buf) throws UTFDataFormatException {
+        int len = encodedLength(s);
+        if (len > 0xFFFF) throw new UTFDataFormatException("Encoded string too long: " + len);
+
+        buf.putShort((short) len);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buf.put((byte) c);
+            } else if (c <= 0x07FF) {
+                buf.put((byte) (0xC0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buf.put((byte) (0xE0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Reads a string with its 2-byte length prefix.
+     *
+     * @param buf buffer to read from
+     * @return decoded string
+     * @throws EOFException if the buffer ends before the string does
+     * @throws UTFDataFormatException if the data is not valid modified UTF-8
+     */
+    static String read(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 2) throw new EOFException();
+        int len = buf.getShort() & 0xFFFF;
+        if (buf.remaining() < len) throw new EOFException();
+
+        char[] chars = new char[len];
+        int count = 0;
+        int end = buf.position() + len;
+
+        while (buf.position() < end) {
+            int a = buf.get() & 0xFF;
+            if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if ((a & 0xE0) == 0xC0) {
+                if (buf.position() + 1 > end) throw new UTFDataFormatException("Truncated string");
+                int b = buf.get() & 0xFF;
+                if ((b & 0xC0) != 0x80) throw new UTFDataFormatException("Malformed string");
+                chars[count++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
+            } else if ((a & 0xF0) == 0xE0) {
+                if (buf.position() + 2 > end) throw new UTFDataFormatException("Truncated string");
+                int b = buf.get() & 0xFF;
+                int c = buf.get() & 0xFF;
+                if ((b & 0xC0) != 0x80 || (c & 0xC0) != 0x80)
+                    throw new UTFDataFormatException("Malformed string");
+                chars[count++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));
+            } else {
+                throw new UTFDataFormatException("Malformed string");
+            }
+        }
+
+        return new String(chars, 0, count);
+    }
+
+    private ModifiedUtf8() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,98 @@
+package com.swrobotics.messenger.client;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer, single-consumer queue of received messages, used to pass messages
+ * from the receive thread to the thread calling {@link MessengerClient#readMessages}. The queue is
+ * a ring of preallocated slots whose data arrays are reused, so passing a message through it does
+ * not allocate once the slots have grown to fit the traffic.
+ */
+final class ReceiveQueue {
+    // Slot arrays larger than this are dropped after use, so one large
+    // message doesn't hold memory in its slot forever
+    private static final int MAX_RETAINED_DATA = 64 * 1024;
+
+    /** One message in the queue. Only the side that currently owns the slot may access it. */
+    static final class Slot {
+        String type;
+        byte[] data;
+        int length;
+        long receiveTime;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+
+    // Total number of slots consumed and published. Each is only written by
+    // one side, and read by the other to check for space or messages.
+    private final AtomicLong head;
+    private final AtomicLong tail;
+
+    /**
+     * @param capacity maximum number of queued messages, must be a power of two
+     */
+    ReceiveQueue(int capacity) {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two");
+
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) slots[i] = new Slot();
+        mask = capacity - 1;
+        head = new AtomicLong(0);
+        tail = new AtomicLong(0);
+    }
+
+    /**
+     * Copies a message into the next free slot and publishes it. Only called by the producer.
+     *
+     * @param receiveTime {@link System#nanoTime} when the message was received
+     * @return false if the queue is full
+     */
+    boolean offer(String type, byte[] data, int length, long receiveTime) {
+        long t = tail.get();
+        if (t - head.get() == slots.length) return false;
+
+        Slot slot = slots[(int) t & mask];
+        if (slot.data == null || slot.data.length < length)
+            slot.data = new byte[Math.max(length, 64)];
+        System.arraycopy(data, 0, slot.data, 0, length);
+        slot.type = type;
+        slot.length = length;
+        slot.receiveTime = receiveTime;
+
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Gets the oldest message without removing it. Only called by the consumer, which must call
+     * {@link #release} once done with the slot.
+     *
+     * @return oldest message, or {@code null} if empty
+     */
+    Slot peek() {
+        long h = head.get();
+        if (h == tail.get()) return null;
+        return slots[(int) h & mask];
+    }
+
+    /** Removes the message returned by {@link #peek}, giving its slot back to the producer. */
+    void release() {
+        long h = head.get();
+        Slot slot = slots[(int) h & mask];
+        slot.type = null;
+        if (slot.data.length > MAX_RETAINED_DATA) slot.data = null;
+
+        head.lazySet(h + 1);
+    }
+
+    /**
+     * Gets the number of queued messages. This is only a snapshot if the other side is active.
+     *
+     * @return number of messages
+     */
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+}
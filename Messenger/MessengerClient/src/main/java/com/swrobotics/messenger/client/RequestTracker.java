@@ -0,0 +1,133 @@
+package com.swrobotics.messenger.client;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of requests waiting for a reply. Replies, failures and timeouts are all handled from
+ * {@link MessengerClient#readMessages}, so the futures complete on the same thread that invokes
+ * message handlers.
+ *
+ * @see MessengerClient#request
+ */
+final class RequestTracker {
+    static final int FEATURE_REQUESTS = 16;
+    static final String REQUEST = "_Request";
+    static final String REPLY = "_Reply";
+    static final String FAILED = "_RequestFailed";
+
+    private static final class Pending {
+        final CompletableFuture<MessageReader> future;
+        final long deadline;
+        final int connection;
+
+        Pending(CompletableFuture<MessageReader> future, long deadline, int connection) {
+            this.future = future;
+            this.deadline = deadline;
+            this.connection = connection;
+        }
+    }
+
+    private final AtomicLong nextId;
+    private final Map<Long, Pending> pending;
+
+    RequestTracker() {
+        nextId = new AtomicLong(0);
+        pending = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gets whether a message type carries a request or reply. These hold message data, so they
+     * are queued and chunked like other messages instead of being sent ahead of them.
+     */
+    static boolean isRequestOrReply(String type) {
+        return type.equals(REQUEST) || type.equals(REPLY);
+    }
+
+    /**
+     * Starts tracking a request.
+     *
+     * @param future future to complete with the reply
+     * @param timeout time in nanoseconds to wait for the reply
+     * @param connection ID of the connection the request is sent on
+     * @return ID for the request
+     */
+    long add(CompletableFuture<MessageReader> future, long timeout, int connection) {
+        long id = nextId.incrementAndGet();
+        pending.put(id, new Pending(future, System.nanoTime() + timeout, connection));
+        return id;
+    }
+
+    /** Stops tracking a request that could not be sent. */
+    void remove(long id) {
+        pending.remove(id);
+    }
+
+    /**
+     * Completes a request with the reply's data.
+     *
+     * @param data data of the {@code _Reply} message
+     * @throws IOException if the reply is malformed
+     */
+    void onReply(ByteBuffer data) throws IOException {
+        try {
+            Pending p = pending.remove(data.getLong());
+            if (p == null) return;
+
+            ModifiedUtf8.read(data);
+            byte[] reply =
+                    Arrays.copyOfRange(
+                            data.array(),
+                            data.arrayOffset() + data.position(),
+                            data.arrayOffset() + data.limit());
+            p.future.complete(new MessageReader(reply));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated reply", e);
+        }
+    }
+
+    /**
+     * Fails a request that the server could not deliver.
+     *
+     * @param data data of the {@code _RequestFailed} message
+     * @throws IOException if the message is malformed
+     */
+    void onFailed(ByteBuffer data) throws IOException {
+        try {
+            Pending p = pending.remove(data.getLong());
+            if (p != null) p.future.completeExceptionally(new IOException(ModifiedUtf8.read(data)));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated request failure", e);
+        }
+    }
+
+    /**
+     * Fails requests that have timed out, or were sent on an earlier connection and so can no
+     * longer be replied to.
+     *
+     * @param connection ID of the current connection
+     */
+    void expire(int connection) {
+        if (pending.isEmpty()) return;
+
+        long now = System.nanoTime();
+        for (Iterator<Pending> iter = pending.values().iterator(); iter.hasNext(); ) {
+            Pending p = iter.next();
+            if (p.connection != connection) {
+                iter.remove();
+                p.future.completeExceptionally(new IOException("Connection lost"));
+            } else if (now - p.deadline >= 0) {
+                iter.remove();
+                p.future.completeExceptionally(new TimeoutException("No reply received"));
+            }
+        }
+    }
+}
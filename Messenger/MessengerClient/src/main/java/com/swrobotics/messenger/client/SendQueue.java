@@ -0,0 +1,500 @@
+package com.swrobotics.messenger.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Queues outgoing messages and writes them to the socket in batches. Senders only copy the message
+ * into a queue, and whichever thread flushes the queue writes everything queued so far with as few
+ * writes as possible, so sending never waits on the socket unless the caller chooses to flush.
+ *
+ * <p>Messages are queued in two lanes. Internal control messages are written at the start of each
+ * batch, ahead of any data messages, and data messages are written in batches of limited size, so
+ * a large transfer can't delay a heartbeat past the watchdog. Frame headers are encoded when the
+ * batch is built rather than when the message is queued, so v2 type IDs are assigned in the order
+ * frames actually go out on the wire.
+ */
+final class SendQueue {
+    // Stop adding data messages to a batch once it reaches this size
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    // Messages larger than this are written straight from the lane instead
+    // of being copied into the batch
+    private static final int DIRECT_WRITE_THRESHOLD = 16 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /** Messages stored back to back in one growable array. */
+    private static final class Lane {
+        String[] types = new String[16];
+        int[] ends = new int[16];
+        Object[] futures = new Object[16];
+        int count;
+        byte[] data = new byte[1024];
+        int size;
+
+        void add(
+                String type,
+                byte[] a,
+                int aOff,
+                int aLen,
+                byte[] b,
+                int bOff,
+                int bLen,
+                CompletableFuture<Void> future) {
+            if (count == types.length) {
+                types = Arrays.copyOf(types, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+                futures = Arrays.copyOf(futures, count * 2);
+            }
+            if (size + aLen + bLen > data.length)
+                data = Arrays.copyOf(data, Math.max(size + aLen + bLen, data.length * 2));
+
+            System.arraycopy(a, aOff, data, size, aLen);
+            System.arraycopy(b, bOff, data, size + aLen, bLen);
+            size += aLen + bLen;
+
+            types[count] = type;
+            ends[count] = size;
+            futures[count] = future;
+            count++;
+        }
+
+        int start(int i) {
+            return i == 0 ? 0 : ends[i - 1];
+        }
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Void> future(int i) {
+            return (CompletableFuture<Void>) futures[i];
+        }
+
+        void clear() {
+            Arrays.fill(types, 0, count, null);
+            Arrays.fill(futures, 0, count, null);
+            count = 0;
+            size = 0;
+        }
+    }
+
+    // Lanes messages are added to. Guarded by queueLock.
+    private final Object queueLock;
+    private Lane controlIn, dataIn;
+    private long queuedBytes;
+    private volatile long maxQueuedBytes;
+    private int nextStreamId;
+    private int generation;
+    private ByteBuffer chunkHeader;
+
+    // Stream to write to after the shared memory switch frame. Set under
+    // queueLock with the frame, so it is visible once the frame is taken.
+    private OutputStream switchOut;
+
+    // Lanes being written, and the output framing state. Guarded by writeLock.
+    private final Object writeLock;
+    private Lane controlOut, dataOut;
+    private int dataOutIndex;
+    private ByteBuffer batch;
+    private OutputStream out;
+    private boolean v2;
+    private final Map<String, Integer> typeIds;
+
+    SendQueue(long maxQueuedBytes) {
+        queueLock = new Object();
+        controlIn = new Lane();
+        dataIn = new Lane();
+        queuedBytes = 0;
+        this.maxQueuedBytes = maxQueuedBytes;
+        nextStreamId = 0;
+        generation = 0;
+        chunkHeader = ByteBuffer.allocate(256);
+
+        writeLock = new Object();
+        controlOut = new Lane();
+        dataOut = new Lane();
+        dataOutIndex = 0;
+        batch = ByteBuffer.allocate(MAX_BATCH_BYTES + DIRECT_WRITE_THRESHOLD + 256);
+        out = null;
+        v2 = false;
+        typeIds = new HashMap<>();
+    }
+
+    void setMaxQueuedBytes(long maxQueuedBytes) {
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    long getQueuedBytes() {
+        synchronized (queueLock) {
+            return queuedBytes;
+        }
+    }
+
+    /**
+     * Prepares to write to a new connection. Anything still queued for the previous connection is
+     * discarded, and its futures fail.
+     *
+     * @param out stream to write to
+     */
+    void reset(OutputStream out) {
+        IOException e = new IOException("Connection was reset");
+        List<CompletableFuture<Void>> failed = new ArrayList<>();
+        synchronized (writeLock) {
+            synchronized (queueLock) {
+                collectFutures(controlIn, 0, failed);
+                collectFutures(dataIn, 0, failed);
+                controlIn.clear();
+                dataIn.clear();
+                queuedBytes = 0;
+                switchOut = null;
+                generation++;
+            }
+            collectFutures(controlOut, 0, failed);
+            collectFutures(dataOut, dataOutIndex, failed);
+            controlOut.clear();
+            dataOut.clear();
+            dataOutIndex = 0;
+
+            this.out = out;
+            v2 = false;
+            typeIds.clear();
+        }
+
+        for (CompletableFuture<Void> future : failed) future.completeExceptionally(e);
+    }
+
+    /**
+     * Adds a message to the queue. Data messages are only accepted if the total size of queued
+     * data messages stays within the limit, or if nothing else is queued. Control messages are
+     * always accepted.
+     *
+     * @param type type of the message
+     * @param data array containing the data, which is copied before this returns
+     * @param offset offset of the data in the array
+     * @param length length of the data in bytes
+     * @param future future to complete once the message is written, or {@code null}
+     * @return whether the message was queued
+     */
+    boolean add(
+            String type, byte[] data, int offset, int length, CompletableFuture<Void> future) {
+        synchronized (queueLock) {
+            if (type.startsWith("_") && !RequestTracker.isRequestOrReply(type)) {
+                controlIn.add(type, data, offset, length, data, 0, 0, future);
+                return true;
+            }
+
+            if (!hasRoom(length)) return false;
+            int before = dataIn.size;
+            dataIn.add(type, data, offset, length, data, 0, 0, future);
+            queuedBytes += dataIn.size - before;
+            return true;
+        }
+    }
+
+    /**
+     * Adds a control message after which all frames are written to a different stream. Frames
+     * before it, including itself, are flushed to the current stream first.
+     *
+     * @param type type of the message
+     * @param next stream to write following frames to
+     */
+    void addSwitch(String type, OutputStream next) {
+        synchronized (queueLock) {
+            switchOut = next;
+            controlIn.add(type, EMPTY, 0, 0, EMPTY, 0, 0, null);
+        }
+    }
+
+    /**
+     * Adds a data message to the queue split into {@code _Chunk} messages, so that other messages
+     * can be written between the chunks.
+     *
+     * @see #add
+     */
+    boolean addChunked(
+            String type,
+            byte[] data,
+            int offset,
+            int length,
+            int chunkSize,
+            CompletableFuture<Void> future) {
+        synchronized (queueLock) {
+            if (!hasRoom(length)) return false;
+            int before = dataIn.size;
+
+            int streamId = ++nextStreamId;
+            for (int pos = 0; pos < length; pos += chunkSize) {
+                int len = Math.min(chunkSize, length - pos);
+                boolean first = pos == 0;
+                boolean last = pos + len == length;
+
+                encodeChunkHeader(streamId, type, length, first, last);
+                dataIn.add(
+                        MessengerClient.CHUNK,
+                        chunkHeader.array(),
+                        0,
+                        chunkHeader.position(),
+                        data,
+                        offset + pos,
+                        len,
+                        last ? future : null);
+            }
+            queuedBytes += dataIn.size - before;
+            return true;
+        }
+    }
+
+    /**
+     * Allocates a stream ID for a message that will be added one chunk at a time with {@link
+     * #addStreamChunk}.
+     *
+     * @return stream ID
+     */
+    int newStreamId() {
+        synchronized (queueLock) {
+            return ++nextStreamId;
+        }
+    }
+
+    /**
+     * Gets the number of times the queue has been reset. Chunks added with {@link
+     * #addStreamChunk} can only continue a message on the connection it started on.
+     *
+     * @return current generation
+     */
+    int getGeneration() {
+        synchronized (queueLock) {
+            return generation;
+        }
+    }
+
+    /**
+     * Adds one chunk of a message whose data is supplied a piece at a time.
+     *
+     * @param generation generation the message was started in
+     * @param streamId stream ID from {@link #newStreamId}
+     * @param type type of the message
+     * @param size total size of the message data
+     * @param first whether this is the first chunk
+     * @param last whether this is the last chunk
+     * @param data array containing the chunk data, which is copied before this returns
+     * @param offset offset of the chunk data in the array
+     * @param length length of the chunk data in bytes
+     * @return whether the chunk was queued. If not, the queue is full, and the chunk should be
+     *     added again once it has been flushed.
+     * @throws IOException if the queue has been reset since the message was started
+     */
+    boolean addStreamChunk(
+            int generation,
+            int streamId,
+            String type,
+            int size,
+            boolean first,
+            boolean last,
+            byte[] data,
+            int offset,
+            int length)
+            throws IOException {
+        synchronized (queueLock) {
+            if (generation != this.generation)
+                throw new IOException("Connection was reset while streaming");
+            if (!hasRoom(length)) return false;
+
+            int before = dataIn.size;
+            encodeChunkHeader(streamId, type, size, first, last);
+            dataIn.add(
+                    MessengerClient.CHUNK,
+                    chunkHeader.array(),
+                    0,
+                    chunkHeader.position(),
+                    data,
+                    offset,
+                    length,
+                    null);
+            queuedBytes += dataIn.size - before;
+            return true;
+        }
+    }
+
+    // Writes the body header of a chunk to chunkHeader. Must hold queueLock.
+    private void encodeChunkHeader(
+            int streamId, String type, int size, boolean first, boolean last) {
+        int headerSize = 4 + 1 + (first ? 2 + ModifiedUtf8.encodedLength(type) + 4 : 0);
+        if (chunkHeader.capacity() < headerSize) chunkHeader = ByteBuffer.allocate(headerSize);
+
+        chunkHeader.clear();
+        chunkHeader.putInt(streamId);
+        chunkHeader.put(
+                (byte)
+                        ((first ? ChunkAssembler.FLAG_FIRST : 0)
+                                | (last ? ChunkAssembler.FLAG_LAST : 0)));
+        if (first) {
+            try {
+                ModifiedUtf8.write(type, chunkHeader);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Message type is too long", e);
+            }
+            chunkHeader.putInt(size);
+        }
+    }
+
+    // Checks whether a data message fits within the queue limit. Must hold queueLock.
+    private boolean hasRoom(int length) {
+        return queuedBytes == 0 || queuedBytes + length <= maxQueuedBytes;
+    }
+
+    /**
+     * Writes everything queued so far. If another thread is already flushing, this waits for it,
+     * then writes whatever it left behind.
+     *
+     * @throws IOException if writing to the socket fails. Futures of any messages that were being
+     *     written fail with the same exception.
+     */
+    void flush() throws IOException {
+        List<CompletableFuture<Void>> done = null;
+        IOException error = null;
+
+        synchronized (writeLock) {
+            try {
+                while (takeQueued()) {
+                    int doneFrom = dataOutIndex;
+
+                    batch.clear();
+                    for (int i = 0; i < controlOut.count; i++) encode(controlOut, i);
+
+                    int dataBytes = 0;
+                    while (dataOutIndex < dataOut.count && dataBytes < MAX_BATCH_BYTES) {
+                        int start = dataOut.start(dataOutIndex);
+                        dataBytes += dataOut.ends[dataOutIndex] - start;
+                        encode(dataOut, dataOutIndex++);
+                    }
+
+                    writeBatch();
+                    out.flush();
+
+                    done = collectFutures(controlOut, 0, done);
+                    for (int i = doneFrom; i < dataOutIndex; i++) {
+                        if (dataOut.futures[i] != null) {
+                            if (done == null) done = new ArrayList<>();
+                            done.add(dataOut.future(i));
+                        }
+                    }
+                    controlOut.clear();
+
+                    synchronized (queueLock) {
+                        queuedBytes -= dataBytes;
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+                List<CompletableFuture<Void>> failed = new ArrayList<>();
+                collectFutures(controlOut, 0, failed);
+                collectFutures(dataOut, dataOutIndex, failed);
+                controlOut.clear();
+                dataOut.clear();
+                dataOutIndex = 0;
+                for (CompletableFuture<Void> future : failed) future.completeExceptionally(e);
+            }
+        }
+
+        // Completed outside the lock, since callbacks may send more messages
+        if (done != null) {
+            for (CompletableFuture<Void> future : done) future.complete(null);
+        }
+        if (error != null) throw error;
+    }
+
+    // Moves newly queued messages into the lanes being written, reusing the
+    // emptied lanes for new messages. Returns whether there is anything to
+    // write. Must hold writeLock.
+    private boolean takeQueued() {
+        synchronized (queueLock) {
+            if (controlIn.count > 0) {
+                Lane l = controlOut;
+                controlOut = controlIn;
+                controlIn = l;
+            }
+
+            if (dataOutIndex == dataOut.count && dataIn.count > 0) {
+                dataOut.clear();
+                Lane l = dataOut;
+                dataOut = dataIn;
+                dataIn = l;
+                dataOutIndex = 0;
+            }
+        }
+
+        return controlOut.count > 0 || dataOutIndex < dataOut.count;
+    }
+
+    // Adds one frame to the batch. Must hold writeLock.
+    private void encode(Lane lane, int i) throws IOException {
+        String type = lane.types[i];
+        int start = lane.start(i);
+        int length = lane.ends[i] - start;
+
+        Integer id = v2 ? typeIds.get(type) : null;
+        int headerSize = id != null ? 5 + 5 : 5 + 2 + ModifiedUtf8.encodedLength(type) + 5;
+        if (batch.remaining() < headerSize) {
+            writeBatch();
+            if (batch.capacity() < headerSize) batch = ByteBuffer.allocate(headerSize);
+        }
+
+        if (v2) {
+            // Each type string is sent once, then referred to by its ID + 1
+            if (id == null) {
+                typeIds.put(type, typeIds.size());
+                Varint.write(0, batch);
+                ModifiedUtf8.write(type, batch);
+            } else {
+                Varint.write(id + 1, batch);
+            }
+            Varint.write(length, batch);
+        } else {
+            ModifiedUtf8.write(type, batch);
+            batch.putInt(length);
+        }
+
+        if (length > DIRECT_WRITE_THRESHOLD) {
+            writeBatch();
+            out.write(lane.data, start, length);
+        } else {
+            if (batch.remaining() < length) writeBatch();
+            batch.put(lane.data, start, length);
+        }
+
+        // Everything after the upgrade marker uses v2 framing
+        if (type.equals(MessengerClient.UPGRADE)) v2 = true;
+
+        if (type.equals(SharedMemory.SWITCH)) {
+            writeBatch();
+            out.flush();
+            synchronized (queueLock) {
+                out = switchOut;
+                switchOut = null;
+            }
+        }
+    }
+
+    private void writeBatch() throws IOException {
+        if (batch.position() > 0) out.write(batch.array(), 0, batch.position());
+        batch.clear();
+    }
+
+    private static List<CompletableFuture<Void>> collectFutures(
+            Lane lane, int from, List<CompletableFuture<Void>> list) {
+        for (int i = from; i < lane.count; i++) {
+            if (lane.futures[i] != null) {
+                if (list == null) list = new ArrayList<>();
+                list.add(lane.future(i));
+            }
+        }
+        return list;
+    }
+}
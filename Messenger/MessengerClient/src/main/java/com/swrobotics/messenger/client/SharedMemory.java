@@ -0,0 +1,198 @@
+package com.swrobotics.messenger.client;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pair of {@link SharedRing}s in a memory-mapped file created by a server on the same host, used
+ * in place of the socket. Each side writes a byte to the socket to wake up the other when it
+ * writes to a ring the other is waiting on, so the socket stays open but carries no messages.
+ */
+final class SharedMemory {
+    static final int FEATURE_SHARED_MEMORY = 4;
+    static final String OFFER = "_ShmOffer";
+    static final String SWITCH = "_ShmSwitch";
+
+    private static final int MAGIC = 0x4D53484D; // "MSHM"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = 64;
+
+    // How long to wait before checking again when the ring is full
+    private static final long RING_FULL_WAIT = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final SharedRing in;
+    private final SharedRing out;
+
+    private SharedMemory(SharedRing in, SharedRing out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Maps a file offered by the server.
+     *
+     * @param path path of the file
+     * @return shared memory from the client's side
+     * @throws IOException if the file can't be mapped or is not valid
+     */
+    static SharedMemory open(String path) throws IOException {
+        MappedByteBuffer map;
+        try (RandomAccessFile raf = new RandomAccessFile(new File(path), "rw")) {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+
+        if (map.capacity() < FILE_HEADER_SIZE || map.getInt(0) != MAGIC)
+            throw new IOException("Not a Messenger shared memory file: " + path);
+        if (map.getInt(4) != VERSION)
+            throw new IOException("Unsupported shared memory version " + map.getInt(4));
+
+        int capacity = map.getInt(8);
+        int ringSize = SharedRing.HEADER_SIZE + capacity;
+        if (Integer.bitCount(capacity) != 1 || map.capacity() < FILE_HEADER_SIZE + 2 * ringSize)
+            throw new IOException("Invalid shared memory ring size " + capacity);
+
+        SharedRing toServer = new SharedRing(map, FILE_HEADER_SIZE, capacity);
+        SharedRing fromServer = new SharedRing(map, FILE_HEADER_SIZE + ringSize, capacity);
+        return new SharedMemory(fromServer, toServer);
+    }
+
+    /**
+     * Gets whether a host refers to this machine, so that a server there could share memory.
+     *
+     * @param host host name or address
+     * @return whether the host is local
+     */
+    static boolean isLocalHost(String host) {
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            return address.isLoopbackAddress()
+                    || address.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(address) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates a stream that reads from the server's ring.
+     *
+     * @param socketIn socket input, read to wait for wakeups
+     * @param socketOut socket output, written to wake up the server
+     * @return input stream
+     */
+    InputStream openInputStream(InputStream socketIn, Wakeup socketOut) {
+        return new RingInputStream(in, socketIn, socketOut);
+    }
+
+    /**
+     * Creates a stream that writes to the client's ring.
+     *
+     * @param socketOut socket output, written to wake up the server
+     * @return output stream
+     */
+    OutputStream openOutputStream(Wakeup socketOut) {
+        return new RingOutputStream(out, socketOut);
+    }
+
+    /** Writes wakeup bytes to the socket. Shared by both streams, since either may use it. */
+    static final class Wakeup {
+        private final OutputStream socketOut;
+
+        Wakeup(OutputStream socketOut) {
+            this.socketOut = socketOut;
+        }
+
+        synchronized void send() throws IOException {
+            socketOut.write(0);
+            socketOut.flush();
+        }
+    }
+
+    private static final class RingInputStream extends InputStream {
+        private final SharedRing ring;
+        private final InputStream socketIn;
+        private final Wakeup wakeup;
+
+        RingInputStream(SharedRing ring, InputStream socketIn, Wakeup wakeup) {
+            this.ring = ring;
+            this.socketIn = socketIn;
+            this.wakeup = wakeup;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+
+            int read;
+            while ((read = ring.read(b, off, len)) == 0) {
+                // Check again after setting the flag, in case the server
+                // wrote in between and didn't see it
+                ring.setReaderWaiting();
+                if (ring.available() > 0) continue;
+
+                if (socketIn.read() < 0) throw new EOFException("Server closed the connection");
+            }
+
+            // Reading may have made room for writes that were waiting for it
+            if (ring.takeWriterWaiting()) wakeup.send();
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return ring.available();
+        }
+    }
+
+    private static final class RingOutputStream extends OutputStream {
+        private final SharedRing ring;
+        private final Wakeup wakeup;
+
+        RingOutputStream(SharedRing ring, Wakeup wakeup) {
+            this.ring = ring;
+            this.wakeup = wakeup;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int written = ring.write(b, off, len);
+                off += written;
+                len -= written;
+
+                if (len > 0) {
+                    // Ring is full, make sure the server is reading it
+                    flush();
+                    LockSupport.parkNanos(RING_FULL_WAIT);
+                    if (Thread.interrupted()) throw new IOException("Interrupted while writing");
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (ring.takeReaderWaiting()) wakeup.send();
+        }
+    }
+}
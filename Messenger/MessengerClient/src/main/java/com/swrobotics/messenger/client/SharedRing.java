@@ -0,0 +1,154 @@
+package com.swrobotics.messenger.client;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Single-producer, single-consumer byte ring stored in shared memory. The producer and consumer
+ * may be in different processes. Neither side ever blocks here. Instead, each side can set a
+ * waiting flag, which the other side clears when it makes progress and then notifies the waiting
+ * side through some other channel.
+ *
+ * <p>Positions and flags are accessed with volatile semantics, so a side that sets its waiting
+ * flag and then checks the ring again can't miss progress made by the other side in between.
+ *
+ * <p>The server creates the rings with {@code com.swrobotics.messenger.server.SharedRing}. Any
+ * change to the header layout must be made there too, or the two processes will disagree about
+ * where the positions and flags are.
+ */
+final class SharedRing {
+    static final int HEADER_SIZE = 128;
+
+    // Header layout. The producer and consumer fields are in separate cache
+    // lines so that the two sides don't contend on every update.
+    private static final int WRITE_POS = 0;
+    private static final int WRITER_WAITING = 8;
+    private static final int READ_POS = 64;
+    private static final int READER_WAITING = 72;
+
+    private static final VarHandle LONG =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INT =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer header;
+    private final ByteBuffer data;
+    private final int capacity;
+    private final int mask;
+
+    /**
+     * @param map shared memory mapping
+     * @param offset offset of the ring's header within the mapping, must be a multiple of 8
+     * @param capacity size of the ring's data in bytes, must be a power of two
+     */
+    SharedRing(ByteBuffer map, int offset, int capacity) {
+        this.capacity = capacity;
+        mask = capacity - 1;
+
+        header = slice(map, offset, HEADER_SIZE);
+        data = slice(map, offset + HEADER_SIZE, capacity);
+    }
+
+    private static ByteBuffer slice(ByteBuffer map, int offset, int length) {
+        ByteBuffer dup = map.duplicate();
+        dup.position(offset).limit(offset + length);
+        return dup.slice();
+    }
+
+    /**
+     * Gets the number of bytes available to read.
+     *
+     * @return available byte count
+     */
+    int available() {
+        long write = (long) LONG.getVolatile(header, WRITE_POS);
+        long read = (long) LONG.getVolatile(header, READ_POS);
+        return (int) (write - read);
+    }
+
+    /**
+     * Writes as many bytes as there is room for. Only called by the producer.
+     *
+     * @param b array containing the data
+     * @param off offset of the data in the array
+     * @param len number of bytes to write
+     * @return number of bytes written
+     */
+    int write(byte[] b, int off, int len) {
+        long write = (long) LONG.getVolatile(header, WRITE_POS);
+        long read = (long) LONG.getVolatile(header, READ_POS);
+        int count = Math.min(capacity - (int) (write - read), len);
+        if (count == 0) return 0;
+
+        int index = (int) write & mask;
+        int first = Math.min(count, capacity - index);
+        data.position(index);
+        data.put(b, off, first);
+        if (first < count) {
+            data.position(0);
+            data.put(b, off + first, count - first);
+        }
+
+        LONG.setVolatile(header, WRITE_POS, write + count);
+        return count;
+    }
+
+    /**
+     * Reads as many bytes as are available, up to a limit. Only called by the consumer.
+     *
+     * @param b array to read into
+     * @param off offset in the array to start at
+     * @param len maximum number of bytes to read
+     * @return number of bytes read
+     */
+    int read(byte[] b, int off, int len) {
+        long write = (long) LONG.getVolatile(header, WRITE_POS);
+        long read = (long) LONG.getVolatile(header, READ_POS);
+        int count = Math.min((int) (write - read), len);
+        if (count == 0) return 0;
+
+        int index = (int) read & mask;
+        int first = Math.min(count, capacity - index);
+        data.position(index);
+        data.get(b, off, first);
+        if (first < count) {
+            data.position(0);
+            data.get(b, off + first, count - first);
+        }
+
+        LONG.setVolatile(header, READ_POS, read + count);
+        return count;
+    }
+
+    /** Marks the consumer as waiting for the producer to write. */
+    void setReaderWaiting() {
+        INT.setVolatile(header, READER_WAITING, 1);
+    }
+
+    /**
+     * Clears the consumer's waiting flag. Called by the producer after writing.
+     *
+     * @return whether the consumer was waiting and should be notified
+     */
+    boolean takeReaderWaiting() {
+        return (int) INT.getVolatile(header, READER_WAITING) != 0
+                && INT.compareAndSet(header, READER_WAITING, 1, 0);
+    }
+
+    /** Marks the producer as waiting for the consumer to make room. */
+    void setWriterWaiting() {
+        INT.setVolatile(header, WRITER_WAITING, 1);
+    }
+
+    /**
+     * Clears the producer's waiting flag. Called by the consumer after reading.
+     *
+     * @return whether the producer was waiting and should be notified
+     */
+    boolean takeWriterWaiting() {
+        return (int) INT.getVolatile(header, WRITER_WAITING) != 0
+                && INT.compareAndSet(header, WRITER_WAITING, 1, 0);
+    }
+}
@@ -0,0 +1,136 @@
+package com.swrobotics.messenger.client;
+
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conflates outgoing messages of a type that describes the current value of some state, such as
+ * a position. Only the most recent value matters, so a new value replaces one that hasn't been
+ * sent yet, values identical to the last one sent are not sent again, and values are sent at most
+ * once per minimum interval. A value held back by the interval is sent once the interval ends.
+ */
+final class StateTopic {
+    private final MessengerClient client;
+    private final ScheduledExecutorService executor;
+    private final String type;
+    private final long minInterval;
+    private final Runnable deferredFlush;
+
+    // Guarded by this. latest holds the value waiting to be sent if pending
+    // is set, and sent holds the last value that was queued.
+    private byte[] latest, sent;
+    private int latestLength, sentLength;
+    private boolean pending, hasSent;
+    private boolean flushScheduled;
+    private long lastFlushTime;
+
+    StateTopic(
+            MessengerClient client,
+            ScheduledExecutorService executor,
+            String type,
+            long minInterval) {
+        this.client = client;
+        this.executor = executor;
+        this.type = type;
+        this.minInterval = minInterval;
+        deferredFlush = this::flushDeferred;
+
+        latest = new byte[64];
+        sent = new byte[64];
+        pending = false;
+        hasSent = false;
+        flushScheduled = false;
+        lastFlushTime = System.nanoTime() - minInterval;
+    }
+
+    /**
+     * Sets the current value, queueing it to be sent if the minimum interval has passed.
+     *
+     * @param data array containing the value, which is copied before this returns
+     * @param offset offset of the value in the array
+     * @param length length of the value in bytes
+     * @return whether a message was queued
+     */
+    synchronized boolean offer(byte[] data, int offset, int length) {
+        // A lossy value may never have arrived, so it is repeated instead
+        if (hasSent
+                && !client.isLossyType(type)
+                && Arrays.equals(sent, 0, sentLength, data, offset, offset + length)) {
+            // Back to what the receiver already has
+            pending = false;
+            return false;
+        }
+
+        if (latest.length < length) latest = new byte[Math.max(length, latest.length * 2)];
+        System.arraycopy(data, offset, latest, 0, length);
+        latestLength = length;
+        pending = true;
+
+        long now = System.nanoTime();
+        if (now - lastFlushTime >= minInterval) return flush(now);
+
+        if (!flushScheduled) {
+            try {
+                executor.schedule(
+                        deferredFlush, lastFlushTime + minInterval - now, TimeUnit.NANOSECONDS);
+                flushScheduled = true;
+            } catch (RejectedExecutionException e) {
+                // Client is shutting down
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues the pending value now, ignoring the minimum interval.
+     *
+     * @return whether a message was queued
+     */
+    synchronized boolean flushPending() {
+        return pending && flush(System.nanoTime());
+    }
+
+    /**
+     * Queues the latest value again for a new connection, since the new server has not received it
+     * yet.
+     *
+     * @return whether a message was queued
+     */
+    synchronized boolean resend() {
+        if (!pending && hasSent) {
+            byte[] b = latest;
+            latest = sent;
+            latestLength = sentLength;
+            sent = b;
+            pending = true;
+        }
+        hasSent = false;
+
+        return flushPending();
+    }
+
+    private void flushDeferred() {
+        boolean queued;
+        synchronized (this) {
+            flushScheduled = false;
+            queued = flushPending();
+        }
+        if (queued) client.sendQueued();
+    }
+
+    // Must hold this
+    private boolean flush(long now) {
+        if (!client.queueMessage(type, latest, 0, latestLength, null)) return false;
+
+        byte[] b = sent;
+        sent = latest;
+        sentLength = latestLength;
+        latest = b;
+        hasSent = true;
+        pending = false;
+        lastFlushTime = now;
+        return true;
+    }
+}
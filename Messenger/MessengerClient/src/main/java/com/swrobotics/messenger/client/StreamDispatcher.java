@@ -0,0 +1,131 @@
+package com.swrobotics.messenger.client;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Passes the chunks of streamed messages to their {@link StreamHandler}s. Only accessed by the
+ * thread calling {@link MessengerClient#readMessages}. Chunks have already been checked by the
+ * {@link ChunkAssembler} when they arrive here.
+ */
+final class StreamDispatcher {
+    /** Message whose pieces are being handled. */
+    private static final class Stream {
+        final String type;
+        final MessageHandler handler;
+
+        Stream(String type, MessageHandler handler) {
+            this.type = type;
+            this.handler = handler;
+        }
+    }
+
+    private final Map<String, StreamHandler> streamHandlers;
+    private final MessageReader reader;
+    private final Map<Integer, Stream> streams;
+    private int connectionId;
+
+    /**
+     * @param streamHandlers stream handlers by exact type
+     * @param reader reader to reuse for each piece
+     */
+    StreamDispatcher(Map<String, StreamHandler> streamHandlers, MessageReader reader) {
+        this.streamHandlers = streamHandlers;
+        this.reader = reader;
+        streams = new HashMap<>();
+    }
+
+    /**
+     * Handles a message received in one piece.
+     *
+     * @return whether the type has a stream handler. If not, the message should be handled
+     *     normally.
+     */
+    boolean dispatchWhole(String type, byte[] data, int offset, int length) {
+        StreamHandler streamHandler = streamHandlers.get(type);
+        if (streamHandler == null) return false;
+
+        MessageHandler handler = begin(streamHandler, type, length);
+        if (handler != null) {
+            reader.set(data, offset, length);
+            handle(handler, type, reader);
+        }
+        return true;
+    }
+
+    /**
+     * Handles one chunk of a streamed message.
+     *
+     * @param data data of the {@code _Chunk} message
+     * @param length length of the data
+     * @param connectionId ID of the current connection. Stream IDs restart on each connection, so
+     *     streams still in progress are dropped when it changes.
+     * @return type of the message the chunk belongs to, or {@code null} if it was dropped
+     * @throws IOException if the chunk is malformed
+     */
+    String dispatchChunk(byte[] data, int length, int connectionId) throws IOException {
+        if (connectionId != this.connectionId) {
+            streams.clear();
+            this.connectionId = connectionId;
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, length);
+        Stream stream;
+        int flags;
+        try {
+            int streamId = buf.getInt();
+            flags = buf.get();
+
+            if ((flags & ChunkAssembler.FLAG_FIRST) != 0) {
+                String type = ModifiedUtf8.read(buf);
+                int size = buf.getInt();
+
+                StreamHandler streamHandler = streamHandlers.get(type);
+                MessageHandler handler =
+                        streamHandler == null ? null : begin(streamHandler, type, size);
+                stream = new Stream(type, handler);
+                streams.put(streamId, stream);
+            } else {
+                stream = streams.get(streamId);
+            }
+
+            if ((flags & ChunkAssembler.FLAG_LAST) != 0) streams.remove(streamId);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated chunk", e);
+        }
+
+        // Left over from a previous connection
+        if (stream == null) return null;
+
+        if (stream.handler != null) {
+            reader.set(data, buf.position(), length - buf.position());
+            handle(stream.handler, stream.type, reader);
+        }
+        return stream.type;
+    }
+
+    // Handlers are guarded the same way as in HandlerIndex, so that an
+    // exception in one can't escape readMessages(). If beginning a stream
+    // fails, the rest of its pieces are dropped.
+    private static MessageHandler begin(StreamHandler streamHandler, String type, int size) {
+        try {
+            return streamHandler.begin(type, size);
+        } catch (Throwable t) {
+            System.err.println("Error in stream handler " + t.toString() + ":");
+            t.printStackTrace();
+            return null;
+        }
+    }
+
+    private static void handle(MessageHandler handler, String type, MessageReader reader) {
+        try {
+            handler.handle(type, reader);
+        } catch (Throwable t) {
+            System.err.println("Error in stream handler " + t.toString() + ":");
+            t.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.swrobotics.messenger.client;
+
+/**
+ * Handles large messages piece by piece as they arrive, instead of after the whole message has
+ * been received.
+ *
+ * @see MessengerClient#addStreamHandler
+ */
+@FunctionalInterface
+public interface StreamHandler {
+    /**
+     * Called when a message starts arriving. The returned handler is invoked with a reader for
+     * each piece of the message, in order, and the message is complete once {@code size} bytes
+     * have been read from the pieces. Pieces of other messages may be handled in between.
+     *
+     * @param type message type
+     * @param size total size of the message data in bytes
+     * @return handler for the pieces, or {@code null} to skip the message
+     */
+    MessageHandler begin(String type, int size);
+}
@@ -0,0 +1,39 @@
+package com.swrobotics.messenger.client;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes non-negative {@code int}s as unsigned LEB128 variable-length integers, as used
+ * by version 2 of the Messenger protocol.
+ *
+ * <p>Reduced copy of {@code com.swrobotics.messenger.server.Varint}, which decodes from buffers
+ * instead of streams.
+ */
+final class Varint {
+    static void write(int value, ByteBuffer buf) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    static int read(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) throw new IOException("Varint out of range");
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private Varint() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,92 @@
+package com.swrobotics.messenger.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Keeps a bridge connection open to another server, reconnecting whenever it is lost. This server
+ * acts as the client in the connection's handshake, and the other server accepts it like any
+ * client before both sides switch to bridging. Only one of the two servers should be configured
+ * to connect.
+ *
+ * @see BridgeTable
+ */
+public final class BridgeConnector implements Runnable {
+    /** Name this server identifies itself with to the other server. */
+    public static final String NAME = "Messenger Bridge";
+
+    private static final int CONNECT_TIMEOUT = 1000; // Milliseconds
+    private static final long RETRY_INTERVAL = 2000; // Milliseconds
+
+    private final String host;
+    private final int port;
+    private final IoThread ioThread;
+    private final Object lock;
+    private boolean connected;
+
+    /**
+     * @param host host name of the other server
+     * @param port port of the other server
+     * @param ioThread thread to service the connection on
+     */
+    public BridgeConnector(String host, int port, IoThread ioThread) {
+        this.host = host;
+        this.port = port;
+        this.ioThread = ioThread;
+        lock = new Object();
+        connected = false;
+    }
+
+    @Override
+    public void run() {
+        while (!Thread.interrupted()) {
+            try {
+                SocketChannel channel = SocketChannel.open();
+                try {
+                    channel.socket().connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    IoThread.closeQuietly(channel);
+                    throw e;
+                }
+                System.out.println("Bridge connected to " + host + ":" + port);
+
+                synchronized (lock) {
+                    connected = true;
+                    ioThread.addBridgeChannel(channel, this);
+                    while (connected) lock.wait();
+                }
+            } catch (IOException e) {
+                // Expected while the other server is down, so no stack trace
+                System.err.println("Failed to connect bridge to " + host + ":" + port);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            try {
+                Thread.sleep(RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+    }
+
+    /** Called once the bridge connection has been closed, so that it can be reopened. */
+    void onClosed() {
+        synchronized (lock) {
+            connected = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Gets the name of the bridge connection, as shown for the client that represents it.
+     *
+     * @return connection name
+     */
+    public String getName() {
+        return "Bridge to " + host + ":" + port;
+    }
+}
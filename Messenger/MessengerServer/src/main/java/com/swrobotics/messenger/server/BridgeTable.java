@@ -0,0 +1,123 @@
+package com.swrobotics.messenger.server;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps bridged servers informed of which message types this server's own clients listen to. A
+ * bridge is a single connection between two servers, over which each side sends {@code _Listen}
+ * and {@code _Unlisten} messages for the patterns its local clients are subscribed to. Each server
+ * then subscribes the bridge to those patterns like any other client, so only messages that have
+ * a subscriber on the other side cross the link.
+ *
+ * <p>Messages received from a bridge are never forwarded to another bridge, and subscriptions made
+ * by a bridge are never advertised to another bridge, so messages can't loop between servers.
+ * This also means messages only cross one bridge, so bridged servers should be connected
+ * directly.
+ *
+ * @see BridgeConnector
+ */
+public final class BridgeTable {
+    /** Feature bit indicating the peer is a server that can be bridged with. */
+    public static final int FEATURE_BRIDGE = 32;
+
+    // Number of local clients subscribed to each pattern
+    private final Map<String, Integer> localPatterns;
+    private final Set<Client> bridges;
+
+    public BridgeTable() {
+        localPatterns = new HashMap<>();
+        bridges = new HashSet<>();
+    }
+
+    /**
+     * Starts advertising local subscriptions to a bridge, beginning with every pattern currently
+     * subscribed to.
+     *
+     * @param bridge newly connected bridge
+     */
+    public synchronized void addBridge(Client bridge) {
+        bridges.add(bridge);
+        for (String pattern : localPatterns.keySet()) {
+            bridge.sendMessage(patternMessage(RemoteClient.LISTEN, pattern));
+        }
+    }
+
+    public synchronized void removeBridge(Client bridge) {
+        bridges.remove(bridge);
+    }
+
+    /**
+     * Records that a local client has subscribed to a pattern. If it is the first to, the bridges
+     * are told to start forwarding messages that match it.
+     *
+     * @param pattern pattern subscribed to
+     */
+    public synchronized void onSubscribe(String pattern) {
+        if (localPatterns.merge(pattern, 1, Integer::sum) == 1)
+            sendToBridges(RemoteClient.LISTEN, pattern);
+    }
+
+    /**
+     * Records that a local client has unsubscribed from a pattern. If it was the last one, the
+     * bridges are told to stop forwarding messages that match it.
+     *
+     * @param pattern pattern unsubscribed from
+     */
+    public synchronized void onUnsubscribe(String pattern) {
+        Integer count = localPatterns.get(pattern);
+        if (count == null) return;
+
+        if (count > 1) {
+            localPatterns.put(pattern, count - 1);
+        } else {
+            localPatterns.remove(pattern);
+            sendToBridges(RemoteClient.UNLISTEN, pattern);
+        }
+    }
+
+    private void sendToBridges(String type, String pattern) {
+        if (bridges.isEmpty()) return;
+
+        Message msg = patternMessage(type, pattern);
+        for (Client bridge : bridges) {
+            bridge.sendMessage(msg);
+        }
+    }
+
+    private static Message patternMessage(String type, String pattern) {
+        ByteBuffer data = ByteBuffer.allocate(2 + ModifiedUtf8.encodedLength(pattern));
+        try {
+            ModifiedUtf8.write(pattern, data);
+        } catch (UTFDataFormatException e) {
+            throw new IllegalArgumentException("Pattern is too long", e);
+        }
+        data.flip();
+        return new Message(type, data);
+    }
+
+    /**
+     * Removes bridges from a list of recipients, for messages that were received from a bridge.
+     *
+     * @param clients recipients
+     * @return recipients that are not bridges
+     */
+    public static List<Client> withoutBridges(List<Client> clients) {
+        List<Client> out = null;
+        for (int i = 0; i < clients.size(); i++) {
+            Client client = clients.get(i);
+            if (client.isBridge()) {
+                if (out == null) out = new ArrayList<>(clients.subList(0, i));
+            } else if (out != null) {
+                out.add(client);
+            }
+        }
+        return out == null ? clients : out;
+    }
+}
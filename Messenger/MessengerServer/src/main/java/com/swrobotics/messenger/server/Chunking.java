@@ -0,0 +1,179 @@
+package com.swrobotics.messenger.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Splits large messages into {@code _Chunk} frames so that other frames, such as heartbeats, can
+ * be interleaved with them, and reassembles received chunks into whole messages. Chunking is only
+ * used with peers that advertise {@link #FEATURE_CHUNKING} in their {@code _Features} message.
+ */
+public final class Chunking {
+    public static final String FEATURES = "_Features";
+    public static final String CHUNK = "_Chunk";
+
+    /** Feature bit indicating the peer understands {@code _Chunk} messages. */
+    public static final int FEATURE_CHUNKING = 1;
+
+    /** Maximum number of payload bytes carried by one chunk. */
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    private static final int FLAG_FIRST = 1;
+    private static final int FLAG_LAST = 2;
+
+    /**
+     * Gets whether a message is large enough that it should be chunked.
+     *
+     * @param msg message to check
+     * @return whether to chunk
+     */
+    public static boolean shouldChunk(Message msg) {
+        return msg.getDataSize() > CHUNK_SIZE;
+    }
+
+    /**
+     * Encodes the body header of one chunk. The chunk's payload must be written immediately after
+     * it, and the whole body sent as a {@code _Chunk} message.
+     *
+     * @param streamId ID identifying the message being chunked, unique per connection
+     * @param msg message being chunked
+     * @param offset offset of this chunk within the message data
+     * @param length number of data bytes in this chunk
+     * @return encoded body header, ready to write
+     */
+    public static ByteBuffer encodeHeader(int streamId, Message msg, int offset, int length)
+            throws UTFDataFormatException {
+        boolean first = offset == 0;
+        boolean last = offset + length == msg.getDataSize();
+
+        String type = msg.getType();
+        ByteBuffer buf =
+                ByteBuffer.allocate(4 + 1 + (first ? 2 + ModifiedUtf8.encodedLength(type) + 4 : 0));
+        buf.putInt(streamId);
+        buf.put((byte) ((first ? FLAG_FIRST : 0) | (last ? FLAG_LAST : 0)));
+        if (first) {
+            ModifiedUtf8.write(type, buf);
+            buf.putInt(msg.getDataSize());
+        }
+        buf.flip();
+
+        return buf;
+    }
+
+    /**
+     * Reassembles chunks received from one connection. Buffers grow as chunks arrive rather than
+     * being allocated at the declared size up front, and the data buffered for messages still in
+     * progress is limited, so a peer can only make the server hold as much memory as it has
+     * actually sent.
+     */
+    public static final class Assembler {
+        // Buffers start at this size and double as needed, up to the
+        // declared size of the message
+        private static final int INITIAL_CAPACITY = 64 * 1024;
+
+        private static final class Partial {
+            final String type;
+            final int size;
+            final int dataOffset;
+            byte[] frame;
+            int position;
+
+            Partial(String type, int size) throws UTFDataFormatException {
+                this.type = type;
+                this.size = size;
+
+                // Build the final frame directly so the message can be forwarded without copying
+                ByteBuffer header = ByteBuffer.allocate(2 + ModifiedUtf8.encodedLength(type) + 4);
+                ModifiedUtf8.write(type, header);
+                header.putInt(size);
+
+                dataOffset = header.position();
+                frame = new byte[dataOffset + Math.min(size, INITIAL_CAPACITY)];
+                System.arraycopy(header.array(), 0, frame, 0, dataOffset);
+                position = dataOffset;
+            }
+
+            int received() {
+                return position - dataOffset;
+            }
+        }
+
+        private final int maxMessageSize;
+        private final Map<Integer, Partial> partials = new HashMap<>();
+        private long buffered;
+
+        /**
+         * @param maxMessageSize largest message that can be reassembled, which also limits the
+         *     total data buffered for incomplete messages
+         */
+        public Assembler(int maxMessageSize) {
+            this.maxMessageSize = maxMessageSize;
+        }
+
+        /**
+         * Adds a received chunk.
+         *
+         * @param chunk data of the {@code _Chunk} message
+         * @return the complete message if this was the last chunk, otherwise {@code null}
+         * @throws IOException if the chunk is malformed or the message is too large
+         */
+        public Message accept(ByteBuffer chunk) throws IOException {
+            if (chunk.remaining() < 5) throw new EOFException("Truncated chunk header");
+            int streamId = chunk.getInt();
+            int flags = chunk.get();
+
+            Partial partial;
+            if ((flags & FLAG_FIRST) != 0) {
+                String type = ModifiedUtf8.read(chunk);
+                if (chunk.remaining() < 4) throw new EOFException("Truncated chunk header");
+                int size = chunk.getInt();
+                if (size < 0) throw new IOException("Invalid chunked message size " + size);
+                if (size > maxMessageSize)
+                    throw new IOException(
+                            "Chunked message of "
+                                    + size
+                                    + " bytes exceeds maximum size of "
+                                    + maxMessageSize);
+
+                partial = new Partial(type, size);
+                Partial replaced = partials.put(streamId, partial);
+                if (replaced != null) buffered -= replaced.received();
+            } else {
+                partial = partials.get(streamId);
+                if (partial == null) throw new IOException("Chunk for unknown stream " + streamId);
+            }
+
+            int len = chunk.remaining();
+            if (partial.received() + len > partial.size)
+                throw new IOException("Chunked message exceeds declared size");
+            if (buffered + len > maxMessageSize)
+                throw new IOException("Too much data buffered for incomplete chunked messages");
+
+            if (partial.position + len > partial.frame.length) {
+                int capacity = Math.max(partial.position + len, partial.frame.length * 2);
+                int frameSize = partial.dataOffset + partial.size;
+                partial.frame = Arrays.copyOf(partial.frame, Math.min(capacity, frameSize));
+            }
+            chunk.get(partial.frame, partial.position, len);
+            partial.position += len;
+            buffered += len;
+
+            if ((flags & FLAG_LAST) == 0) return null;
+
+            partials.remove(streamId);
+            buffered -= partial.received();
+            if (partial.received() != partial.size)
+                throw new IOException("Chunked message shorter than declared size");
+            return new Message(partial.type, partial.frame, partial.dataOffset);
+        }
+    }
+
+    private Chunking() {
+        throw new AssertionError();
+    }
+}
@@ -6,4 +6,34 @@ public interface Client {
     void sendMessage(Message msg);
 
     boolean listensTo(String type);
+
+    /**
+     * Gets the state of this client's outbound queue, if it has one.
+     *
+     * @return queue statistics, or {@code null} if the client does not queue messages
+     */
+    default QueueStats getQueueStats() {
+        return null;
+    }
+
+    /**
+     * Gets whether this client can handle requests, and so can be sent {@code _Request} messages
+     * instead of plain ones.
+     *
+     * @return whether requests are supported
+     */
+    default boolean supportsRequests() {
+        return false;
+    }
+
+    /**
+     * Gets whether this client is a bridge to another server, whose subscriptions are those of the
+     * other server's clients.
+     *
+     * @return whether this is a bridge
+     * @see BridgeTable
+     */
+    default boolean isBridge() {
+        return false;
+    }
 }
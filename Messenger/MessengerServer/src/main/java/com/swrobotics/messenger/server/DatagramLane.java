@@ -0,0 +1,251 @@
+package com.swrobotics.messenger.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carries messages of lossy types over UDP, on the same port number as the TCP server. Lossy
+ * messages describe the latest value of something, so losing one is harmless but delaying it
+ * behind a lost TCP segment is not. Each datagram holds one message with a sequence number, and
+ * receivers drop any datagram that is not newer than the last one they accepted of its type.
+ *
+ * <p>Datagram format:
+ *
+ * <pre>
+ * long   token of the client's connection
+ * String type, or empty for a hello
+ * int    sequence number, counted separately for each type and direction
+ * raw    message data
+ * </pre>
+ *
+ * Clients send a hello every heartbeat, and the server replies to each one, so each side knows
+ * whether datagrams currently get through in both directions. Messages are only sent as datagrams
+ * while they do, and over TCP otherwise.
+ *
+ * <p>The client's end is {@code com.swrobotics.messenger.client.DatagramLane}. The classes share
+ * only the datagram format above, so a change to it must be made on both sides.
+ */
+public final class DatagramLane implements Runnable {
+    /** Feature bit indicating the client can send and receive datagrams. */
+    public static final int FEATURE_DATAGRAM = 8;
+
+    /** Message sent to a client over TCP with the token for its datagrams. */
+    public static final String TOKEN = "_Datagram";
+
+    /** Messages larger than this are sent over TCP, so datagrams are never fragmented. */
+    public static final int MAX_DATAGRAM_SIZE = 1400;
+
+    // How long after the last hello a client's datagrams are assumed to get
+    // through. Hellos are sent every heartbeat.
+    private static final long HELLO_TIMEOUT = TimeUnit.SECONDS.toNanos(3);
+
+    /** Datagram state for one connected client. */
+    static final class Peer {
+        private final RemoteClient client;
+        private final long token;
+        private volatile SocketAddress address;
+        private volatile long lastHelloTime;
+        private volatile boolean confirmed;
+
+        // Last sequence number accepted for each type. Only accessed by the
+        // datagram thread.
+        private final Map<String, Integer> receivedSequences;
+
+        // Next sequence number to send for each type
+        private final Map<String, AtomicInteger> sentSequences;
+
+        Peer(RemoteClient client, long token) {
+            this.client = client;
+            this.token = token;
+            receivedSequences = new HashMap<>();
+            sentSequences = new ConcurrentHashMap<>();
+        }
+
+        long getToken() {
+            return token;
+        }
+
+        // Whether the client has recently shown that datagrams get through
+        // in both directions
+        boolean isUp() {
+            return confirmed && System.nanoTime() - lastHelloTime < HELLO_TIMEOUT;
+        }
+    }
+
+    private final DatagramChannel channel;
+    private final Map<Long, Peer> peers;
+    private final ByteBuffer receiveBuf;
+
+    /**
+     * Opens the datagram socket.
+     *
+     * @param port port to bind to
+     * @throws IOException if the socket can't be opened
+     */
+    public DatagramLane(int port) throws IOException {
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+
+        peers = new ConcurrentHashMap<>();
+        receiveBuf = ByteBuffer.allocate(65536);
+    }
+
+    /**
+     * Starts the thread that receives datagrams.
+     *
+     * @param name name of the thread
+     */
+    public void start(String name) {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Assigns a token to a client, which it includes in every datagram it sends.
+     *
+     * @param client client to register
+     * @return datagram state for the client
+     */
+    Peer register(RemoteClient client) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            Peer peer = new Peer(client, random.nextLong());
+            if (peers.putIfAbsent(peer.token, peer) == null) return peer;
+        }
+    }
+
+    /**
+     * Stops accepting datagrams for a client that has disconnected.
+     *
+     * @param peer datagram state of the client
+     */
+    void unregister(Peer peer) {
+        peers.remove(peer.token);
+    }
+
+    /**
+     * Sends a message to a client as a datagram, if datagrams to it currently get through.
+     *
+     * @param peer datagram state of the recipient
+     * @param msg message to send
+     * @return whether the message was sent. If not, it should be sent over TCP instead.
+     */
+    boolean send(Peer peer, Message msg) {
+        SocketAddress address = peer.address;
+        if (address == null || !peer.isUp()) return false;
+
+        String type = msg.getType();
+        int size = 8 + 2 + ModifiedUtf8.encodedLength(type) + 4 + msg.getDataSize();
+        if (size > MAX_DATAGRAM_SIZE) return false;
+
+        AtomicInteger sequence = peer.sentSequences.get(type);
+        if (sequence == null) {
+            sequence = new AtomicInteger();
+            AtomicInteger existing = peer.sentSequences.putIfAbsent(type, sequence);
+            if (existing != null) sequence = existing;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        try {
+            buf.putLong(peer.token);
+            ModifiedUtf8.write(type, buf);
+            buf.putInt(sequence.getAndIncrement());
+            buf.put(msg.getDataView());
+            buf.flip();
+
+            channel.send(buf, address);
+            return true;
+        } catch (IOException e) {
+            // Send it over TCP instead
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            SocketAddress source;
+            try {
+                receiveBuf.clear();
+                source = channel.receive(receiveBuf);
+                receiveBuf.flip();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Exception receiving datagram:");
+                e.printStackTrace();
+                continue;
+            }
+
+            try {
+                onDatagram(source, receiveBuf);
+            } catch (IOException e) {
+                // Malformed datagrams are dropped like lost ones
+            }
+        }
+    }
+
+    private void onDatagram(SocketAddress source, ByteBuffer buf) throws IOException {
+        long receiveTime = System.nanoTime();
+
+        if (buf.remaining() < 8) throw new EOFException("Truncated datagram");
+        Peer peer = peers.get(buf.getLong());
+        if (peer == null) return;
+
+        String type = ModifiedUtf8.read(buf);
+        if (buf.remaining() < 4) throw new EOFException("Truncated datagram");
+        int sequence = buf.getInt();
+
+        if (type.isEmpty()) {
+            // The client's address may change, for example if it is behind NAT
+            peer.address = source;
+            peer.lastHelloTime = receiveTime;
+            peer.confirmed = buf.hasRemaining() && buf.get() != 0;
+            sendHello(peer, source);
+            return;
+        }
+
+        // Drop anything older than what was already accepted. Comparing the
+        // difference handles the sequence number wrapping around.
+        Integer last = peer.receivedSequences.get(type);
+        if (last != null && sequence - last <= 0) return;
+        peer.receivedSequences.put(type, sequence);
+
+        if (type.startsWith("_")) return;
+
+        Message msg = new Message(type, buf);
+        msg.setReceiveTime(receiveTime);
+        msg.markLossy();
+        peer.client.onDatagramMessage(msg);
+    }
+
+    // Replies to a client's hello, telling it that its datagrams get through
+    private void sendHello(Peer peer, SocketAddress address) {
+        ByteBuffer buf = ByteBuffer.allocate(8 + 2 + 4 + 1);
+        buf.putLong(peer.token);
+        buf.putShort((short) 0);
+        buf.putInt(0);
+        buf.put((byte) 1);
+        buf.flip();
+
+        try {
+            channel.send(buf, address);
+        } catch (IOException e) {
+            // The client will stop using datagrams if its hellos go unanswered
+        }
+    }
+}
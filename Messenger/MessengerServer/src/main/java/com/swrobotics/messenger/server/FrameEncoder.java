@@ -0,0 +1,72 @@
+package com.swrobotics.messenger.server;
+
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes the headers of frames sent on one connection. Connections start with v1 framing, where
+ * every frame carries its full type string and a fixed-size length. Once both peers have
+ * advertised {@link #FEATURE_V2}, the connection switches to v2 framing, where each type string is
+ * sent once and then referred to by a numeric ID, and lengths are varints.
+ */
+public final class FrameEncoder {
+    /** Feature bit indicating the peer understands v2 framing. */
+    public static final int FEATURE_V2 = 2;
+
+    /** Sent by a client in v1 framing to indicate all of its later frames use v2 framing. */
+    public static final String UPGRADE = "_Upgrade";
+
+    private final Map<String, Integer> typeIds;
+    private boolean v2;
+
+    public FrameEncoder() {
+        typeIds = new HashMap<>();
+        v2 = false;
+    }
+
+    /** Switches to v2 framing for all frames encoded after this call. */
+    public void upgrade() {
+        v2 = true;
+    }
+
+    public boolean isV2() {
+        return v2;
+    }
+
+    /**
+     * Encodes the header of a frame. The frame's data must be written immediately after it.
+     *
+     * @param type type of the message
+     * @param dataSize size of the message data in bytes
+     * @return encoded header, ready to write
+     */
+    public ByteBuffer encodeHeader(String type, int dataSize) throws UTFDataFormatException {
+        if (!v2) {
+            ByteBuffer buf = ByteBuffer.allocate(2 + ModifiedUtf8.encodedLength(type) + 4);
+            ModifiedUtf8.write(type, buf);
+            buf.putInt(dataSize);
+            buf.flip();
+            return buf;
+        }
+
+        Integer id = typeIds.get(type);
+        ByteBuffer buf;
+        if (id == null) {
+            // Type reference 0 introduces a new type, which gets the next ID
+            typeIds.put(type, typeIds.size());
+            buf =
+                    ByteBuffer.allocate(
+                            1 + 2 + ModifiedUtf8.encodedLength(type) + Varint.size(dataSize));
+            Varint.write(0, buf);
+            ModifiedUtf8.write(type, buf);
+        } else {
+            buf = ByteBuffer.allocate(Varint.size(id + 1) + Varint.size(dataSize));
+            Varint.write(id + 1, buf);
+        }
+        Varint.write(dataSize, buf);
+        buf.flip();
+        return buf;
+    }
+}
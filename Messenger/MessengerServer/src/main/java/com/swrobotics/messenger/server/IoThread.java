@@ -0,0 +1,250 @@
+package com.swrobotics.messenger.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Services a set of client sockets using a single {@link Selector}. Reads are driven by socket
+ * readiness, and writes are attempted as soon as a message is queued for a client, so no thread
+ * ever sleeps waiting for work.
+ */
+public final class IoThread implements Runnable {
+    // How often to check clients for heartbeat timeouts
+    private static final long TIMEOUT_CHECK_INTERVAL = 500;
+
+    // Client whose input is being handled on the current thread
+    private static final ThreadLocal<RemoteClient> READING = new ThreadLocal<>();
+
+    /** Socket waiting to be registered, along with its bridge if it is one. */
+    private static final class Registration {
+        final SocketChannel channel;
+        final BridgeConnector bridge;
+
+        Registration(SocketChannel channel, BridgeConnector bridge) {
+            this.channel = channel;
+            this.bridge = bridge;
+        }
+    }
+
+    private final Selector selector;
+    private final Queue<Registration> pendingRegistrations;
+    private final Queue<RemoteClient> pendingFlushes;
+    private final Queue<RemoteClient> pendingResumes;
+    private final List<RemoteClient> clients;
+    private Thread thread;
+
+    public IoThread() throws IOException {
+        selector = Selector.open();
+        pendingRegistrations = new ConcurrentLinkedQueue<>();
+        pendingFlushes = new ConcurrentLinkedQueue<>();
+        pendingResumes = new ConcurrentLinkedQueue<>();
+        clients = new ArrayList<>();
+    }
+
+    /**
+     * Starts the thread.
+     *
+     * @param name name of the thread
+     */
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    /**
+     * Hands a newly accepted socket to this thread. The socket will be registered with the
+     * selector on the next loop iteration.
+     *
+     * @param channel newly accepted socket
+     */
+    public void addChannel(SocketChannel channel) {
+        pendingRegistrations.add(new Registration(channel, null));
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a connected bridge socket to this thread. The connector is notified once the
+     * connection closes.
+     *
+     * @param channel socket connected to the other server
+     * @param bridge connector that opened the socket
+     */
+    void addBridgeChannel(SocketChannel channel, BridgeConnector bridge) {
+        pendingRegistrations.add(new Registration(channel, bridge));
+        selector.wakeup();
+    }
+
+    /**
+     * Requests that a client's outgoing messages be written as soon as possible. This is safe to
+     * call from any thread.
+     *
+     * @param client client to flush
+     */
+    void requestFlush(RemoteClient client) {
+        pendingFlushes.add(client);
+
+        // If called from a read on this thread, the flush queue is drained before the next select
+        if (!isCurrentThread()) selector.wakeup();
+    }
+
+    /**
+     * Requests that a client paused by a full queue resume reading. This is safe to call from any
+     * thread.
+     *
+     * @param client client to resume
+     */
+    void requestResume(RemoteClient client) {
+        pendingResumes.add(client);
+        if (!isCurrentThread()) selector.wakeup();
+    }
+
+    /**
+     * Gets the client whose input is being handled on the calling thread.
+     *
+     * @return client being read, or {@code null} if the calling thread is not handling any
+     */
+    static RemoteClient currentReader() {
+        return READING.get();
+    }
+
+    @Override
+    public void run() {
+        long lastTimeoutCheck = System.currentTimeMillis();
+
+        while (!Thread.interrupted()) {
+            try {
+                registerPending();
+                resumePending();
+                flushPending();
+
+                selector.select(TIMEOUT_CHECK_INTERVAL);
+
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+
+                    RemoteClient client = (RemoteClient) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            READING.set(client);
+                            client.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) client.flush();
+                    } catch (IOException | RuntimeException e) {
+                        // Anything going wrong with one client, including a
+                        // bug handling its input, only disconnects that client
+                        dropClient(client, key, e);
+                    } finally {
+                        READING.remove();
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastTimeoutCheck >= TIMEOUT_CHECK_INTERVAL) {
+                    lastTimeoutCheck = now;
+                    for (RemoteClient client : new ArrayList<>(clients)) {
+                        try {
+                            client.checkTimeout(now);
+                        } catch (RuntimeException e) {
+                            dropClient(client, client.getKey(), e);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // Keep going, since every client on this thread depends on it
+                System.err.println("Exception in Messenger I/O thread:");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void registerPending() {
+        Registration reg;
+        while ((reg = pendingRegistrations.poll()) != null) {
+            SocketChannel channel = reg.channel;
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                RemoteClient client = new RemoteClient(this, channel, key, reg.bridge);
+                key.attach(client);
+                clients.add(client);
+                MessengerServer.get().addClient(client);
+            } catch (IOException e) {
+                System.err.println("Failed to register client connection:");
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException e2) {
+                    e2.printStackTrace();
+                }
+                if (reg.bridge != null) reg.bridge.onClosed();
+            }
+        }
+    }
+
+    private void resumePending() {
+        RemoteClient client;
+        while ((client = pendingResumes.poll()) != null) {
+            try {
+                READING.set(client);
+                client.resumeReading();
+            } catch (IOException | RuntimeException e) {
+                dropClient(client, client.getKey(), e);
+            } finally {
+                READING.remove();
+            }
+        }
+    }
+
+    private void flushPending() {
+        RemoteClient client;
+        while ((client = pendingFlushes.poll()) != null) {
+            try {
+                client.flush();
+            } catch (IOException | RuntimeException e) {
+                dropClient(client, client.getKey(), e);
+            }
+        }
+    }
+
+    // Disconnects a client after an exception. The key is cancelled even if
+    // the client was already closed, so the selector never reports it again.
+    private void dropClient(RemoteClient client, SelectionKey key, Exception e) {
+        try {
+            client.onError(e);
+        } catch (RuntimeException e2) {
+            System.err.println("Exception while closing client connection:");
+            e2.printStackTrace();
+        }
+        key.cancel();
+        closeQuietly((SocketChannel) key.channel());
+        clients.remove(client);
+    }
+
+    boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    void removeClient(RemoteClient client) {
+        clients.remove(client);
+    }
+
+    static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (ClosedChannelException e) {
+            // Already closed, nothing to do
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
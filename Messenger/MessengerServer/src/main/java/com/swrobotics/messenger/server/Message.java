@@ -1,19 +1,190 @@
 package com.swrobotics.messenger.server;
 
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A message along with its encoded wire frame. The frame is encoded once when the message is
+ * created and shared read-only between every client it is sent to, so broadcasting a message to
+ * many clients does not copy its data for each one.
+ */
 public final class Message {
+    private static final AtomicIntegerFieldUpdater<Message> PENDING_DELIVERIES =
+            AtomicIntegerFieldUpdater.newUpdater(Message.class, "pendingDeliveries");
+
     private final String type;
-    private final byte[] data;
+    private final ByteBuffer frame;
+    private final int dataOffset;
+
+    // Used to measure dispatch time. Only set for messages received from a
+    // client, since others were not received at any particular time.
+    private long receiveTime;
+    private volatile int pendingDeliveries;
+
+    // Whether the message was received as a datagram, so it may be sent on
+    // as one too
+    private boolean lossy;
+
+    // Whether the message was received from a bridge, so it must not be sent
+    // to another one
+    private boolean bridged;
 
+    /**
+     * Creates a new message and encodes its frame.
+     *
+     * @param type type of the message
+     * @param data data contained in the message
+     */
     public Message(String type, byte[] data) {
+        this(type, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Creates a new message and encodes its frame, copying the remaining bytes of a buffer as its
+     * data. The buffer's position is advanced to its limit.
+     *
+     * @param type type of the message
+     * @param data buffer containing the message data
+     */
+    public Message(String type, ByteBuffer data) {
+        this.type = type;
+
+        int typeLen = ModifiedUtf8.encodedLength(type);
+        ByteBuffer buf = ByteBuffer.allocate(2 + typeLen + 4 + data.remaining());
+        try {
+            ModifiedUtf8.write(type, buf);
+        } catch (UTFDataFormatException e) {
+            throw new IllegalArgumentException("Message type is too long", e);
+        }
+        buf.putInt(data.remaining());
+        dataOffset = buf.position();
+        buf.put(data);
+        buf.flip();
+
+        frame = buf.asReadOnlyBuffer();
+    }
+
+    /**
+     * Creates a message from an already encoded frame, without copying it.
+     *
+     * @param type type of the message, as decoded from the frame
+     * @param frame encoded frame, which must not be modified afterwards
+     * @param dataOffset offset within the frame where the data starts
+     */
+    Message(String type, byte[] frame, int dataOffset) {
         this.type = type;
-        this.data = data;
+        this.frame = ByteBuffer.wrap(frame).asReadOnlyBuffer();
+        this.dataOffset = dataOffset;
+    }
+
+    // Shares another message's frame, without its delivery tracking
+    private Message(Message other) {
+        type = other.type;
+        frame = other.frame;
+        dataOffset = other.dataOffset;
+    }
+
+    /**
+     * Creates a message with the same frame as this one, which can be delivered again later
+     * without affecting this message's dispatch time statistics.
+     *
+     * @return new message sharing this message's frame
+     */
+    Message share() {
+        return new Message(this);
+    }
+
+    // Marks when the message was received from a client
+    void setReceiveTime(long receiveTime) {
+        this.receiveTime = receiveTime;
+    }
+
+    // Marks the message as received through the datagram lane
+    void markLossy() {
+        lossy = true;
+    }
+
+    /**
+     * Gets whether the message is of a lossy type, meaning it can be sent as a datagram to clients
+     * that support it.
+     *
+     * @return whether the message is lossy
+     */
+    public boolean isLossy() {
+        return lossy;
+    }
+
+    // Marks the message as received from a bridged server
+    void markBridged() {
+        bridged = true;
+    }
+
+    /**
+     * Gets whether the message was received from a bridged server.
+     *
+     * @return whether the message is bridged
+     */
+    public boolean isBridged() {
+        return bridged;
+    }
+
+    // Called before handing the message to its recipients
+    void beginDelivery(int recipients) {
+        PENDING_DELIVERIES.set(this, recipients);
+    }
+
+    // Called by each recipient once it has finished writing the message, or
+    // discarded it. The last one records the dispatch time.
+    void finishDelivery() {
+        if (receiveTime != 0 && PENDING_DELIVERIES.decrementAndGet(this) == 0) {
+            MessengerServer.get().getStats().recordDispatch(System.nanoTime() - receiveTime);
+        }
     }
 
     public String getType() {
         return type;
     }
 
+    /**
+     * Gets the size of the message data in bytes.
+     *
+     * @return data size
+     */
+    public int getDataSize() {
+        return frame.limit() - dataOffset;
+    }
+
+    /**
+     * Gets a read-only view of the message data. The returned buffer has its own position, so it
+     * can be consumed freely.
+     *
+     * @return data view
+     */
+    public ByteBuffer getDataView() {
+        ByteBuffer view = frame.duplicate();
+        view.position(dataOffset);
+        return view.slice();
+    }
+
+    /**
+     * Gets a copy of the message data.
+     *
+     * @return data copy
+     */
     public byte[] getData() {
+        byte[] data = new byte[getDataSize()];
+        getDataView().get(data);
         return data;
     }
+
+    /**
+     * Gets a read-only view of the entire encoded frame, ready to be written to a socket. The
+     * returned buffer has its own position, so each recipient can write it independently.
+     *
+     * @return frame view
+     */
+    public ByteBuffer getFrame() {
+        return frame.duplicate();
+    }
 }
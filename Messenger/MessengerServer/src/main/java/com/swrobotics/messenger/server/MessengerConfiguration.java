@@ -13,16 +13,68 @@ public final class MessengerConfiguration {
         defaultProps.put("port", "5805");
         defaultProps.put("logFile", "");
         defaultProps.put("compressLog", "false");
+        defaultProps.put("logFormat", "text");
+        defaultProps.put("ioThreads", "2");
+        defaultProps.put("queueCapacity", "1024");
+        defaultProps.put("queueBlockTimeout", "100");
+        defaultProps.put("defaultQueuePolicy", "DROP_OLDEST");
+        defaultProps.put("queuePolicies", "");
+        defaultProps.put("statsInterval", "1000");
+        defaultProps.put("sharedMemory", "false");
+        defaultProps.put("sharedMemoryRingSize", "1048576");
+        defaultProps.put("datagram", "false");
+        defaultProps.put("maxMessageSize", "67108864");
+        defaultProps.put("bridgeHost", "");
+        defaultProps.put("bridgePort", "5805");
     }
 
     private final int port;
     private final File logFile;
     private final boolean compressLog;
+    private final boolean binaryLog;
+    private final int ioThreads;
+    private final int queueCapacity;
+    private final long queueBlockTimeout;
+    private final QueuePolicies queuePolicies;
+    private final long statsInterval;
+    private final boolean sharedMemory;
+    private final int sharedMemoryRingSize;
+    private final boolean datagram;
+    private final int maxMessageSize;
+    private final String bridgeHost;
+    private final int bridgePort;
 
-    private MessengerConfiguration(int port, File logFile, boolean compressLog) {
+    private MessengerConfiguration(
+            int port,
+            File logFile,
+            boolean compressLog,
+            boolean binaryLog,
+            int ioThreads,
+            int queueCapacity,
+            long queueBlockTimeout,
+            QueuePolicies queuePolicies,
+            long statsInterval,
+            boolean sharedMemory,
+            int sharedMemoryRingSize,
+            boolean datagram,
+            int maxMessageSize,
+            String bridgeHost,
+            int bridgePort) {
         this.port = port;
         this.logFile = logFile;
         this.compressLog = compressLog;
+        this.binaryLog = binaryLog;
+        this.ioThreads = ioThreads;
+        this.queueCapacity = queueCapacity;
+        this.queueBlockTimeout = queueBlockTimeout;
+        this.queuePolicies = queuePolicies;
+        this.statsInterval = statsInterval;
+        this.sharedMemory = sharedMemory;
+        this.sharedMemoryRingSize = sharedMemoryRingSize;
+        this.datagram = datagram;
+        this.maxMessageSize = maxMessageSize;
+        this.bridgeHost = bridgeHost;
+        this.bridgePort = bridgePort;
     }
 
     public static MessengerConfiguration loadFromFile(File file) {
@@ -46,7 +98,30 @@ public final class MessengerConfiguration {
                 props.getProperty("logFile").equals("")
                         ? null
                         : new File(props.getProperty("logFile")),
-                Boolean.parseBoolean(props.getProperty("compressLog")));
+                Boolean.parseBoolean(props.getProperty("compressLog")),
+                props.getProperty("logFormat").equalsIgnoreCase("binary"),
+                Math.max(1, Integer.parseInt(props.getProperty("ioThreads"))),
+                Math.max(1, Integer.parseInt(props.getProperty("queueCapacity"))),
+                Long.parseLong(props.getProperty("queueBlockTimeout")),
+                new QueuePolicies(
+                        OverflowPolicy.valueOf(props.getProperty("defaultQueuePolicy")),
+                        props.getProperty("queuePolicies")),
+                Long.parseLong(props.getProperty("statsInterval")),
+                Boolean.parseBoolean(props.getProperty("sharedMemory")),
+                roundUpToPowerOfTwo(Integer.parseInt(props.getProperty("sharedMemoryRingSize"))),
+                Boolean.parseBoolean(props.getProperty("datagram")),
+                Math.max(1024, Integer.parseInt(props.getProperty("maxMessageSize"))),
+                props.getProperty("bridgeHost").equals("")
+                        ? null
+                        : props.getProperty("bridgeHost"),
+                Integer.parseInt(props.getProperty("bridgePort")));
+    }
+
+    // Rings must be a power of two, and at least a page
+    private static int roundUpToPowerOfTwo(int value) {
+        int clamped = Math.max(value, 4096);
+        int highest = Integer.highestOneBit(clamped);
+        return highest == clamped ? clamped : highest << 1;
     }
 
     public int getPort() {
@@ -60,4 +135,85 @@ public final class MessengerConfiguration {
     public boolean isCompressLog() {
         return compressLog;
     }
+
+    public boolean isBinaryLog() {
+        return binaryLog;
+    }
+
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getQueueBlockTimeout() {
+        return queueBlockTimeout;
+    }
+
+    public QueuePolicies getQueuePolicies() {
+        return queuePolicies;
+    }
+
+    /**
+     * Gets how often to publish {@code Messenger:Stats}.
+     *
+     * @return interval in milliseconds, or 0 to not publish
+     */
+    public long getStatsInterval() {
+        return statsInterval;
+    }
+
+    /**
+     * Gets whether clients on the same host may use shared memory instead of the socket.
+     *
+     * @return whether shared memory is enabled
+     */
+    public boolean isSharedMemory() {
+        return sharedMemory;
+    }
+
+    /**
+     * Gets the capacity of each shared memory ring. Always a power of two.
+     *
+     * @return ring capacity in bytes
+     */
+    public int getSharedMemoryRingSize() {
+        return sharedMemoryRingSize;
+    }
+
+    /**
+     * Gets whether lossy message types may be sent to clients as UDP datagrams.
+     *
+     * @return whether the datagram lane is enabled
+     */
+    public boolean isDatagram() {
+        return datagram;
+    }
+
+    /**
+     * Gets the largest message a client may send, including one sent in chunks. Clients that send
+     * a larger message are disconnected, so that a bad size can't make the server allocate
+     * arbitrary amounts of memory.
+     *
+     * @return maximum message data size in bytes
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Gets the host of another server to keep a bridge connection open to. Only one of the two
+     * servers should set this.
+     *
+     * @return host of the other server, or {@code null} to not connect a bridge
+     */
+    public String getBridgeHost() {
+        return bridgeHost;
+    }
+
+    public int getBridgePort() {
+        return bridgePort;
+    }
 }
@@ -1,19 +1,36 @@
 package com.swrobotics.messenger.server;
 
+import com.swrobotics.messenger.server.log.BinaryFileLogger;
 import com.swrobotics.messenger.server.log.FileLogger;
 import com.swrobotics.messenger.server.log.MessageLogger;
 import com.swrobotics.messenger.server.log.NoOpLogger;
+import com.swrobotics.messenger.server.stats.LatencyHistogram;
+import com.swrobotics.messenger.server.stats.MessageStats;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public final class MessengerServer {
     private static final String MSG_GET_CLIENTS = "Messenger:GetClients";
     private static final String MSG_CLIENTS = "Messenger:Clients";
+    private static final String MSG_STATS = "Messenger:Stats";
+    private static final String STATS_SOURCE = "Server";
+
+    /**
+     * System property that overrides the location of the configuration file, so a server can be
+     * started in-process without depending on the working directory.
+     */
+    public static final String CONFIG_PROPERTY = "messenger.config";
 
     private static final MessengerServer INSTANCE = new MessengerServer();
 
@@ -23,17 +40,50 @@ public final class MessengerServer {
 
     private final MessengerConfiguration config;
     private final Set<Client> clients;
+    private final SubscriptionIndex subscriptions;
+    private final RetainedMessages retained;
+    private final RequestRouter requests;
+    private final BridgeTable bridges;
     private final MessageLogger log;
+    private final MessageStats stats;
+    private long lastStatsTime;
+    private volatile DatagramLane datagramLane;
 
     private MessengerServer() {
-        config = MessengerConfiguration.loadFromFile(new File("config.properties"));
+        config =
+                MessengerConfiguration.loadFromFile(
+                        new File(System.getProperty(CONFIG_PROPERTY, "config.properties")));
         clients = ConcurrentHashMap.newKeySet();
+        subscriptions = new SubscriptionIndex();
+        retained = new RetainedMessages();
+        requests = new RequestRouter();
+        bridges = new BridgeTable();
 
         if (config.getLogFile() == null) {
             log = new NoOpLogger();
+        } else if (config.isBinaryLog()) {
+            if (config.isCompressLog())
+                System.err.println("Binary logs are not compressed, so that they can be seeked");
+            log = new BinaryFileLogger(config.getLogFile());
         } else {
             log = new FileLogger(config.getLogFile(), config.isCompressLog());
         }
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+
+        stats = new MessageStats();
+        lastStatsTime = System.nanoTime();
+        long statsInterval = config.getStatsInterval();
+        if (statsInterval > 0) {
+            ScheduledExecutorService statsExecutor =
+                    Executors.newSingleThreadScheduledExecutor(
+                            (r) -> {
+                                Thread thread = new Thread(r, "Messenger Stats");
+                                thread.setDaemon(true);
+                                return thread;
+                            });
+            statsExecutor.scheduleAtFixedRate(
+                    this::publishStats, statsInterval, statsInterval, TimeUnit.MILLISECONDS);
+        }
     }
 
     public void broadcastEvent(String type, String name, String descriptor) {
@@ -58,6 +108,7 @@ public final class MessengerServer {
 
     public void onMessage(Message msg) {
         if (log != null) log.logMessage(msg);
+        stats.recordMessage(msg.getType(), msg.getDataSize());
 
         if (msg.getType().equals(MSG_GET_CLIENTS)) {
             try {
@@ -80,11 +131,64 @@ public final class MessengerServer {
         dispatchMessage(msg);
     }
 
-    private void dispatchMessage(Message msg) {
-        for (Client client : clients) {
-            if (client.listensTo(msg.getType())) {
-                client.sendMessage(msg);
+    /**
+     * Sends a message to every client listening to its type, without logging it or handling
+     * built-in messages.
+     *
+     * @param msg message to send
+     */
+    public void dispatchMessage(Message msg) {
+        retained.offer(msg);
+
+        List<Client> subscribers = subscriptions.getSubscribers(msg.getType());
+        if (msg.isBridged()) subscribers = BridgeTable.withoutBridges(subscribers);
+        msg.beginDelivery(subscribers.size());
+        for (Client client : subscribers) {
+            client.sendMessage(msg);
+        }
+    }
+
+    // Sends a snapshot of the statistics recorded since the previous one
+    private void publishStats() {
+        long now = System.nanoTime();
+        double interval = (now - lastStatsTime) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastStatsTime = now;
+
+        try {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(b);
+
+            d.writeUTF(STATS_SOURCE);
+            d.writeDouble(interval);
+
+            List<MessageStats.TypeCount> types = stats.takeTypeCounts();
+            d.writeInt(types.size());
+            for (MessageStats.TypeCount type : types) {
+                d.writeUTF(type.getType());
+                d.writeLong(type.getMessages());
+                d.writeLong(type.getBytes());
+            }
+
+            Map<String, QueueStats> queues = getQueueStats();
+            d.writeInt(queues.size());
+            for (Map.Entry<String, QueueStats> entry : queues.entrySet()) {
+                d.writeUTF(entry.getKey());
+                d.writeLong(entry.getValue().getQueued());
+                d.writeLong(entry.getValue().getTotalDropped());
             }
+
+            LatencyHistogram latency = stats.getDispatchLatency();
+            latency.takeSnapshot();
+            d.writeLong(latency.getCount());
+            d.writeLong(latency.getMean());
+            d.writeLong(latency.getPercentile(0.5));
+            d.writeLong(latency.getPercentile(0.9));
+            d.writeLong(latency.getPercentile(0.99));
+            d.writeLong(latency.getMax());
+
+            dispatchMessage(new Message(MSG_STATS, b.toByteArray()));
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
@@ -92,8 +196,92 @@ public final class MessengerServer {
         clients.add(client);
     }
 
+    public int getClientCount() {
+        return clients.size();
+    }
+
     public void removeClient(Client client) {
         clients.remove(client);
+        Set<String> patterns = subscriptions.unsubscribeAll(client);
+        requests.removeClient(client);
+
+        if (client.isBridge()) {
+            bridges.removeBridge(client);
+        } else {
+            for (String pattern : patterns) {
+                bridges.onUnsubscribe(pattern);
+            }
+        }
+    }
+
+    /**
+     * Gets the outbound queue state of each connected client that has a queue.
+     *
+     * @return queue statistics by client name
+     */
+    public Map<String, QueueStats> getQueueStats() {
+        Map<String, QueueStats> stats = new HashMap<>();
+        for (Client client : clients) {
+            QueueStats s = client.getQueueStats();
+            if (s != null) stats.put(client.getName(), s);
+        }
+        return stats;
+    }
+
+    /**
+     * Subscribes a client to a pattern, and sends it the retained messages the pattern matches.
+     *
+     * @param client client to subscribe
+     * @param pattern pattern to subscribe to
+     */
+    public void subscribe(Client client, String pattern) {
+        // Subscribed first, so a message dispatched in between is not missed.
+        // The client may then receive it twice.
+        if (subscriptions.subscribe(client, pattern) && !client.isBridge())
+            bridges.onSubscribe(pattern);
+        for (Message msg : retained.getMatching(pattern)) {
+            client.sendMessage(msg);
+        }
+    }
+
+    /**
+     * Unsubscribes a client from a pattern.
+     *
+     * @param client client to unsubscribe
+     * @param pattern pattern to unsubscribe from
+     */
+    public void unsubscribe(Client client, String pattern) {
+        if (subscriptions.unsubscribe(client, pattern) && !client.isBridge())
+            bridges.onUnsubscribe(pattern);
+    }
+
+    public RetainedMessages getRetained() {
+        return retained;
+    }
+
+    public RequestRouter getRequests() {
+        return requests;
+    }
+
+    public BridgeTable getBridges() {
+        return bridges;
+    }
+
+    public SubscriptionIndex getSubscriptions() {
+        return subscriptions;
+    }
+
+    /**
+     * Gets the lane used to send lossy messages as datagrams.
+     *
+     * @return datagram lane, or {@code null} if disabled
+     */
+    public DatagramLane getDatagramLane() {
+        return datagramLane;
+    }
+
+    public void setDatagramLane(DatagramLane datagramLane) {
+        this.datagramLane = datagramLane;
     }
 
     public MessengerConfiguration getConfig() {
@@ -103,4 +291,8 @@ public final class MessengerServer {
     public MessageLogger getLog() {
         return log;
     }
+
+    public MessageStats getStats() {
+        return stats;
+    }
 }
@@ -1,7 +1,57 @@
 package com.swrobotics.messenger.server;
 
+import com.swrobotics.messenger.server.log.LogReplayer;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
 public final class MessengerServerMain {
+    private static void printUsage() {
+        System.err.println("Usage: MessengerServer [--replay <log file> [options]]");
+        System.err.println("Replay options:");
+        System.err.println("  --speed <N|max>    Playback speed multiplier (default 1)");
+        System.err.println("  --start <seconds>  Time within the log to start at (default 0)");
+        System.err.println("  --loop             Restart from the beginning when finished");
+    }
+
     public static void main(String[] args) {
+        File replayFile = null;
+        double speed = 1;
+        double start = 0;
+        boolean loop = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--replay":
+                        replayFile = new File(args[++i]);
+                        break;
+                    case "--speed":
+                        String s = args[++i];
+                        speed = s.equals("max") ? Double.POSITIVE_INFINITY : Double.parseDouble(s);
+                        break;
+                    case "--start":
+                        start = Double.parseDouble(args[++i]);
+                        break;
+                    case "--loop":
+                        loop = true;
+                        break;
+                    default:
+                        printUsage();
+                        System.exit(1);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            printUsage();
+            System.exit(1);
+        }
+
+        if (replayFile != null) {
+            long startNanos = (long) (start * TimeUnit.SECONDS.toNanos(1));
+            LogReplayer replayer = new LogReplayer(replayFile, speed, startNanos, loop);
+            new Thread(replayer, "Messenger Log Replay").start();
+        }
+
         RemoteClientConnector conn = new RemoteClientConnector();
         conn.run();
     }
@@ -0,0 +1,118 @@
+package com.swrobotics.messenger.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes Strings in the modified UTF-8 format used by {@link
+ * java.io.DataOutputStream#writeUTF}, without needing a stream.
+ *
+ * <p>The client has a twin of this class in {@code com.swrobotics.messenger.client}. Encoding is
+ * the same, but this one reports truncated input as an {@link EOFException}, because it parses
+ * data from untrusted clients.
+ */
+public final class ModifiedUtf8 {
+    /**
+     * Gets the number of bytes needed to encode a String, not including the 2-byte length prefix.
+     *
+     * @param s String to measure
+     * @return encoded length in bytes
+     */
+    public static int encodedLength(String s) {
+        int len = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) len++;
+            else if (c > 0x07FF) len += 3;
+            else len += 2;
+        }
+        return len;
+    }
+
+    /**
+     * Writes a String with its 2-byte length prefix into a buffer.
+     *
+     * @param s String to write
+     * @param buf buffer to write into
+     * @throws UTFDataFormatException if the String is too long to encode
+     */
+    public static void write(String s, ByteBuffer buf) throws UTFDataFormatException {
+        int len = encodedLength(s);
+        if (len > 65535) throw new UTFDataFormatException("Encoded string too long: " + len);
+
+        buf.putShort((short) len);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buf.put((byte) c);
+            } else if (c > 0x07FF) {
+                buf.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buf.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Reads a String with its 2-byte length prefix from a buffer.
+     *
+     * @param buf buffer to read from
+     * @return decoded String
+     * @throws EOFException if the buffer ends before the String does
+     * @throws UTFDataFormatException if the data is not valid modified UTF-8
+     */
+    public static String read(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < 2) throw new EOFException("Truncated string length");
+        return read(buf, buf.getShort() & 0xFFFF);
+    }
+
+    /**
+     * Reads {@code len} bytes of encoded String data from a buffer. The 2-byte length prefix must
+     * have already been consumed.
+     *
+     * @param buf buffer to read from
+     * @param len number of encoded bytes
+     * @return decoded String
+     * @throws EOFException if the buffer ends before the String does
+     * @throws UTFDataFormatException if the data is not valid modified UTF-8
+     */
+    public static String read(ByteBuffer buf, int len) throws IOException {
+        if (buf.remaining() < len) throw new EOFException("Truncated string");
+
+        char[] chars = new char[len];
+        int count = 0;
+        int end = buf.position() + len;
+
+        while (buf.position() < end) {
+            int a = buf.get() & 0xFF;
+            if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if ((a & 0xE0) == 0xC0) {
+                if (buf.position() + 1 > end) throw new UTFDataFormatException("Truncated string");
+                int b = buf.get() & 0xFF;
+                if ((b & 0xC0) != 0x80) throw new UTFDataFormatException("Malformed string");
+                chars[count++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
+            } else if ((a & 0xF0) == 0xE0) {
+                if (buf.position() + 2 > end) throw new UTFDataFormatException("Truncated string");
+                int b = buf.get() & 0xFF;
+                int c = buf.get() & 0xFF;
+                if ((b & 0xC0) != 0x80 || (c & 0xC0) != 0x80)
+                    throw new UTFDataFormatException("Malformed string");
+                chars[count++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));
+            } else {
+                throw new UTFDataFormatException("Malformed string");
+            }
+        }
+
+        return new String(chars, 0, count);
+    }
+
+    private ModifiedUtf8() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,191 @@
+package com.swrobotics.messenger.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded queue of messages waiting to be written to a client. When the queue is full, the {@link
+ * OverflowPolicy} configured for the incoming message's type decides what is discarded.
+ */
+public final class OutboundQueue {
+    /** Sender of messages that can be told to stop sending while a queue is full. */
+    public interface Publisher {
+        /** Stops handling input from this publisher. Called on the publisher's own I/O thread. */
+        void pauseReading();
+
+        /**
+         * Requests that input from this publisher be handled again, undoing one call to {@link
+         * #pauseReading()}. May be called from any thread.
+         */
+        void requestResume();
+    }
+
+    private static final class Slot {
+        Message msg;
+        final boolean conflated;
+
+        Slot(Message msg, boolean conflated) {
+            this.msg = msg;
+            this.conflated = conflated;
+        }
+    }
+
+    private final int capacity;
+    private final long blockTimeout;
+    private final QueuePolicies policies;
+
+    private final ArrayDeque<Slot> slots;
+    private final Map<String, Slot> conflatedSlots;
+    private int count;
+
+    // Publishers paused by BLOCK messages, and when the first was paused.
+    // Once they have waited for the timeout, BLOCK drops messages until the
+    // queue drains.
+    private final Set<Publisher> paused;
+    private long pausedSince;
+    private boolean blockTimedOut;
+
+    private long droppedOldest, droppedNewest, conflated, blockTimeouts;
+
+    /**
+     * @param capacity maximum number of queued messages
+     * @param blockTimeout maximum time in milliseconds to pause publishers when using {@link
+     *     OverflowPolicy#BLOCK}
+     * @param policies policies for each message type
+     */
+    public OutboundQueue(int capacity, long blockTimeout, QueuePolicies policies) {
+        this.capacity = capacity;
+        this.blockTimeout = blockTimeout;
+        this.policies = policies;
+
+        slots = new ArrayDeque<>();
+        conflatedSlots = new HashMap<>();
+        count = 0;
+        paused = new LinkedHashSet<>();
+        blockTimedOut = false;
+    }
+
+    /**
+     * Adds a message to the queue, applying the overflow policy if the queue is full.
+     *
+     * @param msg message to add
+     * @param publisher client whose input is being handled on the calling thread, which is paused
+     *     if the queue is full and the message uses {@link OverflowPolicy#BLOCK}, or {@code null}
+     *     if there is none
+     */
+    public synchronized void offer(Message msg, Publisher publisher) {
+        String type = msg.getType();
+        OverflowPolicy policy = policies.getPolicy(type);
+        if (policy == OverflowPolicy.CONFLATE) {
+            Slot existing = conflatedSlots.get(type);
+            if (existing != null) {
+                existing.msg.finishDelivery();
+                existing.msg = msg;
+                conflated++;
+                return;
+            }
+        }
+
+        if (count >= capacity) {
+            switch (policy) {
+                case BLOCK:
+                    if (publisher == null || blockTimedOut) {
+                        if (blockTimedOut) blockTimeouts++;
+                        droppedNewest++;
+                        msg.finishDelivery();
+                        return;
+                    }
+
+                    // Queue it anyway. Each publisher is paused by its first
+                    // message over capacity, so the queue only overshoots by
+                    // one message per publisher.
+                    if (paused.add(publisher)) {
+                        if (paused.size() == 1) pausedSince = System.currentTimeMillis();
+                        publisher.pauseReading();
+                    }
+                    break;
+                case DROP_NEWEST:
+                    droppedNewest++;
+                    msg.finishDelivery();
+                    return;
+                case DROP_OLDEST:
+                case CONFLATE:
+                    dropOldest();
+                    break;
+            }
+        }
+
+        boolean conflate = policy == OverflowPolicy.CONFLATE;
+        Slot slot = new Slot(msg, conflate);
+        slots.add(slot);
+        if (conflate) conflatedSlots.put(type, slot);
+        count++;
+    }
+
+    /**
+     * Resumes paused publishers if they have been paused for longer than the block timeout. Until
+     * the queue drains, further {@link OverflowPolicy#BLOCK} messages are then dropped instead.
+     *
+     * @param now current time in milliseconds
+     */
+    public synchronized void checkBlockTimeout(long now) {
+        if (!paused.isEmpty() && now - pausedSince >= blockTimeout) {
+            blockTimedOut = true;
+            resumePublishers();
+        }
+    }
+
+    /** Resumes all paused publishers. Called when the client owning this queue disconnects. */
+    public synchronized void resumePublishers() {
+        for (Publisher publisher : paused) {
+            publisher.requestResume();
+        }
+        paused.clear();
+    }
+
+    private void dropOldest() {
+        Slot slot = slots.poll();
+        if (slot != null) {
+            onRemoved(slot);
+            droppedOldest++;
+            slot.msg.finishDelivery();
+        }
+    }
+
+    /**
+     * Removes the next message from the queue.
+     *
+     * @return next message, or {@code null} if the queue is empty
+     */
+    public synchronized Message poll() {
+        Slot slot = slots.poll();
+        if (slot == null) return null;
+
+        onRemoved(slot);
+        return slot.msg;
+    }
+
+    private void onRemoved(Slot slot) {
+        if (slot.conflated) conflatedSlots.remove(slot.msg.getType(), slot);
+        count--;
+
+        // Wait until there is some room before resuming, so publishers are
+        // not paused again by the very next message
+        if (count <= capacity / 2) {
+            blockTimedOut = false;
+            if (!paused.isEmpty()) resumePublishers();
+        }
+    }
+
+    /**
+     * Gets a snapshot of this queue's current size and drop counters.
+     *
+     * @return statistics snapshot
+     */
+    public synchronized QueueStats getStats() {
+        return new QueueStats(slots.size(), droppedOldest, droppedNewest, conflated, blockTimeouts);
+    }
+}
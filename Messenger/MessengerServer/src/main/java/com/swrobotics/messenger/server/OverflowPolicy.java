@@ -0,0 +1,26 @@
+package com.swrobotics.messenger.server;
+
+/** Determines what happens when a message is sent to a client whose outbound queue is full. */
+public enum OverflowPolicy {
+    /**
+     * Queue the message anyway, and stop reading from the client that published it until the
+     * queue has drained to half its capacity. No thread waits for room, so this works the same
+     * whether or not the publisher and the slow client share an I/O thread. If the publisher stays
+     * paused for longer than the configured timeout, it is resumed and further messages are
+     * dropped until the queue drains. Messages with no client to pause, such as ones sent by the
+     * server itself or received as datagrams, are dropped when the queue is full.
+     */
+    BLOCK,
+
+    /** Discard the oldest queued message to make room. */
+    DROP_OLDEST,
+
+    /** Discard the message being sent. */
+    DROP_NEWEST,
+
+    /**
+     * Keep only the newest message of each type. If a message of the same type is already queued,
+     * it is replaced in place. Otherwise this behaves like {@link #DROP_OLDEST}.
+     */
+    CONFLATE
+}
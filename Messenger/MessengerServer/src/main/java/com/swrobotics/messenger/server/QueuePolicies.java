@@ -0,0 +1,82 @@
+package com.swrobotics.messenger.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps message types to the {@link OverflowPolicy} used when queueing them. Patterns use the same
+ * syntax as listening: an exact type ID, or a prefix followed by '*'. If multiple patterns match,
+ * an exact match takes precedence, followed by the longest wildcard.
+ */
+public final class QueuePolicies {
+    // Types are usually a fixed set, but don't let unusual clients grow the cache forever
+    private static final int MAX_CACHED_TYPES = 4096;
+
+    private final OverflowPolicy defaultPolicy;
+    private final Map<String, OverflowPolicy> exact;
+    private final Map<String, OverflowPolicy> wildcards;
+    private final Map<String, OverflowPolicy> resolved;
+
+    /**
+     * Parses policies from a comma-separated list of {@code pattern=POLICY} entries, for example
+     * {@code Pathfinder:SetPos=CONFLATE,ShuffleLog:*=DROP_OLDEST}.
+     *
+     * @param defaultPolicy policy for types that match no pattern
+     * @param spec policy list
+     */
+    public QueuePolicies(OverflowPolicy defaultPolicy, String spec) {
+        this.defaultPolicy = defaultPolicy;
+        exact = new HashMap<>();
+        wildcards = new HashMap<>();
+        resolved = new ConcurrentHashMap<>();
+
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) continue;
+
+            int eq = entry.lastIndexOf('=');
+            if (eq < 0) throw new IllegalArgumentException("Invalid queue policy: " + entry);
+            String pattern = entry.substring(0, eq).trim();
+            OverflowPolicy policy = OverflowPolicy.valueOf(entry.substring(eq + 1).trim());
+
+            if (pattern.endsWith("*")) {
+                wildcards.put(pattern.substring(0, pattern.length() - 1), policy);
+            } else {
+                exact.put(pattern, policy);
+            }
+        }
+    }
+
+    /**
+     * Gets the policy to use for a message type.
+     *
+     * @param type message type
+     * @return overflow policy
+     */
+    public OverflowPolicy getPolicy(String type) {
+        OverflowPolicy policy = resolved.get(type);
+        if (policy == null) {
+            if (resolved.size() >= MAX_CACHED_TYPES) resolved.clear();
+            policy = resolve(type);
+            resolved.put(type, policy);
+        }
+        return policy;
+    }
+
+    private OverflowPolicy resolve(String type) {
+        OverflowPolicy policy = exact.get(type);
+        if (policy != null) return policy;
+
+        int longest = -1;
+        policy = defaultPolicy;
+        for (Map.Entry<String, OverflowPolicy> entry : wildcards.entrySet()) {
+            String prefix = entry.getKey();
+            if (prefix.length() > longest && type.startsWith(prefix)) {
+                longest = prefix.length();
+                policy = entry.getValue();
+            }
+        }
+        return policy;
+    }
+}
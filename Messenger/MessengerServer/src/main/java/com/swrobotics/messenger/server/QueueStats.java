@@ -0,0 +1,49 @@
+package com.swrobotics.messenger.server;
+
+/** Snapshot of the state of a client's {@link OutboundQueue}. */
+public final class QueueStats {
+    private final int queued;
+    private final long droppedOldest;
+    private final long droppedNewest;
+    private final long conflated;
+    private final long blockTimeouts;
+
+    public QueueStats(
+            int queued, long droppedOldest, long droppedNewest, long conflated, long blockTimeouts) {
+        this.queued = queued;
+        this.droppedOldest = droppedOldest;
+        this.droppedNewest = droppedNewest;
+        this.conflated = conflated;
+        this.blockTimeouts = blockTimeouts;
+    }
+
+    /** @return number of messages currently waiting to be written */
+    public int getQueued() {
+        return queued;
+    }
+
+    /** @return number of queued messages discarded to make room for newer ones */
+    public long getDroppedOldest() {
+        return droppedOldest;
+    }
+
+    /** @return number of incoming messages discarded because the queue was full */
+    public long getDroppedNewest() {
+        return droppedNewest;
+    }
+
+    /** @return number of queued messages replaced by a newer message of the same type */
+    public long getConflated() {
+        return conflated;
+    }
+
+    /** @return number of blocking sends dropped because their publisher was paused for too long */
+    public long getBlockTimeouts() {
+        return blockTimeouts;
+    }
+
+    /** @return total number of messages that were never delivered */
+    public long getTotalDropped() {
+        return droppedOldest + droppedNewest + conflated;
+    }
+}
@@ -1,167 +1,856 @@
 package com.swrobotics.messenger.server;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
-import java.util.Collections;
-import java.util.HashSet;
+import java.io.UTFDataFormatException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
-import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public final class RemoteClient implements Client, Runnable {
+public final class RemoteClient implements Client, OutboundQueue.Publisher {
     private static final String HEARTBEAT = "_Heartbeat";
-    private static final String LISTEN = "_Listen";
-    private static final String UNLISTEN = "_Unlisten";
+    static final String LISTEN = "_Listen";
+    static final String UNLISTEN = "_Unlisten";
     private static final String DISCONNECT = "_Disconnect";
+    private static final String RETAIN = "_Retain";
+    private static final String UNRETAIN = "_Unretain";
 
     private static final long TIMEOUT = 5000; // Max time in milliseconds between heartbeats
+    private static final long HEARTBEAT_INTERVAL = 1000; // Milliseconds, for bridges we opened
 
-    private final Queue<Message> outgoingMessages;
-    private final Socket socket;
-    private final DataInputStream in;
-    private final DataOutputStream out;
-    private final Set<String> listening;
-    private final Set<String> wildcards;
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int MAX_GATHER = 64; // Max frames written in one system call
+
+    // Stop adding data to a batch once it reaches this size, so that control
+    // messages queued in the meantime don't have to wait long
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private static final int SERVER_FEATURES =
+            Chunking.FEATURE_CHUNKING
+                    | FrameEncoder.FEATURE_V2
+                    | RequestRouter.FEATURE_REQUESTS
+                    | BridgeTable.FEATURE_BRIDGE;
+    private static final Message HEARTBEAT_MSG = new Message(HEARTBEAT, new byte[0]);
+    private static final Message SHM_SWITCH_MSG = new Message(SharedMemory.SWITCH, new byte[0]);
+    private static final Message FEATURES_MSG =
+            new Message(Chunking.FEATURES, ByteBuffer.allocate(4).putInt(SERVER_FEATURES).array());
+
+    // Sent when we connect to another server as a bridge. It has the same
+    // content, but a bridge does not upgrade its framing after sending it.
+    private static final Message BRIDGE_FEATURES_MSG =
+            new Message(Chunking.FEATURES, ByteBuffer.allocate(4).putInt(SERVER_FEATURES).array());
+    private static final Message UPGRADE_MSG = new Message(FrameEncoder.UPGRADE, new byte[0]);
+
+    private final IoThread ioThread;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+
+    private final Queue<Message> controlMessages;
+    private final OutboundQueue outgoingMessages;
+    private final AtomicBoolean flushRequested;
+    private final Chunking.Assembler chunkAssembler;
+    private final int maxMessageSize;
+
+    private ByteBuffer readBuf;
+    private long readTime;
+
+    // Number of full queues with the BLOCK policy waiting for this client to
+    // stop publishing. Input is not handled while it is above zero. Only used
+    // on the I/O thread.
+    private int readBlockers;
+    private boolean waitingToWrite;
+
+    // Framing state for each direction. The server switches to v2 after
+    // sending its _Features reply, and the client after sending _Upgrade.
+    private final FrameEncoder encoder;
+    private final List<String> inTypes;
+    private boolean inV2;
+
+    // Frames currently being written. Elements in [writeStart, writeEnd) still
+    // have data remaining. writeMessages holds the message whose frame ends
+    // with each buffer, so it can be notified once fully written.
+    private final ByteBuffer[] writeFrames;
+    private final Message[] writeMessages;
+    private int writeStart, writeEnd;
+
+    // Large message currently being sent in chunks, and ones waiting their turn
+    private final Queue<Message> pendingBulk;
+    private Message bulkMessage;
+    private ByteBuffer bulkData;
+    private int bulkOffset;
+    private int bulkStreamId;
+    private int peerFeatures;
+    private volatile boolean requestsSupported;
+
+    // Shared memory transport, if offered. Each direction switches to it after
+    // its side sends _ShmSwitch, and the socket then only carries wakeups.
+    private SharedMemory shm;
+    private boolean shmIn, shmOut;
+    private boolean switchOutAfterBatch;
+    private final ByteBuffer wakeupBuf;
+
+    // Datagram lane state, if the client supports it
+    private volatile DatagramLane.Peer datagramPeer;
+
+    // Set if this is a bridge we opened to another server. We then act as the
+    // client in the handshake, and send heartbeats instead of answering them.
+    private final BridgeConnector connector;
+    private ByteBuffer handshake;
+    private long lastHeartbeatSent;
+    private volatile boolean bridge;
 
     private boolean connected = true;
-    private String name = "[Unknown]";
+    private volatile String name = "[Unknown]";
     private boolean identified = false;
     private long lastHeartbeatTime;
 
-    public RemoteClient(Socket socket) throws IOException {
-        outgoingMessages = new ConcurrentLinkedQueue<>();
-        this.socket = socket;
-        in = new DataInputStream(socket.getInputStream());
-        out = new DataOutputStream(socket.getOutputStream());
+    public RemoteClient(IoThread ioThread, SocketChannel channel, SelectionKey key) {
+        this(ioThread, channel, key, null);
+    }
+
+    /**
+     * @param ioThread thread servicing the connection
+     * @param channel socket of the connection
+     * @param key selection key of the socket
+     * @param connector connector that opened the socket if it is a bridge to another server, or
+     *     {@code null} if the connection was accepted
+     */
+    RemoteClient(
+            IoThread ioThread, SocketChannel channel, SelectionKey key, BridgeConnector connector) {
+        this.ioThread = ioThread;
+        this.channel = channel;
+        this.key = key;
+
+        MessengerConfiguration config = MessengerServer.get().getConfig();
+        outgoingMessages =
+                new OutboundQueue(
+                        config.getQueueCapacity(),
+                        config.getQueueBlockTimeout(),
+                        config.getQueuePolicies());
+        controlMessages = new ConcurrentLinkedQueue<>();
+        flushRequested = new AtomicBoolean(false);
+        maxMessageSize = config.getMaxMessageSize();
+        chunkAssembler = new Chunking.Assembler(maxMessageSize);
+
+        readBuf = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        encoder = new FrameEncoder();
+        inTypes = new ArrayList<>();
+        inV2 = false;
+        writeFrames = new ByteBuffer[MAX_GATHER];
+        writeMessages = new Message[MAX_GATHER];
+        writeStart = writeEnd = 0;
+        pendingBulk = new ArrayDeque<>();
+        bulkStreamId = 0;
+        peerFeatures = 0;
+        shm = null;
+        shmIn = shmOut = switchOutAfterBatch = false;
+        wakeupBuf = ByteBuffer.allocate(64);
 
-        listening = Collections.synchronizedSet(new HashSet<>());
-        wildcards = Collections.synchronizedSet(new HashSet<>());
         lastHeartbeatTime = System.currentTimeMillis();
+
+        this.connector = connector;
+        bridge = false;
+        if (connector != null) {
+            name = connector.getName();
+            identified = true;
+            lastHeartbeatSent = lastHeartbeatTime;
+
+            // The name goes first, as a bare string rather than a frame
+            handshake = ByteBuffer.allocate(2 + ModifiedUtf8.encodedLength(BridgeConnector.NAME));
+            try {
+                ModifiedUtf8.write(BridgeConnector.NAME, handshake);
+            } catch (UTFDataFormatException e) {
+                throw new AssertionError(e);
+            }
+            handshake.flip();
+            sendMessage(BRIDGE_FEATURES_MSG);
+        }
+    }
+
+    /**
+     * Called by the I/O thread when the socket has data available. Reads as much as is available
+     * and handles every complete message received.
+     */
+    void onReadable() throws IOException {
+        if (readBlockers > 0) return;
+
+        readTime = System.nanoTime();
+        if (shmIn) {
+            readShared();
+            return;
+        }
+
+        int read = channel.read(readBuf);
+        if (read < 0) {
+            onClosedByPeer();
+            return;
+        }
+
+        readBufferedFrames();
+
+        // Switched to shared memory partway through this read
+        if (shmIn) readShared();
+    }
+
+    // Handles the complete frames in the read buffer, stopping early if
+    // reading is paused partway through
+    private void readBufferedFrames() throws IOException {
+        readBuf.flip();
+        while (connected && readBlockers == 0 && readFrame()) {
+            // Keep reading until there are no more complete frames
+        }
+        readBuf.compact();
+    }
+
+    @Override
+    public void pauseReading() {
+        if (readBlockers++ == 0) updateInterestOps();
+    }
+
+    @Override
+    public void requestResume() {
+        ioThread.requestResume(this);
+    }
+
+    /**
+     * Called by the I/O thread to undo one {@link #pauseReading()}. Once nothing is blocking this
+     * client, the frames that were already received are handled and reading continues.
+     */
+    void resumeReading() throws IOException {
+        if (!connected || readBlockers == 0 || --readBlockers > 0) return;
+        updateInterestOps();
+
+        readTime = System.nanoTime();
+        readBufferedFrames();
+        if (shmIn) readShared();
+    }
+
+    private void updateInterestOps() {
+        int ops = readBlockers > 0 ? 0 : SelectionKey.OP_READ;
+        if (waitingToWrite) ops |= SelectionKey.OP_WRITE;
+        key.interestOps(ops);
+    }
+
+    private void onClosedByPeer() {
+        System.out.println("Client " + name + " closed the connection");
+        MessengerServer.get().broadcastEvent("Disconnect", name, "");
+        close();
+    }
+
+    // Handles every complete message in the shared memory ring. The client
+    // writes a byte to the socket to wake us up when it writes to the ring
+    // while we are waiting.
+    private void readShared() throws IOException {
+        int read;
+        do {
+            wakeupBuf.clear();
+            read = channel.read(wakeupBuf);
+        } while (read > 0);
+        if (read < 0) {
+            onClosedByPeer();
+            return;
+        }
+
+        SharedRing ring = shm.getIn();
+        while (connected && readBlockers == 0) {
+            if (!readBuf.hasRemaining()) {
+                // Partial frame fills the buffer
+                readBuf.flip();
+                ensureReadCapacity(readBuf.capacity() * 2);
+                readBuf.compact();
+            }
+
+            if (ring.read(readBuf) == 0) {
+                // Check again after setting the flag, in case the client
+                // wrote in between and didn't see it
+                ring.setReaderWaiting();
+                if (ring.available() == 0) break;
+                continue;
+            }
+
+            readBufferedFrames();
+        }
+
+        // The client clears our waiting flag itself before waking us, so any
+        // wakeup may mean it made room for a write that stopped on a full ring
+        if (connected && shmOut && writeStart < writeEnd) flush();
     }
 
-    private void readMessage() throws IOException {
-        //        System.out.println("Reading message type");
-        String type = in.readUTF();
+    // Attempts to read one frame from the read buffer. If the frame is not
+    // complete yet, the buffer position is left unchanged and false is returned.
+    private boolean readFrame() throws IOException {
+        if (inV2) return readFrameV2();
+
+        int start = readBuf.position();
 
-        int dataSz = in.readInt();
-        //        System.out.println("Type " + type + ", reading " + dataSz + " data bytes");
-        byte[] data = new byte[dataSz];
-        in.readFully(data);
+        String type = readString();
+        if (type == null) return false;
 
-        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
-        switch (type) {
+        if (!identified) {
+            name = type;
+            identified = true;
+
+            MessengerServer.get().broadcastEvent("Connect", name, "");
+            return true;
+        }
+
+        if (readBuf.remaining() < 4) {
+            readBuf.position(start);
+            return false;
+        }
+        int dataSz = readBuf.getInt();
+        checkMessageSize(dataSz);
+        if (readBuf.remaining() < dataSz) {
+            int frameSize = readBuf.position() - start + dataSz;
+            readBuf.position(start);
+            ensureReadCapacity(frameSize);
+            return false;
+        }
+
+        // Copy the whole frame once so it can be forwarded to other clients as-is
+        int dataOffset = readBuf.position() - start;
+        byte[] frame = new byte[dataOffset + dataSz];
+        readBuf.position(start);
+        readBuf.get(frame);
+        handleMessage(new Message(type, frame, dataOffset));
+        return true;
+    }
+
+    // Same as readFrame(), but for v2 framing
+    private boolean readFrameV2() throws IOException {
+        int start = readBuf.position();
+
+        int typeRef = Varint.read(readBuf);
+        if (typeRef < 0) return false;
+
+        String type;
+        if (typeRef == 0) {
+            if (readBuf.remaining() < 2) {
+                readBuf.position(start);
+                return false;
+            }
+            int len = readBuf.getShort() & 0xFFFF;
+            if (readBuf.remaining() < len) {
+                int frameSize = readBuf.position() - start + len;
+                readBuf.position(start);
+                ensureReadCapacity(frameSize);
+                return false;
+            }
+            type = ModifiedUtf8.read(readBuf, len);
+        } else if (typeRef <= inTypes.size()) {
+            type = inTypes.get(typeRef - 1);
+        } else {
+            throw new IOException("Undefined type reference " + typeRef);
+        }
+
+        int dataSz = Varint.read(readBuf);
+        if (dataSz < 0) {
+            readBuf.position(start);
+            return false;
+        }
+        checkMessageSize(dataSz);
+        if (readBuf.remaining() < dataSz) {
+            int frameSize = readBuf.position() - start + dataSz;
+            readBuf.position(start);
+            ensureReadCapacity(frameSize);
+            return false;
+        }
+
+        // Only define the type once the frame is complete, since an
+        // incomplete frame is parsed again later
+        if (typeRef == 0) inTypes.add(type);
+
+        // Re-encode as a v1 frame so that the message can be forwarded to
+        // any client as-is
+        ByteBuffer data = readBuf.slice();
+        data.limit(dataSz);
+        readBuf.position(readBuf.position() + dataSz);
+        handleMessage(new Message(type, data));
+        return true;
+    }
+
+    // Rejects a size read from a frame header before any memory is allocated
+    // for it, since it comes from the client
+    private void checkMessageSize(int dataSz) throws IOException {
+        if (dataSz < 0) throw new IOException("Invalid message size " + dataSz);
+        if (dataSz > maxMessageSize)
+            throw new IOException(
+                    "Message of " + dataSz + " bytes exceeds maximum size of " + maxMessageSize);
+    }
+
+    // Reads a length-prefixed string, or returns null if it is not fully available
+    private String readString() throws IOException {
+        if (readBuf.remaining() < 2) return null;
+
+        int start = readBuf.position();
+        int len = readBuf.getShort() & 0xFFFF;
+        if (readBuf.remaining() < len) {
+            readBuf.position(start);
+            ensureReadCapacity(2 + len);
+            return null;
+        }
+
+        return ModifiedUtf8.read(readBuf, len);
+    }
+
+    // Grows the read buffer so that a frame of the given size starting at
+    // the current position can fit. Only valid while the buffer is flipped.
+    private void ensureReadCapacity(int frameSize) {
+        if (frameSize <= readBuf.capacity()) return;
+
+        ByteBuffer newBuf = ByteBuffer.allocate(Math.max(frameSize, readBuf.capacity() * 2));
+        newBuf.put(readBuf);
+        newBuf.flip();
+        readBuf = newBuf;
+    }
+
+    private void handleMessage(Message msg) throws IOException {
+        switch (msg.getType()) {
             case HEARTBEAT:
                 {
                     lastHeartbeatTime = System.currentTimeMillis();
 
                     // Fix for issue #4: Send heartbeat back to the client so it can
-                    // detect if the server goes down
-                    sendMessage(new Message(HEARTBEAT, new byte[0]));
+                    // detect if the server goes down. On a bridge we opened, this
+                    // is the other server's answer to ours.
+                    if (connector == null) sendMessage(HEARTBEAT_MSG);
                     break;
                 }
             case LISTEN:
                 {
-                    String listenType = in.readUTF();
+                    String listenType = readTypeName(msg);
                     System.out.println("Client " + name + " listening to " + listenType);
                     MessengerServer.get().broadcastEvent("Listen", name, listenType);
-                    if (listenType.charAt(listenType.length() - 1) == '*') {
-                        wildcards.add(listenType.substring(0, listenType.length() - 1));
-                    } else {
-                        listening.add(listenType);
-                    }
+                    MessengerServer.get().subscribe(this, listenType);
+                    break;
+                }
+            case RETAIN:
+                {
+                    String retainType = readTypeName(msg);
+                    System.out.println("Client " + name + " retaining " + retainType);
+                    MessengerServer.get().getRetained().addType(retainType);
+                    break;
+                }
+            case UNRETAIN:
+                {
+                    String unretainType = readTypeName(msg);
+                    System.out.println("Client " + name + " no longer retaining " + unretainType);
+                    MessengerServer.get().getRetained().removeType(unretainType);
                     break;
                 }
             case UNLISTEN:
                 {
-                    String unlistenType = in.readUTF();
+                    String unlistenType = readTypeName(msg);
                     System.out.println(
                             "Client " + name + " no longer listening to " + unlistenType);
                     MessengerServer.get().broadcastEvent("Unlisten", name, unlistenType);
-                    listening.remove(unlistenType);
-                    wildcards.remove(unlistenType.substring(0, unlistenType.length() - 1));
+                    MessengerServer.get().unsubscribe(this, unlistenType);
+                    break;
+                }
+            case Chunking.FEATURES:
+                {
+                    ByteBuffer data = msg.getDataView();
+                    if (data.remaining() < 4)
+                        throw new IOException("Truncated " + Chunking.FEATURES + " message");
+                    peerFeatures = data.getInt();
+                    requestsSupported = (peerFeatures & RequestRouter.FEATURE_REQUESTS) != 0;
+                    if (connector != null) {
+                        onBridgeAccepted();
+                        break;
+                    }
+
+                    sendMessage(FEATURES_MSG);
+                    if ((peerFeatures & BridgeTable.FEATURE_BRIDGE) != 0) startBridge();
+                    if ((peerFeatures & SharedMemory.FEATURE_SHARED_MEMORY) != 0)
+                        offerSharedMemory();
+
+                    // Clients on shared memory have no use for datagrams
+                    if ((peerFeatures & DatagramLane.FEATURE_DATAGRAM) != 0 && shm == null)
+                        openDatagramLane();
+                    break;
+                }
+            case SharedMemory.SWITCH:
+                {
+                    if (shm == null)
+                        throw new IOException("Client switched to shared memory without an offer");
+
+                    // Both sides have it mapped now, so the file isn't needed
+                    shm.deleteFile();
+                    shmIn = true;
+                    System.out.println("Client " + name + " switched to shared memory");
+
+                    // Anything else in the buffer is wakeup bytes
+                    readBuf.position(readBuf.limit());
+                    sendMessage(SHM_SWITCH_MSG);
+                    break;
+                }
+            case FrameEncoder.UPGRADE:
+                {
+                    if ((peerFeatures & FrameEncoder.FEATURE_V2) == 0)
+                        throw new IOException("Client upgraded without negotiating v2");
+                    inV2 = true;
+                    break;
+                }
+            case Chunking.CHUNK:
+                {
+                    Message complete = chunkAssembler.accept(msg.getDataView());
+                    if (complete != null) handleMessage(complete);
+                    break;
+                }
+            case RequestRouter.REQUEST:
+                {
+                    MessengerServer.get().getRequests().onRequest(this, msg);
+                    break;
+                }
+            case RequestRouter.REPLY:
+                {
+                    MessengerServer.get().getRequests().onReply(msg);
                     break;
                 }
             case DISCONNECT:
                 {
-                    connected = false;
                     System.out.println("Client " + name + " disconnected");
                     MessengerServer.get().broadcastEvent("Disconnect", name, "");
+                    close();
                     break;
                 }
             default:
                 {
-                    MessengerServer.get().onMessage(new Message(type, data));
+                    msg.setReceiveTime(readTime);
+                    if (bridge) msg.markBridged();
+                    MessengerServer.get().onMessage(msg);
                     break;
                 }
         }
     }
 
-    private void writeMessage(Message msg) throws IOException {
-        out.writeUTF(msg.getType());
+    // Reads the message type that a control message like _Listen refers to
+    private static String readTypeName(Message msg) throws IOException {
+        try {
+            return ModifiedUtf8.read(msg.getDataView());
+        } catch (EOFException e) {
+            throw new IOException("Truncated " + msg.getType() + " message", e);
+        }
+    }
+
+    // Called on a bridge we opened once the other server has sent its features
+    private void onBridgeAccepted() throws IOException {
+        if ((peerFeatures & BridgeTable.FEATURE_BRIDGE) == 0)
+            throw new IOException("Server at the other end does not support bridging");
 
-        byte[] data = msg.getData();
-        out.writeInt(data.length);
-        out.write(data);
+        // The other server uses v2 framing for everything after its features,
+        // since we advertised it
+        inV2 = true;
+        sendMessage(UPGRADE_MSG);
+        startBridge();
     }
 
-    @Override
-    public void run() {
-        MessengerServer.get().addClient(this);
+    // Starts exchanging subscriptions with the server at the other end
+    private void startBridge() {
+        System.out.println("Client " + name + " is a bridge to another server");
+        bridge = true;
+        MessengerServer.get().getBridges().addBridge(this);
+    }
+
+    // Gives the client a token to identify its datagrams
+    private void openDatagramLane() {
+        DatagramLane lane = MessengerServer.get().getDatagramLane();
+        if (lane == null || datagramPeer != null) return;
+
+        datagramPeer = lane.register(this);
+        sendMessage(
+                new Message(
+                        DatagramLane.TOKEN,
+                        ByteBuffer.allocate(8).putLong(datagramPeer.getToken()).array()));
+    }
+
+    /**
+     * Handles a message received from this client as a datagram. Called from the datagram thread.
+     *
+     * @param msg received message
+     */
+    void onDatagramMessage(Message msg) {
+        if (connected) MessengerServer.get().onMessage(msg);
+    }
+
+    // Offers shared memory to the client if it is on this host
+    private void offerSharedMemory() {
+        MessengerConfiguration config = MessengerServer.get().getConfig();
+        if (!config.isSharedMemory() || shm != null || !isLocalPeer()) return;
 
         try {
-            main:
-            while (connected) {
-                // Check timeout
-                if (System.currentTimeMillis() - lastHeartbeatTime > TIMEOUT) {
-                    System.out.println("Client " + name + " disconnected due to heartbeat timeout");
+            shm = SharedMemory.create(config.getSharedMemoryRingSize());
+        } catch (IOException e) {
+            System.err.println("Failed to create shared memory for client " + name + ":");
+            e.printStackTrace();
+            return;
+        }
 
-                    MessengerServer.get().broadcastEvent("Timeout", name, "");
-                    break;
-                }
+        ByteBuffer path = ByteBuffer.allocate(2 + ModifiedUtf8.encodedLength(shm.getPath()));
+        try {
+            ModifiedUtf8.write(shm.getPath(), path);
+        } catch (UTFDataFormatException e) {
+            shm.deleteFile();
+            shm = null;
+            return;
+        }
+        path.flip();
+        sendMessage(new Message(SharedMemory.OFFER, path));
+    }
 
-                // Read incoming messages
-                while (in.available() > 0) {
-                    if (identified) {
-                        readMessage();
+    private boolean isLocalPeer() {
+        try {
+            SocketAddress address = channel.getRemoteAddress();
+            if (!(address instanceof InetSocketAddress)) return false;
 
-                        if (!connected) {
-                            break main;
-                        }
-                    } else {
-                        name = in.readUTF();
-                        identified = true;
+            InetAddress inet = ((InetSocketAddress) address).getAddress();
+            return inet.isLoopbackAddress() || NetworkInterface.getByInetAddress(inet) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
 
-                        MessengerServer.get().broadcastEvent("Connect", name, "");
-                    }
+    /**
+     * Writes as many queued messages as the socket will accept without blocking. Queued frames are
+     * gathered into a single write, so a batch of messages costs one system call. If the socket's
+     * send buffer fills up, the client is registered for write readiness so the rest is written
+     * once there is room.
+     */
+    void flush() throws IOException {
+        if (!connected) return;
+        flushRequested.set(false);
+
+        while (true) {
+            if (writeStart == writeEnd) {
+                // The batch ending with _ShmSwitch has been fully written
+                if (switchOutAfterBatch) {
+                    switchOutAfterBatch = false;
+                    shmOut = true;
                 }
 
-                // Send outgoing messages
-                Message msg;
-                while ((msg = outgoingMessages.poll()) != null) {
-                    writeMessage(msg);
+                if (!gatherFrames()) break;
+            }
+
+            if (shmOut) {
+                if (!writeShared()) {
+                    // Ring is full. The client wakes us up once it has read
+                    // some, so check again after setting the flag in case it
+                    // already has.
+                    shm.getOut().setWriterWaiting();
+                    if (!writeShared()) {
+                        wakeUpReader();
+                        return;
+                    }
                 }
+                continue;
+            }
+
+            channel.write(writeFrames, writeStart, writeEnd - writeStart);
+            releaseWrittenFrames();
+
+            if (writeStart < writeEnd) {
+                // Socket send buffer is full, wait until it has room
+                waitingToWrite = true;
+                updateInterestOps();
+                return;
+            }
+        }
+
+        if (shmOut) wakeUpReader();
+        waitingToWrite = false;
+        updateInterestOps();
+    }
+
+    // Writes as much of the current batch to the shared memory ring as will
+    // fit. Returns whether all of it was written.
+    private boolean writeShared() {
+        SharedRing ring = shm.getOut();
+        for (int i = writeStart; i < writeEnd; i++) {
+            ByteBuffer frame = writeFrames[i];
+            ring.write(frame);
+            if (frame.hasRemaining()) break;
+        }
+        releaseWrittenFrames();
+        return writeStart == writeEnd;
+    }
+
+    // Tells the client there is data in the ring if it is waiting for some
+    private void wakeUpReader() throws IOException {
+        if (shm.getOut().takeReaderWaiting()) {
+            wakeupBuf.clear().put((byte) 0).flip();
+            channel.write(wakeupBuf);
+        }
+    }
+
+    private void releaseWrittenFrames() {
+        while (writeStart < writeEnd && !writeFrames[writeStart].hasRemaining()) {
+            Message written = writeMessages[writeStart];
+            if (written != null) {
+                writeMessages[writeStart] = null;
+                written.finishDelivery();
+            }
+            writeFrames[writeStart++] = null;
+        }
+    }
+
+    // Takes queued messages into the write array. Returns false if there
+    // were none. Control messages are always taken first, and large messages
+    // are sent one chunk per batch, so a bulk transfer never holds up a
+    // heartbeat for longer than one batch.
+    private boolean gatherFrames() throws UTFDataFormatException {
+        writeStart = writeEnd = 0;
+
+        if (handshake != null) {
+            writeFrames[writeEnd++] = handshake;
+            handshake = null;
+        }
+
+        // Each message takes up to two buffers, and each chunk up to three
+        Message msg;
+        while (writeEnd <= MAX_GATHER - 2 && (msg = controlMessages.poll()) != null) {
+            addFrame(msg);
 
-                // Give other threads a chance to run
-                try {
-                    Thread.sleep(1000 / 50);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            // The client switches to v2 as soon as it receives our features,
+            // so everything after them must use v2
+            if (msg == FEATURES_MSG && (peerFeatures & FrameEncoder.FEATURE_V2) != 0)
+                encoder.upgrade();
+            if (msg == UPGRADE_MSG) encoder.upgrade();
+
+            // Nothing after the switch may go on the socket
+            if (msg == SHM_SWITCH_MSG) {
+                switchOutAfterBatch = true;
+                return true;
+            }
+        }
+
+        int batchBytes = 0;
+        if (bulkMessage != null && writeEnd <= MAX_GATHER - 3) {
+            batchBytes += addBulkChunk();
+        }
+
+        boolean chunking = (peerFeatures & Chunking.FEATURE_CHUNKING) != 0;
+        while (writeEnd <= MAX_GATHER - 3
+                && batchBytes < MAX_BATCH_BYTES
+                && (msg = outgoingMessages.poll()) != null) {
+            if (chunking && Chunking.shouldChunk(msg)) {
+                if (bulkMessage != null) {
+                    pendingBulk.add(msg);
+                } else {
+                    startBulk(msg);
+                    batchBytes += addBulkChunk();
                 }
+            } else {
+                batchBytes += addFrame(msg);
             }
+        }
 
-            // Disconnect socket if not already
-            if (!socket.isClosed()) socket.close();
-        } catch (IOException e) {
-            System.err.println("Exception in remote client connection " + name + ":");
-            e.printStackTrace();
+        return writeEnd > 0;
+    }
+
+    // Adds a whole message to the write array, returning its size in bytes.
+    // In v1 the message's shared frame is written as-is, and in v2 only the
+    // header is encoded for this connection.
+    private int addFrame(Message msg) throws UTFDataFormatException {
+        if (!encoder.isV2()) {
+            ByteBuffer frame = msg.getFrame();
+            writeMessages[writeEnd] = msg;
+            writeFrames[writeEnd++] = frame;
+            return frame.remaining();
+        }
+
+        ByteBuffer header = encoder.encodeHeader(msg.getType(), msg.getDataSize());
+        writeFrames[writeEnd++] = header;
+        if (msg.getDataSize() > 0) writeFrames[writeEnd++] = msg.getDataView();
+        writeMessages[writeEnd - 1] = msg;
+        return header.remaining() + msg.getDataSize();
+    }
+
+    private void startBulk(Message msg) {
+        bulkMessage = msg;
+        bulkData = msg.getDataView();
+        bulkOffset = 0;
+        bulkStreamId++;
+    }
+
+    // Adds the next chunk of the current bulk message to the write array,
+    // returning the number of data bytes added
+    private int addBulkChunk() throws UTFDataFormatException {
+        int len = Math.min(Chunking.CHUNK_SIZE, bulkMessage.getDataSize() - bulkOffset);
+        ByteBuffer chunkHeader = Chunking.encodeHeader(bulkStreamId, bulkMessage, bulkOffset, len);
+        writeFrames[writeEnd++] =
+                encoder.encodeHeader(Chunking.CHUNK, chunkHeader.remaining() + len);
+        writeFrames[writeEnd++] = chunkHeader;
+
+        ByteBuffer slice = bulkData.duplicate();
+        slice.position(bulkOffset).limit(bulkOffset + len);
+        writeFrames[writeEnd++] = slice;
+
+        bulkOffset += len;
+        if (bulkOffset == bulkMessage.getDataSize()) {
+            writeMessages[writeEnd - 1] = bulkMessage;
+            bulkMessage = null;
+            bulkData = null;
+
+            Message next = pendingBulk.poll();
+            if (next != null) startBulk(next);
+        }
+
+        return len;
+    }
+
+    void checkTimeout(long now) {
+        outgoingMessages.checkBlockTimeout(now);
 
-            MessengerServer.get().broadcastEvent("Error", name, "");
+        if (connected && connector != null && now - lastHeartbeatSent >= HEARTBEAT_INTERVAL) {
+            lastHeartbeatSent = now;
+            sendMessage(HEARTBEAT_MSG);
         }
 
+        if (connected && now - lastHeartbeatTime > TIMEOUT) {
+            System.out.println("Client " + name + " disconnected due to heartbeat timeout");
+
+            MessengerServer.get().broadcastEvent("Timeout", name, "");
+            close();
+        }
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    void onError(Exception e) {
+        if (!connected) return;
+
+        System.err.println("Exception in remote client connection " + name + ":");
+        e.printStackTrace();
+
+        MessengerServer.get().broadcastEvent("Error", name, "");
+        close();
+    }
+
+    private void close() {
+        if (!connected) return;
+        connected = false;
+
+        key.cancel();
+        IoThread.closeQuietly(channel);
+        outgoingMessages.resumePublishers();
+        if (shm != null) shm.deleteFile();
+        if (datagramPeer != null) MessengerServer.get().getDatagramLane().unregister(datagramPeer);
+
+        ioThread.removeClient(this);
         MessengerServer.get().removeClient(this);
+        if (connector != null) connector.onClosed();
     }
 
     @Override
@@ -171,19 +860,45 @@ public final class RemoteClient implements Client, Runnable {
 
     @Override
     public void sendMessage(Message msg) {
-        outgoingMessages.add(msg);
+        DatagramLane.Peer peer = datagramPeer;
+        if (msg.isLossy() && peer != null) {
+            if (MessengerServer.get().getDatagramLane().send(peer, msg)) {
+                msg.finishDelivery();
+                return;
+            }
+        }
+
+        String type = msg.getType();
+        if (type.startsWith("_") && !RequestRouter.isRequestOrReply(type)) {
+            controlMessages.add(msg);
+        } else {
+            // If the queue is full, the client whose message is being
+            // dispatched on this thread is paused instead of waiting here
+            outgoingMessages.offer(msg, IoThread.currentReader());
+        }
+
+        if (flushRequested.compareAndSet(false, true)) {
+            ioThread.requestFlush(this);
+        }
     }
 
     @Override
-    public boolean listensTo(String type) {
-        if (listening.contains(type)) return true;
+    public QueueStats getQueueStats() {
+        return outgoingMessages.getStats();
+    }
 
-        for (String wildcard : wildcards) {
-            if (type.startsWith(wildcard)) {
-                return true;
-            }
-        }
+    @Override
+    public boolean supportsRequests() {
+        return requestsSupported;
+    }
+
+    @Override
+    public boolean isBridge() {
+        return bridge;
+    }
 
-        return false;
+    @Override
+    public boolean listensTo(String type) {
+        return MessengerServer.get().getSubscriptions().isSubscribed(this, type);
     }
 }
@@ -1,36 +1,79 @@
 package com.swrobotics.messenger.server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 public final class RemoteClientConnector implements Runnable {
     public RemoteClientConnector() {}
 
     @Override
     public void run() {
-        int port = MessengerServer.get().getConfig().getPort();
+        MessengerConfiguration config = MessengerServer.get().getConfig();
+        int port = config.getPort();
 
         System.out.println("Opening port " + port + " for Messenger");
 
-        ServerSocket socket = null;
+        ServerSocketChannel socket = null;
         try {
-            socket = new ServerSocket(port);
+            socket = ServerSocketChannel.open();
+            socket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            socket.bind(new InetSocketAddress(port));
         } catch (IOException e) {
             System.err.println("Failed to open port " + port);
             e.printStackTrace();
             System.exit(1);
         }
 
+        if (config.isSharedMemory()) SharedMemory.deleteStaleFiles();
+
+        // Clients fall back to TCP for everything if this fails
+        if (config.isDatagram()) {
+            try {
+                DatagramLane lane = new DatagramLane(port);
+                lane.start("Messenger Datagram Thread");
+                MessengerServer.get().setDatagramLane(lane);
+            } catch (IOException e) {
+                System.err.println("Failed to open UDP port " + port);
+                e.printStackTrace();
+            }
+        }
+
+        IoThread[] ioThreads = new IoThread[config.getIoThreads()];
+        for (int i = 0; i < ioThreads.length; i++) {
+            try {
+                ioThreads[i] = new IoThread();
+            } catch (IOException e) {
+                System.err.println("Failed to open selector");
+                e.printStackTrace();
+                System.exit(1);
+            }
+            ioThreads[i].start("Messenger I/O Thread " + i);
+        }
+
+        if (config.getBridgeHost() != null) {
+            BridgeConnector bridge =
+                    new BridgeConnector(
+                            config.getBridgeHost(), config.getBridgePort(), ioThreads[0]);
+            new Thread(bridge, "Messenger Bridge Connector").start();
+        }
+
         System.out.println("Listening for incoming connections");
 
+        int nextThread = 0;
         while (true) {
             try {
-                Socket clientSocket = socket.accept();
+                SocketChannel clientSocket = socket.accept();
                 System.out.println("Client has connected");
 
-                RemoteClient client = new RemoteClient(clientSocket);
-                new Thread(client).start();
+                // Messages are written as whole frames, so there is no benefit
+                // to waiting for more data before sending
+                clientSocket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+
+                ioThreads[nextThread].addChannel(clientSocket);
+                nextThread = (nextThread + 1) % ioThreads.length;
             } catch (IOException e) {
                 System.err.println("Exception whilst accepting a client connection:");
                 e.printStackTrace();
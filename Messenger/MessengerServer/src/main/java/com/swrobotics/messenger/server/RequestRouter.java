@@ -0,0 +1,175 @@
+package com.swrobotics.messenger.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes requests to the clients that handle their type, and each reply back to only the client
+ * that made the request. A request is forwarded to every client listening to its type, and the
+ * first reply wins.
+ *
+ * <p>The requester picks an ID for each request, which only has to be unique on its connection.
+ * The server replaces it with its own ID before forwarding the request, and puts the requester's
+ * ID back on the reply.
+ *
+ * <pre>
+ * _Request (both directions):   long id, String type, raw payload
+ * _Reply (both directions):     long id, String type, raw payload
+ * _RequestFailed (to requester): long id, String reason
+ * </pre>
+ *
+ * Listeners that don't support requests receive the payload as a plain message of the requested
+ * type, as if it had been broadcast.
+ */
+public final class RequestRouter {
+    /** Feature bit indicating the peer can send and handle requests. */
+    public static final int FEATURE_REQUESTS = 16;
+
+    public static final String REQUEST = "_Request";
+    public static final String REPLY = "_Reply";
+    public static final String FAILED = "_RequestFailed";
+
+    // How long to remember a request that hasn't been replied to. Requesters
+    // normally give up long before this.
+    private static final long EXPIRY = TimeUnit.SECONDS.toNanos(60);
+
+    /** Request waiting for its reply. */
+    private static final class Pending {
+        final Client requester;
+        final long requestId;
+        final long time;
+
+        Pending(Client requester, long requestId, long time) {
+            this.requester = requester;
+            this.requestId = requestId;
+            this.time = time;
+        }
+    }
+
+    private final AtomicLong nextId;
+    private final Map<Long, Pending> pending;
+    private volatile long lastExpireTime;
+
+    public RequestRouter() {
+        nextId = new AtomicLong(0);
+        pending = new ConcurrentHashMap<>();
+        lastExpireTime = System.nanoTime();
+    }
+
+    /**
+     * Gets whether a message type carries a request or reply. These hold message data, so they
+     * are queued and chunked like other messages instead of being sent ahead of them.
+     *
+     * @param type message type
+     * @return whether the type is a request or reply
+     */
+    public static boolean isRequestOrReply(String type) {
+        return type.equals(REQUEST) || type.equals(REPLY);
+    }
+
+    /**
+     * Forwards a request to the clients listening to its type.
+     *
+     * @param requester client that sent the request
+     * @param msg {@code _Request} message
+     * @throws IOException if the message is malformed
+     */
+    public void onRequest(Client requester, Message msg) throws IOException {
+        long now = System.nanoTime();
+        if (now - lastExpireTime > EXPIRY) expire(now);
+
+        ByteBuffer data = msg.getDataView();
+        if (data.remaining() < 8) throw new EOFException("Truncated request");
+        long requestId = data.getLong();
+        String type = ModifiedUtf8.read(data);
+
+        MessengerServer server = MessengerServer.get();
+        Message plain = new Message(type, data.duplicate());
+        server.getLog().logMessage(plain);
+        server.getStats().recordMessage(type, plain.getDataSize());
+
+        List<Client> subscribers = server.getSubscriptions().getSubscribers(type);
+        if (requester.isBridge()) subscribers = BridgeTable.withoutBridges(subscribers);
+        if (subscribers.isEmpty()) {
+            fail(requester, requestId, "No client handles " + type);
+            return;
+        }
+
+        long id = nextId.incrementAndGet();
+        pending.put(id, new Pending(requester, requestId, now));
+
+        Message forwarded = new Message(REQUEST, replaceId(msg, id));
+        for (Client client : subscribers) {
+            client.sendMessage(client.supportsRequests() ? forwarded : plain);
+        }
+    }
+
+    /**
+     * Sends a reply to the client that made the request. Replies to requests that were already
+     * answered or have expired are dropped.
+     *
+     * @param msg {@code _Reply} message
+     * @throws IOException if the message is malformed
+     */
+    public void onReply(Message msg) throws IOException {
+        ByteBuffer data = msg.getDataView();
+        if (data.remaining() < 8) throw new EOFException("Truncated reply");
+        long id = data.getLong();
+        String type = ModifiedUtf8.read(data);
+
+        MessengerServer server = MessengerServer.get();
+        server.getStats().recordMessage(type, data.remaining());
+
+        Pending p = pending.remove(id);
+        if (p == null) return;
+        server.getLog().logMessage(new Message(type, data));
+
+        p.requester.sendMessage(new Message(REPLY, replaceId(msg, p.requestId)));
+    }
+
+    /**
+     * Forgets the requests made by a client that has disconnected.
+     *
+     * @param client client that disconnected
+     */
+    public void removeClient(Client client) {
+        pending.values().removeIf((p) -> p.requester == client);
+    }
+
+    private void expire(long now) {
+        lastExpireTime = now;
+        for (Iterator<Pending> iter = pending.values().iterator(); iter.hasNext(); ) {
+            if (now - iter.next().time > EXPIRY) iter.remove();
+        }
+    }
+
+    // Copies a request or reply's data with a different ID. Data views are
+    // read-only, so the ID can't be replaced in place.
+    private static ByteBuffer replaceId(Message msg, long id) {
+        ByteBuffer data = ByteBuffer.allocate(msg.getDataSize());
+        data.put(msg.getDataView());
+        data.putLong(0, id);
+        data.flip();
+        return data;
+    }
+
+    private void fail(Client requester, long requestId, String reason) {
+        ByteBuffer data = ByteBuffer.allocate(8 + 2 + ModifiedUtf8.encodedLength(reason));
+        data.putLong(requestId);
+        try {
+            ModifiedUtf8.write(reason, data);
+        } catch (UTFDataFormatException e) {
+            throw new IllegalArgumentException("Reason is too long", e);
+        }
+        data.flip();
+        requester.sendMessage(new Message(FAILED, data));
+    }
+}
@@ -0,0 +1,71 @@
+package com.swrobotics.messenger.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores the most recent message of each retained type, so that a client that starts listening
+ * to the type receives it immediately instead of having to request it. Types are marked retained
+ * by their publishers with a {@code _Retain} message, and stay retained, along with their last
+ * message, until a {@code _Unretain} message or the server restarts.
+ */
+public final class RetainedMessages {
+    private final Set<String> types;
+    private final Map<String, Message> messages;
+
+    public RetainedMessages() {
+        types = ConcurrentHashMap.newKeySet();
+        messages = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Starts retaining messages of a type.
+     *
+     * @param type message type, matched exactly
+     */
+    public void addType(String type) {
+        types.add(type);
+    }
+
+    /**
+     * Stops retaining messages of a type, and forgets its last message.
+     *
+     * @param type message type
+     */
+    public void removeType(String type) {
+        types.remove(type);
+        messages.remove(type);
+    }
+
+    /**
+     * Stores a message if its type is retained, replacing the previous one.
+     *
+     * @param msg message being dispatched
+     */
+    public void offer(Message msg) {
+        if (types.contains(msg.getType())) messages.put(msg.getType(), msg.share());
+    }
+
+    /**
+     * Gets the retained messages a client listening to a pattern should receive.
+     *
+     * @param pattern pattern the client listens to, which may end in '*'
+     * @return matching retained messages
+     */
+    public List<Message> getMatching(String pattern) {
+        if (!SubscriptionIndex.isWildcard(pattern)) {
+            Message msg = messages.get(pattern);
+            return msg == null ? Collections.emptyList() : Collections.singletonList(msg);
+        }
+
+        List<Message> out = new ArrayList<>();
+        for (Message msg : messages.values()) {
+            if (SubscriptionIndex.matches(pattern, msg.getType())) out.add(msg);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,142 @@
+package com.swrobotics.messenger.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pair of {@link SharedRing}s in a memory-mapped file, used in place of the socket for clients on
+ * the same host. The server creates the file and tells the client its path, and the file is
+ * deleted once both sides have mapped it.
+ *
+ * <p>File layout:
+ *
+ * <pre>
+ *  0: int magic, int version, int ring capacity (padded to 64 bytes)
+ * 64: ring carrying messages from the client to the server
+ * 64 + ring size: ring carrying messages from the server to the client
+ * </pre>
+ */
+final class SharedMemory {
+    static final int FEATURE_SHARED_MEMORY = 4;
+
+    // Sent by the server with the path of the file
+    static final String OFFER = "_ShmOffer";
+
+    // Sent by each side as its last frame on the socket. Everything after it
+    // is written to the ring, and the socket only carries wakeup bytes.
+    static final String SWITCH = "_ShmSwitch";
+
+    static final int MAGIC = 0x4D53484D; // "MSHM"
+    static final int VERSION = 1;
+    static final int FILE_HEADER_SIZE = 64;
+
+    private static final String FILE_PREFIX = "messenger-";
+    private static final String FILE_SUFFIX = ".shm";
+
+    // Files are deleted as soon as the client maps them, so one older than
+    // this was left behind by a server that didn't shut down cleanly
+    private static final long STALE_AGE = TimeUnit.MINUTES.toMillis(1);
+
+    private final File file;
+    private final SharedRing in;
+    private final SharedRing out;
+
+    private SharedMemory(File file, SharedRing in, SharedRing out) {
+        this.file = file;
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Creates a new shared memory file. It is placed in {@code /dev/shm} if available, so that it
+     * is never written to disk, and the system temporary directory otherwise.
+     *
+     * @param capacity data capacity of each ring, must be a power of two
+     * @return shared memory from the server's side
+     * @throws IOException if the file can't be created or mapped
+     */
+    static SharedMemory create(int capacity) throws IOException {
+        File file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, getDirectory());
+
+        int ringSize = SharedRing.size(capacity);
+        MappedByteBuffer map;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(FILE_HEADER_SIZE + 2L * ringSize);
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+
+        SharedRing in = new SharedRing(map, FILE_HEADER_SIZE, capacity);
+        SharedRing out = new SharedRing(map, FILE_HEADER_SIZE + ringSize, capacity);
+        in.init();
+        out.init();
+
+        map.putInt(0, MAGIC);
+        map.putInt(4, VERSION);
+        map.putInt(8, capacity);
+
+        return new SharedMemory(file, in, out);
+    }
+
+    /**
+     * Deletes files left behind by a previous server that exited before its clients mapped them.
+     * Files that may still be waiting for a client of another server on this host are kept.
+     */
+    static void deleteStaleFiles() {
+        File[] files =
+                getDirectory()
+                        .listFiles(
+                                (dir, name) ->
+                                        name.startsWith(FILE_PREFIX)
+                                                && name.endsWith(FILE_SUFFIX));
+        if (files == null) return;
+
+        long cutoff = System.currentTimeMillis() - STALE_AGE;
+        int deleted = 0;
+        for (File file : files) {
+            if (file.lastModified() < cutoff && file.delete()) deleted++;
+        }
+        if (deleted > 0) System.out.println("Deleted " + deleted + " stale shared memory files");
+    }
+
+    // Prefers /dev/shm, so that the file is never written to disk
+    private static File getDirectory() {
+        File dir = new File("/dev/shm");
+        if (!dir.isDirectory() || !dir.canWrite())
+            dir = new File(System.getProperty("java.io.tmpdir"));
+        return dir;
+    }
+
+    /**
+     * Gets the path of the file, to send to the client.
+     *
+     * @return absolute file path
+     */
+    String getPath() {
+        return file.getAbsolutePath();
+    }
+
+    /** @return ring carrying messages from the client */
+    SharedRing getIn() {
+        return in;
+    }
+
+    /** @return ring carrying messages to the client */
+    SharedRing getOut() {
+        return out;
+    }
+
+    /**
+     * Deletes the file. The mapping stays valid for both sides until they are closed, so this is
+     * done as soon as the client has mapped it.
+     */
+    void deleteFile() {
+        file.delete();
+    }
+}
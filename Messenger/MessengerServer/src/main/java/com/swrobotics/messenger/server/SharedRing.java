@@ -0,0 +1,178 @@
+package com.swrobotics.messenger.server;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Single-producer, single-consumer byte ring stored in shared memory. The producer and consumer
+ * may be in different processes. Neither side ever blocks here. Instead, each side can set a
+ * waiting flag, which the other side clears when it makes progress and then notifies the waiting
+ * side through some other channel.
+ *
+ * <p>Positions and flags are accessed with volatile semantics, so a side that sets its waiting
+ * flag and then checks the ring again can't miss progress made by the other side in between.
+ *
+ * <p>The client maps the same rings with its own copy, {@code
+ * com.swrobotics.messenger.client.SharedRing}, so the header layout must match it exactly. Only
+ * this side creates and initializes rings.
+ */
+final class SharedRing {
+    static final int HEADER_SIZE = 128;
+
+    // Header layout. The producer and consumer fields are in separate cache
+    // lines so that the two sides don't contend on every update.
+    private static final int WRITE_POS = 0;
+    private static final int WRITER_WAITING = 8;
+    private static final int READ_POS = 64;
+    private static final int READER_WAITING = 72;
+
+    private static final VarHandle LONG =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final VarHandle INT =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private final ByteBuffer header;
+    private final ByteBuffer data;
+    private final int capacity;
+    private final int mask;
+
+    /**
+     * @param map shared memory mapping
+     * @param offset offset of the ring's header within the mapping, must be a multiple of 8
+     * @param capacity size of the ring's data in bytes, must be a power of two
+     */
+    SharedRing(ByteBuffer map, int offset, int capacity) {
+        this.capacity = capacity;
+        mask = capacity - 1;
+
+        header = slice(map, offset, HEADER_SIZE);
+        data = slice(map, offset + HEADER_SIZE, capacity);
+    }
+
+    private static ByteBuffer slice(ByteBuffer map, int offset, int length) {
+        ByteBuffer dup = map.duplicate();
+        dup.position(offset).limit(offset + length);
+        return dup.slice();
+    }
+
+    /**
+     * Gets the total size of a ring in the mapping.
+     *
+     * @param capacity data capacity of the ring
+     * @return size including the header
+     */
+    static int size(int capacity) {
+        return HEADER_SIZE + capacity;
+    }
+
+    /** Resets a newly created ring. Must be done before either side uses it. */
+    void init() {
+        LONG.setVolatile(header, WRITE_POS, 0L);
+        LONG.setVolatile(header, READ_POS, 0L);
+        INT.setVolatile(header, WRITER_WAITING, 0);
+
+        // Nothing has been read yet, so the first write should notify the reader
+        INT.setVolatile(header, READER_WAITING, 1);
+    }
+
+    /**
+     * Gets the number of bytes available to read.
+     *
+     * @return available byte count
+     */
+    int available() {
+        long write = (long) LONG.getVolatile(header, WRITE_POS);
+        long read = (long) LONG.getVolatile(header, READ_POS);
+        return (int) (write - read);
+    }
+
+    /**
+     * Writes as much of a buffer as there is room for. Only called by the producer.
+     *
+     * @param src data to write. Its position is advanced past the bytes written.
+     * @return number of bytes written
+     */
+    int write(ByteBuffer src) {
+        long write = (long) LONG.getVolatile(header, WRITE_POS);
+        long read = (long) LONG.getVolatile(header, READ_POS);
+        int count = Math.min(capacity - (int) (write - read), src.remaining());
+        if (count == 0) return 0;
+
+        int index = (int) write & mask;
+        int first = Math.min(count, capacity - index);
+        int limit = src.limit();
+
+        src.limit(src.position() + first);
+        data.position(index);
+        data.put(src);
+
+        if (first < count) {
+            src.limit(src.position() + count - first);
+            data.position(0);
+            data.put(src);
+        }
+        src.limit(limit);
+
+        LONG.setVolatile(header, WRITE_POS, write + count);
+        return count;
+    }
+
+    /**
+     * Reads as many bytes as are available and fit into a buffer. Only called by the consumer.
+     *
+     * @param dst buffer to read into. Its position is advanced past the bytes read.
+     * @return number of bytes read
+     */
+    int read(ByteBuffer dst) {
+        long write = (long) LONG.getVolatile(header, WRITE_POS);
+        long read = (long) LONG.getVolatile(header, READ_POS);
+        int count = Math.min((int) (write - read), dst.remaining());
+        if (count == 0) return 0;
+
+        int index = (int) read & mask;
+        int first = Math.min(count, capacity - index);
+
+        data.position(index).limit(index + first);
+        dst.put(data);
+        if (first < count) {
+            data.position(0).limit(count - first);
+            dst.put(data);
+        }
+        data.limit(capacity);
+
+        LONG.setVolatile(header, READ_POS, read + count);
+        return count;
+    }
+
+    /** Marks the consumer as waiting for the producer to write. */
+    void setReaderWaiting() {
+        INT.setVolatile(header, READER_WAITING, 1);
+    }
+
+    /**
+     * Clears the consumer's waiting flag. Called by the producer after writing.
+     *
+     * @return whether the consumer was waiting and should be notified
+     */
+    boolean takeReaderWaiting() {
+        return (int) INT.getVolatile(header, READER_WAITING) != 0
+                && INT.compareAndSet(header, READER_WAITING, 1, 0);
+    }
+
+    /** Marks the producer as waiting for the consumer to make room. */
+    void setWriterWaiting() {
+        INT.setVolatile(header, WRITER_WAITING, 1);
+    }
+
+    /**
+     * Clears the producer's waiting flag. Called by the consumer after reading.
+     *
+     * @return whether the producer was waiting and should be notified
+     */
+    boolean takeWriterWaiting() {
+        return (int) INT.getVolatile(header, WRITER_WAITING) != 0
+                && INT.compareAndSet(header, WRITER_WAITING, 1, 0);
+    }
+}
@@ -0,0 +1,293 @@
+package com.swrobotics.messenger.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routing table mapping message types to the clients that listen to them. Exact type IDs are
+ * stored in a hash map, and wildcard prefixes are stored in a prefix trie, so the cost of finding
+ * the recipients of a message depends on the length of its type and the number of matching
+ * subscribers, not on the total number of clients or wildcards.
+ *
+ * <p>Subscriber lists and trie nodes' child tables are immutable arrays that are replaced on
+ * modification, so lookups never take a lock. Modifications are serialized with each other.
+ */
+public final class SubscriptionIndex {
+    private static final Client[] NONE = new Client[0];
+
+    /** Children of a trie node, with keys sorted so they can be binary searched. */
+    private static final class Children {
+        static final Children EMPTY = new Children(new char[0], new TrieNode[0]);
+
+        final char[] keys;
+        final TrieNode[] nodes;
+
+        Children(char[] keys, TrieNode[] nodes) {
+            this.keys = keys;
+            this.nodes = nodes;
+        }
+
+        TrieNode get(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i < 0 ? null : nodes[i];
+        }
+
+        Children with(char c, TrieNode node) {
+            int i = -Arrays.binarySearch(keys, c) - 1;
+            char[] k = new char[keys.length + 1];
+            TrieNode[] n = new TrieNode[nodes.length + 1];
+            System.arraycopy(keys, 0, k, 0, i);
+            System.arraycopy(nodes, 0, n, 0, i);
+            k[i] = c;
+            n[i] = node;
+            System.arraycopy(keys, i, k, i + 1, keys.length - i);
+            System.arraycopy(nodes, i, n, i + 1, nodes.length - i);
+            return new Children(k, n);
+        }
+
+        Children without(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            if (i < 0) return this;
+            if (keys.length == 1) return EMPTY;
+            char[] k = new char[keys.length - 1];
+            TrieNode[] n = new TrieNode[nodes.length - 1];
+            System.arraycopy(keys, 0, k, 0, i);
+            System.arraycopy(nodes, 0, n, 0, i);
+            System.arraycopy(keys, i + 1, k, i, k.length - i);
+            System.arraycopy(nodes, i + 1, n, i, n.length - i);
+            return new Children(k, n);
+        }
+    }
+
+    private static final class TrieNode {
+        volatile Children children = Children.EMPTY;
+        volatile Client[] subscribers = NONE;
+
+        TrieNode child(char c) {
+            return children.get(c);
+        }
+
+        // Only called while holding the lock on the index
+        TrieNode getOrAddChild(char c) {
+            TrieNode child = children.get(c);
+            if (child == null) {
+                child = new TrieNode();
+                children = children.with(c, child);
+            }
+            return child;
+        }
+    }
+
+    private final Map<String, Client[]> exact;
+    private final TrieNode wildcardRoot;
+
+    // Patterns each client is subscribed to, so they can be removed on disconnect.
+    // Only accessed while holding the lock on this object.
+    private final Map<Client, Set<String>> patternsByClient;
+
+    public SubscriptionIndex() {
+        exact = new ConcurrentHashMap<>();
+        wildcardRoot = new TrieNode();
+        patternsByClient = new HashMap<>();
+    }
+
+    /**
+     * Subscribes a client to a pattern. If the pattern ends in '*', it matches all types starting
+     * with the preceding characters. Otherwise it matches the type exactly.
+     *
+     * @param client client to subscribe
+     * @param pattern pattern to subscribe to
+     * @return whether the client was not already subscribed to the pattern
+     */
+    public synchronized boolean subscribe(Client client, String pattern) {
+        if (!patternsByClient.computeIfAbsent(client, (c) -> new HashSet<>()).add(pattern))
+            return false;
+
+        if (isWildcard(pattern)) {
+            TrieNode node = wildcardRoot;
+            String prefix = prefixOf(pattern);
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.getOrAddChild(prefix.charAt(i));
+            }
+            node.subscribers = with(node.subscribers, client);
+        } else {
+            exact.put(pattern, with(exact.getOrDefault(pattern, NONE), client));
+        }
+        return true;
+    }
+
+    /**
+     * Unsubscribes a client from a pattern previously passed to {@link #subscribe}.
+     *
+     * @param client client to unsubscribe
+     * @param pattern pattern to unsubscribe from
+     * @return whether the client was subscribed to the pattern
+     */
+    public synchronized boolean unsubscribe(Client client, String pattern) {
+        Set<String> patterns = patternsByClient.get(client);
+        if (patterns == null || !patterns.remove(pattern)) return false;
+        if (patterns.isEmpty()) patternsByClient.remove(client);
+
+        removePattern(client, pattern);
+        return true;
+    }
+
+    /**
+     * Removes all subscriptions of a client.
+     *
+     * @param client client to remove
+     * @return patterns the client was subscribed to
+     */
+    public synchronized Set<String> unsubscribeAll(Client client) {
+        Set<String> patterns = patternsByClient.remove(client);
+        if (patterns == null) return Collections.emptySet();
+
+        for (String pattern : patterns) {
+            removePattern(client, pattern);
+        }
+        return patterns;
+    }
+
+    private void removePattern(Client client, String pattern) {
+        if (isWildcard(pattern)) {
+            removeFromTrie(wildcardRoot, prefixOf(pattern), 0, client);
+        } else {
+            Client[] remaining = without(exact.getOrDefault(pattern, NONE), client);
+            if (remaining.length == 0) exact.remove(pattern);
+            else exact.put(pattern, remaining);
+        }
+    }
+
+    // Returns whether the node is now empty and can be pruned from its parent
+    private boolean removeFromTrie(TrieNode node, String prefix, int depth, Client client) {
+        if (depth == prefix.length()) {
+            node.subscribers = without(node.subscribers, client);
+        } else {
+            char c = prefix.charAt(depth);
+            TrieNode child = node.child(c);
+            if (child != null && removeFromTrie(child, prefix, depth + 1, client)) {
+                node.children = node.children.without(c);
+            }
+        }
+
+        return node.subscribers.length == 0 && node.children.keys.length == 0;
+    }
+
+    /**
+     * Gets all clients subscribed to a message type. Each client appears at most once, even if it
+     * has multiple matching subscriptions.
+     *
+     * @param type message type
+     * @return matching clients, as an unmodifiable list
+     */
+    public List<Client> getSubscribers(String type) {
+        Client[] first = exact.getOrDefault(type, NONE);
+        List<Client> out = null;
+        Set<Client> seen = null;
+
+        TrieNode node = wildcardRoot;
+        int depth = 0;
+        while (node != null) {
+            Client[] subs = node.subscribers;
+            if (subs.length > 0) {
+                if (first.length == 0) {
+                    first = subs;
+                } else {
+                    // A second non-empty list, so the same client may appear
+                    // in both. Only now is it worth copying and deduplicating.
+                    if (out == null) {
+                        out = new ArrayList<>(first.length + subs.length);
+                        seen = Collections.newSetFromMap(new IdentityHashMap<>());
+                        for (Client client : first) {
+                            if (seen.add(client)) out.add(client);
+                        }
+                    }
+                    for (Client client : subs) {
+                        if (seen.add(client)) out.add(client);
+                    }
+                }
+            }
+
+            if (depth == type.length()) break;
+            node = node.child(type.charAt(depth++));
+        }
+
+        if (out != null) return Collections.unmodifiableList(out);
+        if (first.length == 0) return Collections.emptyList();
+        return Collections.unmodifiableList(Arrays.asList(first));
+    }
+
+    /**
+     * Gets whether a client is subscribed to a message type. Unlike {@link #getSubscribers}, this
+     * does not allocate.
+     *
+     * @param client client to check
+     * @param type message type
+     * @return whether any of the client's subscriptions match the type
+     */
+    public boolean isSubscribed(Client client, String type) {
+        if (contains(exact.getOrDefault(type, NONE), client)) return true;
+
+        TrieNode node = wildcardRoot;
+        int depth = 0;
+        while (node != null) {
+            if (contains(node.subscribers, client)) return true;
+            if (depth == type.length()) break;
+            node = node.child(type.charAt(depth++));
+        }
+        return false;
+    }
+
+    private static boolean contains(Client[] arr, Client client) {
+        for (Client c : arr) {
+            if (c == client) return true;
+        }
+        return false;
+    }
+
+    static boolean isWildcard(String pattern) {
+        return !pattern.isEmpty() && pattern.charAt(pattern.length() - 1) == '*';
+    }
+
+    /**
+     * Gets whether a pattern matches a message type, using the same rules as subscriptions.
+     *
+     * @param pattern pattern, which may end in '*'
+     * @param type message type
+     * @return whether the pattern matches
+     */
+    static boolean matches(String pattern, String type) {
+        if (!isWildcard(pattern)) return pattern.equals(type);
+        return type.startsWith(prefixOf(pattern));
+    }
+
+    private static String prefixOf(String wildcard) {
+        return wildcard.substring(0, wildcard.length() - 1);
+    }
+
+    private static Client[] with(Client[] arr, Client client) {
+        Client[] out = Arrays.copyOf(arr, arr.length + 1);
+        out[arr.length] = client;
+        return out;
+    }
+
+    private static Client[] without(Client[] arr, Client client) {
+        for (int i = 0; i < arr.length; i++) {
+            if (arr[i] == client) {
+                Client[] out = new Client[arr.length - 1];
+                System.arraycopy(arr, 0, out, 0, i);
+                System.arraycopy(arr, i + 1, out, i, arr.length - i - 1);
+                return out;
+            }
+        }
+        return arr;
+    }
+}
@@ -0,0 +1,73 @@
+package com.swrobotics.messenger.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes non-negative {@code int}s as unsigned LEB128 variable-length integers, which take one
+ * byte per 7 bits of the value.
+ *
+ * <p>The client's copy, {@code com.swrobotics.messenger.client.Varint}, only has the operations
+ * it needs and reads from a stream instead of a buffer. Both must agree on the encoding.
+ */
+public final class Varint {
+    /** Maximum number of bytes an encoded {@code int} can take. */
+    public static final int MAX_SIZE = 5;
+
+    /**
+     * Gets the number of bytes needed to encode a value.
+     *
+     * @param value value to measure, must not be negative
+     * @return encoded size in bytes
+     */
+    public static int size(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    /**
+     * Writes a value into a buffer.
+     *
+     * @param value value to write, must not be negative
+     * @param buf buffer to write into
+     */
+    public static void write(int value, ByteBuffer buf) {
+        while ((value & ~0x7F) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    /**
+     * Reads a value from a buffer. If the buffer does not contain the whole value, the position is
+     * left unchanged and -1 is returned.
+     *
+     * @param buf buffer to read from
+     * @return value read, or -1 if incomplete
+     * @throws IOException if the value is too large for an {@code int}
+     */
+    public static int read(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_SIZE; shift += 7) {
+            if (!buf.hasRemaining()) {
+                buf.position(start);
+                return -1;
+            }
+
+            byte b = buf.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) throw new IOException("Varint out of range");
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private Varint() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,282 @@
+package com.swrobotics.messenger.server.log;
+
+import com.swrobotics.messenger.server.Message;
+import com.swrobotics.messenger.server.ModifiedUtf8;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs messages to a file in the binary format described in {@link BinaryLogFormat}. Callers only
+ * enqueue the message, and a dedicated writer thread encodes and writes it, so logging never
+ * blocks the I/O threads on disk access.
+ */
+public final class BinaryFileLogger implements MessageLogger {
+    // Large enough to hold any record other than message data, which is
+    // written directly if it doesn't fit
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    // Add an index entry at most this often, and write an index block once it
+    // has this many entries
+    private static final long INDEX_ENTRY_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int INDEX_BLOCK_ENTRIES = 128;
+
+    private static final class Entry {
+        final long timestamp;
+        final Message msg;
+        final String eventType, eventName, eventDescriptor;
+
+        Entry(long timestamp, Message msg) {
+            this.timestamp = timestamp;
+            this.msg = msg;
+            eventType = eventName = eventDescriptor = null;
+        }
+
+        Entry(long timestamp, String type, String name, String descriptor) {
+            this.timestamp = timestamp;
+            msg = null;
+            eventType = type;
+            eventName = name;
+            eventDescriptor = descriptor;
+        }
+    }
+
+    private final long startNanos;
+    private final Queue<Entry> queue;
+    private final Thread writerThread;
+    private volatile boolean writerParked;
+    private volatile boolean running;
+
+    // Only accessed by the writer thread
+    private final FileChannel channel;
+    private final ByteBuffer buf;
+    private final Map<String, Integer> typeIds;
+    private long filePos;
+    private long lastFlush;
+    private final List<long[]> indexEntries;
+    private long lastIndexEntryTime;
+    private long lastTimestamp;
+    private long prevIndexOffset;
+
+    public BinaryFileLogger(File file) {
+        try {
+            channel =
+                    FileChannel.open(
+                            file.toPath(),
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        System.out.println("Logging messages to " + file.getAbsolutePath() + " (binary)");
+
+        startNanos = System.nanoTime();
+        queue = new ConcurrentLinkedQueue<>();
+        buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        typeIds = new HashMap<>();
+        indexEntries = new ArrayList<>();
+        lastIndexEntryTime = Long.MIN_VALUE;
+        lastTimestamp = 0;
+        prevIndexOffset = -1;
+        filePos = 0;
+        running = true;
+
+        buf.putInt(BinaryLogFormat.MAGIC);
+        buf.putShort(BinaryLogFormat.VERSION);
+        buf.putLong(System.currentTimeMillis());
+        filePos += BinaryLogFormat.HEADER_SIZE;
+
+        writerThread = new Thread(this::writerLoop, "Messenger Log Writer");
+        writerThread.start();
+    }
+
+    @Override
+    public void logEvent(String type, String name, String descriptor) {
+        enqueue(new Entry(System.nanoTime() - startNanos, type, name, descriptor));
+    }
+
+    @Override
+    public void logMessage(Message msg) {
+        // Messages are immutable, so the writer can encode it later without copying now
+        enqueue(new Entry(System.nanoTime() - startNanos, msg));
+    }
+
+    private void enqueue(Entry entry) {
+        queue.add(entry);
+        if (writerParked) LockSupport.unpark(writerThread);
+    }
+
+    private void writerLoop() {
+        lastFlush = System.nanoTime();
+        try {
+            while (true) {
+                Entry entry = queue.poll();
+                if (entry == null) {
+                    if (System.nanoTime() - lastFlush >= FLUSH_INTERVAL) flushBuffer();
+                    if (!running) break;
+
+                    writerParked = true;
+                    if (queue.isEmpty()) LockSupport.parkNanos(this, FLUSH_INTERVAL);
+                    writerParked = false;
+                    continue;
+                }
+
+                // Entries are timestamped by the I/O threads that log them, so
+                // one can be queued after a later one. Clamp them so the file
+                // is in timestamp order, which the reader's index relies on.
+                long timestamp = Math.max(entry.timestamp, lastTimestamp);
+                lastTimestamp = timestamp;
+
+                if (entry.msg != null) writeMessage(entry, timestamp);
+                else writeEvent(entry, timestamp);
+            }
+
+            finish();
+        } catch (IOException e) {
+            System.err.println("Failed to write message log:");
+            e.printStackTrace();
+        }
+    }
+
+    private void writeMessage(Entry entry, long timestamp) throws IOException {
+        Message msg = entry.msg;
+        Integer typeId = typeIds.get(msg.getType());
+        if (typeId == null) {
+            typeId = typeIds.size();
+            typeIds.put(msg.getType(), typeId);
+
+            String type = msg.getType();
+            int bodySize = 4 + 2 + ModifiedUtf8.encodedLength(type);
+            beginRecord(BinaryLogFormat.TYPE_DEF, bodySize, bodySize);
+            buf.putInt(typeId);
+            ModifiedUtf8.write(type, buf);
+            filePos += bodySize;
+        }
+
+        if (timestamp - lastIndexEntryTime >= INDEX_ENTRY_INTERVAL) {
+            lastIndexEntryTime = timestamp;
+            indexEntries.add(new long[] {timestamp, filePos});
+        }
+
+        int dataSize = msg.getDataSize();
+        beginRecord(BinaryLogFormat.MESSAGE, 8 + 4 + dataSize, 8 + 4);
+        buf.putLong(timestamp);
+        buf.putInt(typeId);
+
+        ByteBuffer data = msg.getDataView();
+        if (data.remaining() <= buf.remaining()) {
+            buf.put(data);
+        } else {
+            // Too big for the buffer, write it directly
+            flushBuffer();
+            while (data.hasRemaining()) channel.write(data);
+        }
+        filePos += 8 + 4 + dataSize;
+
+        if (indexEntries.size() >= INDEX_BLOCK_ENTRIES) writeIndex();
+    }
+
+    private void writeEvent(Entry entry, long timestamp) throws IOException {
+        int bodySize =
+                8
+                        + 2
+                        + ModifiedUtf8.encodedLength(entry.eventType)
+                        + 2
+                        + ModifiedUtf8.encodedLength(entry.eventName)
+                        + 2
+                        + ModifiedUtf8.encodedLength(entry.eventDescriptor);
+        beginRecord(BinaryLogFormat.EVENT, bodySize, bodySize);
+        buf.putLong(timestamp);
+        ModifiedUtf8.write(entry.eventType, buf);
+        ModifiedUtf8.write(entry.eventName, buf);
+        ModifiedUtf8.write(entry.eventDescriptor, buf);
+        filePos += bodySize;
+    }
+
+    private void writeIndex() throws IOException {
+        long offset = filePos;
+        int bodySize = 8 + 4 + indexEntries.size() * 16;
+        beginRecord(BinaryLogFormat.INDEX, bodySize, 8 + 4);
+        buf.putLong(prevIndexOffset);
+        buf.putInt(indexEntries.size());
+        for (long[] entry : indexEntries) {
+            ensureSpace(16);
+            buf.putLong(entry[0]);
+            buf.putLong(entry[1]);
+        }
+        filePos += bodySize;
+
+        prevIndexOffset = offset;
+        indexEntries.clear();
+    }
+
+    private void finish() throws IOException {
+        writeIndex();
+
+        long dictOffset = filePos;
+        int bodySize = 4;
+        for (String type : typeIds.keySet()) bodySize += 4 + 2 + ModifiedUtf8.encodedLength(type);
+        beginRecord(BinaryLogFormat.DICTIONARY, bodySize, 4);
+        buf.putInt(typeIds.size());
+        for (Map.Entry<String, Integer> entry : typeIds.entrySet()) {
+            ensureSpace(4 + 2 + ModifiedUtf8.encodedLength(entry.getKey()));
+            buf.putInt(entry.getValue());
+            ModifiedUtf8.write(entry.getKey(), buf);
+        }
+        filePos += bodySize;
+
+        ensureSpace(BinaryLogFormat.TRAILER_SIZE);
+        buf.putInt(BinaryLogFormat.TRAILER_MAGIC);
+        buf.putLong(prevIndexOffset);
+        buf.putLong(dictOffset);
+        filePos += BinaryLogFormat.TRAILER_SIZE;
+
+        flushBuffer();
+        channel.close();
+    }
+
+    // Writes a record header and makes sure the first fixedSize bytes of the
+    // body fit in the buffer. Advances filePos past the header only.
+    private void beginRecord(byte kind, int bodySize, int fixedSize) throws IOException {
+        ensureSpace(BinaryLogFormat.RECORD_HEADER_SIZE + fixedSize);
+        buf.put(kind);
+        buf.putInt(bodySize);
+        filePos += BinaryLogFormat.RECORD_HEADER_SIZE;
+    }
+
+    private void ensureSpace(int bytes) throws IOException {
+        if (buf.remaining() < bytes) flushBuffer();
+    }
+
+    private void flushBuffer() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) channel.write(buf);
+        buf.clear();
+        lastFlush = System.nanoTime();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.swrobotics.messenger.server.log;
+
+/**
+ * Constants describing the binary message log format.
+ *
+ * <p>A log file starts with a header of the magic number {@code MLOG}, a {@code short} format
+ * version, and the {@code long} wall clock time in milliseconds when logging started. It is
+ * followed by a sequence of records, each made up of a {@code byte} record kind, an {@code int}
+ * body length, and the body. All timestamps are nanoseconds since logging started.
+ *
+ * <ul>
+ *   <li>{@link #TYPE_DEF}: {@code int} type ID, {@code String} type. Defines a type ID used by
+ *       later message records.
+ *   <li>{@link #MESSAGE}: {@code long} timestamp, {@code int} type ID, raw message data.
+ *   <li>{@link #EVENT}: {@code long} timestamp, {@code String} event type, {@code String} client
+ *       name, {@code String} descriptor.
+ *   <li>{@link #INDEX}: {@code long} offset of the previous index record (or -1), {@code int}
+ *       entry count, then for each entry a {@code long} timestamp and the {@code long} file offset
+ *       of the message record at that time.
+ *   <li>{@link #DICTIONARY}: {@code int} type count, then for each type an {@code int} type ID and
+ *       {@code String} type.
+ * </ul>
+ *
+ * When the log is closed cleanly, a final index and dictionary are written, followed by a trailer
+ * of the magic number {@code MLTR}, the {@code long} offset of the last index record, and the
+ * {@code long} offset of the dictionary record. Readers can use the trailer to seek without
+ * scanning the file, and fall back to scanning the records if the trailer is missing.
+ */
+public final class BinaryLogFormat {
+    public static final int MAGIC = 0x4D4C4F47; // "MLOG"
+    public static final int TRAILER_MAGIC = 0x4D4C5452; // "MLTR"
+    public static final short VERSION = 1;
+
+    public static final int HEADER_SIZE = 4 + 2 + 8;
+    public static final int TRAILER_SIZE = 4 + 8 + 8;
+    public static final int RECORD_HEADER_SIZE = 1 + 4;
+
+    public static final byte TYPE_DEF = 1;
+    public static final byte MESSAGE = 2;
+    public static final byte EVENT = 3;
+    public static final byte INDEX = 4;
+    public static final byte DICTIONARY = 5;
+
+    private BinaryLogFormat() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,278 @@
+package com.swrobotics.messenger.server.log;
+
+import com.swrobotics.messenger.server.Message;
+import com.swrobotics.messenger.server.ModifiedUtf8;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a log written by {@link BinaryFileLogger}. The file is memory-mapped, so reading does not
+ * copy it into the heap, and the index allows seeking to a timestamp without decoding every
+ * record before it. A log that is corrupt in a way that can't be explained by an unclean shutdown
+ * causes an {@link IOException}.
+ */
+public final class BinaryLogReader {
+    private static final Comparator<long[]> BY_TIMESTAMP = Comparator.comparingLong((e) -> e[0]);
+
+    private final ByteBuffer buf;
+    private final long startTimeMillis;
+    private final Map<Integer, String> types;
+
+    // Sorted by timestamp: {timestamp, file offset}
+    private final List<long[]> index;
+
+    private long timestamp;
+    private String type;
+    private ByteBuffer data;
+    private Message message;
+
+    public BinaryLogReader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Log files larger than 2 GiB are not supported");
+
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buf.remaining() < BinaryLogFormat.HEADER_SIZE
+                || buf.getInt() != BinaryLogFormat.MAGIC)
+            throw new IOException("Not a binary message log: " + file);
+        short version = buf.getShort();
+        if (version != BinaryLogFormat.VERSION)
+            throw new IOException("Unsupported log version " + version);
+        startTimeMillis = buf.getLong();
+
+        types = new HashMap<>();
+        index = new ArrayList<>();
+        if (!readTrailer()) {
+            System.out.println("Log was not closed cleanly, scanning records");
+            scan();
+        }
+
+        buf.position(BinaryLogFormat.HEADER_SIZE);
+    }
+
+    // Loads the dictionary and index using the trailer. Returns false if
+    // there is no trailer.
+    private boolean readTrailer() throws IOException {
+        int trailerPos = buf.limit() - BinaryLogFormat.TRAILER_SIZE;
+        if (trailerPos < BinaryLogFormat.HEADER_SIZE
+                || buf.getInt(trailerPos) != BinaryLogFormat.TRAILER_MAGIC) return false;
+
+        long indexOffset = buf.getLong(trailerPos + 4);
+        long dictOffset = buf.getLong(trailerPos + 12);
+
+        try {
+            ByteBuffer dict = recordBody(dictOffset, BinaryLogFormat.DICTIONARY, trailerPos);
+            int count = readCount(dict, 4 + 2);
+            for (int i = 0; i < count; i++) {
+                require(dict, 4);
+                int id = dict.getInt();
+                types.put(id, ModifiedUtf8.read(dict));
+            }
+
+            // Each index points back to the one before it, so the offsets
+            // must decrease or the chain could loop forever
+            long limit = trailerPos;
+            while (indexOffset >= 0) {
+                if (indexOffset >= limit) throw new IOException("Corrupt log index chain");
+                ByteBuffer body = recordBody(indexOffset, BinaryLogFormat.INDEX, trailerPos);
+                limit = indexOffset;
+                require(body, 8);
+                indexOffset = body.getLong();
+                readIndexEntries(body, trailerPos);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Corrupt log trailer", e);
+        }
+        index.sort(BY_TIMESTAMP);
+
+        return true;
+    }
+
+    // Reads the whole log to find types and index entries
+    private void scan() throws IOException {
+        int pos = BinaryLogFormat.HEADER_SIZE;
+        while (buf.limit() - pos >= BinaryLogFormat.RECORD_HEADER_SIZE) {
+            byte kind = buf.get(pos);
+            int size = buf.getInt(pos + 1);
+            int start = pos + BinaryLogFormat.RECORD_HEADER_SIZE;
+            if (size < 0 || size > buf.limit() - start) break; // Truncated by an unclean shutdown
+
+            if (kind == BinaryLogFormat.TYPE_DEF || kind == BinaryLogFormat.INDEX) {
+                ByteBuffer body = recordBody(pos, kind, buf.limit());
+                try {
+                    if (kind == BinaryLogFormat.TYPE_DEF) {
+                        require(body, 4);
+                        int id = body.getInt();
+                        types.put(id, ModifiedUtf8.read(body));
+                    } else {
+                        require(body, 8);
+                        body.getLong(); // Previous index
+                        readIndexEntries(body, buf.limit());
+                    }
+                } catch (EOFException e) {
+                    throw new IOException("Corrupt log record at offset " + pos, e);
+                }
+            }
+
+            pos = start + size;
+        }
+        index.sort(BY_TIMESTAMP);
+    }
+
+    private void readIndexEntries(ByteBuffer body, int end) throws IOException {
+        int count = readCount(body, 8 + 8);
+        for (int i = 0; i < count; i++) {
+            long time = body.getLong();
+            long offset = body.getLong();
+            if (offset < BinaryLogFormat.HEADER_SIZE || offset >= end)
+                throw new IOException("Corrupt log index entry: offset " + offset);
+            index.add(new long[] {time, offset});
+        }
+    }
+
+    // Gets a view of the body of the record at an offset, checking that it is
+    // of the expected kind and lies entirely before the end offset
+    private ByteBuffer recordBody(long offset, byte kind, int end) throws IOException {
+        if (offset < BinaryLogFormat.HEADER_SIZE
+                || offset > end - BinaryLogFormat.RECORD_HEADER_SIZE)
+            throw new IOException("Corrupt log: record offset " + offset + " out of range");
+
+        int pos = (int) offset;
+        if (buf.get(pos) != kind)
+            throw new IOException("Corrupt log: expected record kind " + kind + " at " + pos);
+        int size = buf.getInt(pos + 1);
+        int start = pos + BinaryLogFormat.RECORD_HEADER_SIZE;
+        if (size < 0 || size > end - start)
+            throw new IOException("Corrupt log: record at " + pos + " overruns its bounds");
+
+        ByteBuffer body = buf.duplicate();
+        body.position(start).limit(start + size);
+        return body;
+    }
+
+    // Reads an element count, checking that the body has room for that many
+    // elements of at least the given size
+    private static int readCount(ByteBuffer body, int minElementSize) throws IOException {
+        require(body, 4);
+        int count = body.getInt();
+        if (count < 0 || count > body.remaining() / minElementSize)
+            throw new IOException("Corrupt log: bad element count " + count);
+        return count;
+    }
+
+    private static void require(ByteBuffer body, int bytes) throws EOFException {
+        if (body.remaining() < bytes) throw new EOFException("Truncated log record");
+    }
+
+    /**
+     * Gets the wall clock time when the log was started.
+     *
+     * @return start time in milliseconds since the epoch
+     */
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * Moves to the first message at or before the given time, so that the next call to {@link
+     * #next} returns messages from around that time.
+     *
+     * @param timestamp time in nanoseconds since the log started
+     */
+    public void seek(long timestamp) {
+        int i = Collections.binarySearch(index, new long[] {timestamp, 0}, BY_TIMESTAMP);
+        if (i < 0) i = -i - 2; // Index of the last entry before the timestamp
+
+        buf.position(i < 0 ? BinaryLogFormat.HEADER_SIZE : (int) index.get(i)[1]);
+    }
+
+    /** Moves back to the start of the log. */
+    public void rewind() {
+        buf.position(BinaryLogFormat.HEADER_SIZE);
+    }
+
+    /**
+     * Advances to the next message in the log. The message data is not copied out of the file;
+     * use {@link #getData} to read it in place.
+     *
+     * @return whether there was another message
+     * @throws IOException if the message record is corrupt
+     */
+    public boolean next() throws IOException {
+        while (buf.remaining() >= BinaryLogFormat.RECORD_HEADER_SIZE) {
+            int pos = buf.position();
+            byte kind = buf.get();
+            int size = buf.getInt();
+            if (size < 0 || size > buf.remaining()) return false; // Truncated
+            int end = buf.position() + size;
+
+            if (kind == BinaryLogFormat.MESSAGE) {
+                if (size < 8 + 4) throw new IOException("Corrupt message record at " + pos);
+                timestamp = buf.getLong();
+                type = types.get(buf.getInt());
+                if (type == null) throw new IOException("Message with undefined type ID");
+
+                data = buf.slice();
+                data.limit(end - buf.position());
+                message = null;
+                buf.position(end);
+                return true;
+            }
+
+            buf.position(end);
+        }
+        return false;
+    }
+
+    /**
+     * Gets the timestamp of the current message.
+     *
+     * @return time in nanoseconds since the log started
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the type of the current message.
+     *
+     * @return message type
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * Gets the data of the current message. This is a read-only view into the mapped file, so it
+     * is not copied.
+     *
+     * @return message data
+     */
+    public ByteBuffer getData() {
+        return data.duplicate();
+    }
+
+    /**
+     * Gets the current message. The message is only encoded when this is first called for each
+     * record, so records that are skipped are never copied.
+     *
+     * @return message
+     */
+    public Message getMessage() {
+        if (message == null) message = new Message(type, getData());
+        return message;
+    }
+}
@@ -64,6 +64,7 @@ public final class FileLogger implements MessageLogger {
         out.flush();
     }
 
+    @Override
     public void close() {
         flush();
         out.close();
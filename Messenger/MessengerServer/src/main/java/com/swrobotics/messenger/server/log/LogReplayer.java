@@ -0,0 +1,90 @@
+package com.swrobotics.messenger.server.log;
+
+import com.swrobotics.messenger.server.MessengerServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-dispatches the messages in a binary log to the clients connected to the server, preserving
+ * their original timing scaled by a speed factor. Connection events in the log are not replayed,
+ * since they describe clients that are no longer connected.
+ */
+public final class LogReplayer implements Runnable {
+    private final File file;
+    private final double speed;
+    private final long startOffset;
+    private final boolean loop;
+
+    /**
+     * @param file log file to replay
+     * @param speed playback speed multiplier, or {@link Double#POSITIVE_INFINITY} to replay as
+     *     fast as possible
+     * @param startOffset time within the log to start at, in nanoseconds
+     * @param loop whether to start over after reaching the end
+     */
+    public LogReplayer(File file, double speed, long startOffset, boolean loop) {
+        this.file = file;
+        this.speed = speed;
+        this.startOffset = startOffset;
+        this.loop = loop;
+    }
+
+    @Override
+    public void run() {
+        BinaryLogReader reader;
+        try {
+            reader = new BinaryLogReader(file);
+        } catch (IOException e) {
+            System.err.println("Failed to open log " + file + ":");
+            e.printStackTrace();
+            return;
+        }
+
+        // Wait for something to replay to
+        System.out.println("Waiting for a client to connect before replaying");
+        while (MessengerServer.get().getClientCount() == 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+
+        try {
+            do {
+                reader.seek(startOffset);
+                replay(reader);
+            } while (loop);
+        } catch (IOException e) {
+            System.err.println("Failed to read log " + file + ":");
+            e.printStackTrace();
+        }
+
+        System.out.println("Replay finished");
+    }
+
+    private void replay(BinaryLogReader reader) throws IOException {
+        String speedStr = Double.isInfinite(speed) ? "max" : speed + "x";
+        System.out.println("Replaying " + file + " at " + speedStr + " speed");
+
+        long wallStart = System.nanoTime();
+        long count = 0;
+        while (reader.next()) {
+            long logTime = reader.getTimestamp() - startOffset;
+            if (logTime < 0) continue; // Seeking lands slightly before the start
+
+            if (!Double.isInfinite(speed)) {
+                long due = wallStart + (long) (logTime / speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+
+            MessengerServer.get().dispatchMessage(reader.getMessage());
+            count++;
+        }
+
+        double elapsed = (System.nanoTime() - wallStart) / 1e9;
+        System.out.printf("Replayed %d messages in %.2f seconds%n", count, elapsed);
+    }
+}
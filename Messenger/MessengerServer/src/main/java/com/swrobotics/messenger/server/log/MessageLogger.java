@@ -6,4 +6,7 @@ public interface MessageLogger {
     void logEvent(String type, String name, String descriptor);
 
     void logMessage(Message msg);
+
+    /** Writes any remaining data and closes the log. */
+    default void close() {}
 }
@@ -0,0 +1,124 @@
+package com.swrobotics.messenger.server.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in logarithmically sized buckets. Each power of two is split into 16
+ * buckets, so a recorded value is reported within about 3% of its actual value regardless of its
+ * magnitude. Recording only increments a counter, so it doesn't allocate and is safe to call from
+ * any number of threads.
+ *
+ * <p>Values are read from a snapshot. {@link #takeSnapshot} moves everything recorded since the
+ * previous snapshot into it, so each snapshot covers one interval. Only one thread should take and
+ * read snapshots.
+ *
+ * <p>The client library has its own copy in {@code com.swrobotics.messenger.client}, since it
+ * does not depend on the server. The two only differ in visibility, and the bucket layout must
+ * stay the same so that client and server latencies can be compared.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+
+    // Only accessed by the thread taking snapshots
+    private final long[] snapshot;
+    private long snapshotCount;
+    private long snapshotSum;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKET_COUNT);
+        snapshot = new long[BUCKET_COUNT];
+        snapshotCount = 0;
+        snapshotSum = 0;
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos duration in nanoseconds. Negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucketIndex(nanos));
+    }
+
+    /** Replaces the snapshot with the values recorded since the last one, and resets the counts. */
+    public void takeSnapshot() {
+        snapshotCount = 0;
+        snapshotSum = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = counts.getAndSet(i, 0);
+            snapshot[i] = count;
+            snapshotCount += count;
+            snapshotSum += count * bucketValue(i);
+        }
+    }
+
+    /**
+     * Gets the number of values in the snapshot.
+     *
+     * @return value count
+     */
+    public long getCount() {
+        return snapshotCount;
+    }
+
+    /**
+     * Gets the approximate mean of the values in the snapshot.
+     *
+     * @return mean in nanoseconds, or 0 if the snapshot is empty
+     */
+    public long getMean() {
+        return snapshotCount == 0 ? 0 : snapshotSum / snapshotCount;
+    }
+
+    /**
+     * Gets the approximate value below which a fraction of the values in the snapshot fall.
+     *
+     * @param fraction fraction of values, from 0 to 1
+     * @return percentile value in nanoseconds, or 0 if the snapshot is empty
+     */
+    public long getPercentile(double fraction) {
+        if (snapshotCount == 0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(fraction * snapshotCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= target) return bucketValue(i);
+        }
+        return getMax();
+    }
+
+    /**
+     * Gets the approximate largest value in the snapshot.
+     *
+     * @return maximum in nanoseconds, or 0 if the snapshot is empty
+     */
+    public long getMax() {
+        for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+            if (snapshot[i] != 0) return bucketValue(i);
+        }
+        return 0;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+
+        // Top SUB_BUCKET_BITS bits below the highest set bit select the sub-bucket
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Middle of the range of values that fall in a bucket
+    private static long bucketValue(int index) {
+        if (index < SUB_BUCKETS) return index;
+
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >>> 1);
+    }
+}
@@ -0,0 +1,105 @@
+package com.swrobotics.messenger.server.stats;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the messages the server receives by type, and records how long the server takes to
+ * deliver them. Recording is safe from any thread and doesn't allocate once a type has been seen.
+ */
+public final class MessageStats {
+    private static final class Counter {
+        final LongAdder messages = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    /** Number of messages and bytes of one type received during an interval. */
+    public static final class TypeCount {
+        private final String type;
+        private final long messages;
+        private final long bytes;
+
+        public TypeCount(String type, long messages, long bytes) {
+            this.type = type;
+            this.messages = messages;
+            this.bytes = bytes;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    private final Map<String, Counter> counters;
+    private final LatencyHistogram dispatchLatency;
+
+    public MessageStats() {
+        counters = new ConcurrentHashMap<>();
+        dispatchLatency = new LatencyHistogram();
+    }
+
+    /**
+     * Counts a received message.
+     *
+     * @param type message type
+     * @param dataSize size of the message data in bytes
+     */
+    public void recordMessage(String type, int dataSize) {
+        Counter counter = counters.get(type);
+        if (counter == null) {
+            Counter newCounter = new Counter();
+            counter = counters.putIfAbsent(type, newCounter);
+            if (counter == null) counter = newCounter;
+        }
+
+        counter.messages.increment();
+        counter.bytes.add(dataSize);
+    }
+
+    /**
+     * Records the time between receiving a message and finishing writing it to the last of its
+     * recipients.
+     *
+     * @param nanos dispatch time in nanoseconds
+     */
+    public void recordDispatch(long nanos) {
+        dispatchLatency.record(nanos);
+    }
+
+    /**
+     * Gets the counts recorded since the previous call and resets them. Types that received no
+     * messages are omitted.
+     *
+     * @return counts for each type
+     */
+    public List<TypeCount> takeTypeCounts() {
+        List<TypeCount> out = new ArrayList<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            long messages = counter.messages.sumThenReset();
+            long bytes = counter.bytes.sumThenReset();
+            if (messages > 0) out.add(new TypeCount(entry.getKey(), messages, bytes));
+        }
+        return out;
+    }
+
+    /**
+     * Gets the histogram of dispatch times.
+     *
+     * @return dispatch latency histogram
+     */
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+}
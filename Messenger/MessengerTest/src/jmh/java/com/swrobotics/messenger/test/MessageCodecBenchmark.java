@@ -0,0 +1,89 @@
+package com.swrobotics.messenger.test;
+
+import com.swrobotics.messenger.client.MessageBuilder;
+import com.swrobotics.messenger.client.MessageReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding messages with {@link MessageBuilder} and decoding them with {@link
+ * MessageReader}, without any I/O. The messages mirror ones the robot sends: a small pose update,
+ * a pathfinder path, and a log line.
+ *
+ * <p>Run with {@code ./gradlew :Messenger:MessengerTest:jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageCodecBenchmark {
+    private static final int PATH_LENGTH = 20;
+    private static final String LOG_LINE = "Task Pathfinding: found path with 20 points in 3 ms";
+
+    private byte[] pose;
+    private byte[] path;
+    private byte[] log;
+
+    @Setup
+    public void setup() {
+        pose = encodePose();
+        path = encodePath();
+        log = encodeLog();
+    }
+
+    @Benchmark
+    public byte[] encodePose() {
+        return new MessageBuilder(null, "Pathfinder:SetPos")
+                .addDouble(1.25)
+                .addDouble(3.5)
+                .addDouble(0.75)
+                .getData();
+    }
+
+    @Benchmark
+    public byte[] encodePath() {
+        MessageBuilder builder = new MessageBuilder(null, "Pathfinder:Path");
+        builder.addBoolean(true);
+        builder.addInt(PATH_LENGTH);
+        for (int i = 0; i < PATH_LENGTH; i++) {
+            builder.addDouble(i);
+            builder.addDouble(i * 0.5);
+        }
+        return builder.getData();
+    }
+
+    @Benchmark
+    public byte[] encodeLog() {
+        return new MessageBuilder(null, "TaskManager:StdOut").addString(LOG_LINE).getData();
+    }
+
+    @Benchmark
+    public double decodePose() {
+        MessageReader reader = new MessageReader(pose);
+        return reader.readDouble() + reader.readDouble() + reader.readDouble();
+    }
+
+    @Benchmark
+    public void decodePath(Blackhole bh) {
+        MessageReader reader = new MessageReader(path);
+        bh.consume(reader.readBoolean());
+        int count = reader.readInt();
+        for (int i = 0; i < count; i++) {
+            bh.consume(reader.readDouble());
+            bh.consume(reader.readDouble());
+        }
+    }
+
+    @Benchmark
+    public String decodeLog() {
+        return new MessageReader(log).readString();
+    }
+}
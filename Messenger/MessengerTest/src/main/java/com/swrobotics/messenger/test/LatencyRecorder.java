@@ -0,0 +1,66 @@
+package com.swrobotics.messenger.test;
+
+import java.util.Arrays;
+
+/**
+ * Records every latency sample so that exact percentiles can be taken afterwards. Not thread safe,
+ * so each thread should have its own recorder, merged once recording has finished.
+ */
+public final class LatencyRecorder {
+    private long[] samples;
+    private int count;
+    private boolean sorted;
+
+    public LatencyRecorder() {
+        samples = new long[1024];
+        count = 0;
+        sorted = true;
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+        samples[count++] = nanos;
+        sorted = false;
+    }
+
+    /**
+     * Adds all samples from another recorder.
+     *
+     * @param other recorder to add samples from
+     */
+    public void addAll(LatencyRecorder other) {
+        if (count + other.count > samples.length)
+            samples = Arrays.copyOf(samples, Math.max(count + other.count, count * 2));
+        System.arraycopy(other.samples, 0, samples, count, other.count);
+        count += other.count;
+        sorted = false;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Gets a percentile of the recorded samples.
+     *
+     * @param p percentile, from 0 to 1
+     * @return latency in nanoseconds, or 0 if there are no samples
+     */
+    public long getPercentile(double p) {
+        if (count == 0) return 0;
+        if (!sorted) {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+        return samples[(int) Math.min(count - 1, (long) (count * p))];
+    }
+
+    public long getMax() {
+        return getPercentile(1);
+    }
+}
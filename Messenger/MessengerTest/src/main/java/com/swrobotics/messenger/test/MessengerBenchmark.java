@@ -0,0 +1,334 @@
+package com.swrobotics.messenger.test;
+
+import com.swrobotics.messenger.client.MessageHandler;
+import com.swrobotics.messenger.client.MessengerClient;
+import com.swrobotics.messenger.server.MessengerServer;
+import com.swrobotics.messenger.server.RemoteClientConnector;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load test for Messenger. Starts a server in this process, unless an external one is given, then
+ * runs a set of publisher clients sending to a set of subscriber clients and measures throughput
+ * and end-to-end latency. Every subscriber listens to every message type, some by exact type and
+ * some by wildcard, so each message is expected to reach every subscriber.
+ *
+ * <p>Each message carries the time it was sent, so latency is measured from the publisher calling
+ * send to the subscriber's handler being invoked. Only messages sent after the warmup period are
+ * counted. The results are printed to standard output as a single JSON object, and everything else
+ * goes to standard error, so runs can be compared by script.
+ *
+ * <p>Usage: {@code MessengerBenchmark [options]}, see {@link #printUsage}.
+ */
+public final class MessengerBenchmark {
+    private static final String TYPE_PREFIX = "Bench:Topic";
+    private static final String WILDCARD = "Bench:*";
+
+    // Time to wait for messages still in flight once publishing stops
+    private static final long DRAIN_TIME = 1000;
+
+    private static final class Options {
+        String host = null;
+        int port = 5806;
+        int publishers = 1;
+        int subscribers = 1;
+        int size = 64;
+        double rate = 1000;
+        int types = 1;
+        double wildcard = 0;
+        double warmup = 2;
+        double duration = 10;
+        boolean sharedMemory = false;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: MessengerBenchmark [options]");
+        System.err.println("  --host <host>        Use an external server instead of starting one");
+        System.err.println("  --port <port>        Server port (default 5806)");
+        System.err.println("  --publishers <N>     Number of publishing clients (default 1)");
+        System.err.println("  --subscribers <M>    Number of subscribing clients (default 1)");
+        System.err.println("  --size <bytes>       Message data size, at least 8 (default 64)");
+        System.err.println("  --rate <N>           Messages per second per publisher, 0 for max");
+        System.err.println("                       (default 1000)");
+        System.err.println("  --types <N>          Number of message types to spread over");
+        System.err.println("                       (default 1)");
+        System.err.println("  --wildcard <0-1>     Fraction of subscribers listening by wildcard");
+        System.err.println("                       (default 0)");
+        System.err.println("  --warmup <seconds>   Time before measuring starts (default 2)");
+        System.err.println("  --duration <sec>     Time to measure for (default 10)");
+        System.err.println("  --shm                Allow clients to use shared memory");
+    }
+
+    private static Options parseOptions(String[] args) {
+        Options o = new Options();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host":
+                        o.host = args[++i];
+                        break;
+                    case "--port":
+                        o.port = Integer.parseInt(args[++i]);
+                        break;
+                    case "--publishers":
+                        o.publishers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--subscribers":
+                        o.subscribers = Integer.parseInt(args[++i]);
+                        break;
+                    case "--size":
+                        o.size = Math.max(8, Integer.parseInt(args[++i]));
+                        break;
+                    case "--rate":
+                        o.rate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--types":
+                        o.types = Math.max(1, Integer.parseInt(args[++i]));
+                        break;
+                    case "--wildcard":
+                        o.wildcard = Double.parseDouble(args[++i]);
+                        break;
+                    case "--warmup":
+                        o.warmup = Double.parseDouble(args[++i]);
+                        break;
+                    case "--duration":
+                        o.duration = Double.parseDouble(args[++i]);
+                        break;
+                    case "--shm":
+                        o.sharedMemory = true;
+                        break;
+                    default:
+                        printUsage();
+                        System.exit(1);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            printUsage();
+            System.exit(1);
+        }
+        return o;
+    }
+
+    // Writes a configuration for the in-process server and starts it
+    private static void startServer(Options o) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("port", String.valueOf(o.port));
+        props.setProperty("statsInterval", "0");
+        props.setProperty("sharedMemory", String.valueOf(o.sharedMemory));
+        props.setProperty("datagram", "false");
+
+        File config = File.createTempFile("messenger-bench", ".properties");
+        config.deleteOnExit();
+        try (FileWriter writer = new FileWriter(config)) {
+            props.store(writer, "Messenger benchmark server");
+        }
+
+        System.setProperty(MessengerServer.CONFIG_PROPERTY, config.getAbsolutePath());
+        Thread server = new Thread(new RemoteClientConnector(), "Messenger Server");
+        server.setDaemon(true);
+        server.start();
+    }
+
+    private static MessengerClient connect(Options o, String name) throws InterruptedException {
+        String host = o.host != null ? o.host : "localhost";
+        MessengerClient client = new MessengerClient(host, o.port, name, true, o.sharedMemory);
+        while (!client.isConnected()) Thread.sleep(10);
+        return client;
+    }
+
+    private static final class Subscriber implements Runnable {
+        final MessengerClient client;
+        final long measureStart;
+        final LatencyRecorder latency;
+        long received;
+
+        Subscriber(MessengerClient client, Options o, boolean wildcard, long measureStart) {
+            this.client = client;
+            this.measureStart = measureStart;
+            latency = new LatencyRecorder();
+            received = 0;
+
+            MessageHandler handler = (type, reader) -> onMessage(reader.readLong());
+            if (wildcard) {
+                client.addHandler(WILDCARD, handler);
+            } else {
+                for (int i = 0; i < o.types; i++) {
+                    client.addHandler(TYPE_PREFIX + i, handler);
+                }
+            }
+        }
+
+        private void onMessage(long sendTime) {
+            long now = System.nanoTime();
+            if (sendTime < measureStart) return;
+
+            latency.record(now - sendTime);
+            received++;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                client.readMessages();
+                Thread.yield();
+            }
+        }
+    }
+
+    private static final class Publisher implements Runnable {
+        final MessengerClient client;
+        final Options o;
+        final long measureStart, measureEnd;
+        final int firstType;
+        final byte[] padding;
+        final AtomicLong sent;
+
+        Publisher(
+                MessengerClient client,
+                Options o,
+                int firstType,
+                long measureStart,
+                long measureEnd,
+                AtomicLong sent) {
+            this.client = client;
+            this.o = o;
+            this.firstType = firstType;
+            this.measureStart = measureStart;
+            this.measureEnd = measureEnd;
+            this.sent = sent;
+            padding = new byte[o.size - 8];
+        }
+
+        @Override
+        public void run() {
+            long interval = o.rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / o.rate) : 0;
+            long next = System.nanoTime();
+            int type = firstType;
+            long count = 0;
+
+            while (true) {
+                long now = System.nanoTime();
+                if (now >= measureEnd) break;
+
+                if (interval > 0) {
+                    if (now < next) {
+                        LockSupport.parkNanos(next - now);
+                        continue;
+                    }
+                    next += interval;
+                }
+
+                long sendTime = System.nanoTime();
+                client.preparePooled(TYPE_PREFIX + type)
+                        .addLong(sendTime)
+                        .addRaw(padding)
+                        .send();
+                if (sendTime >= measureStart) count++;
+                type = (type + 1) % o.types;
+            }
+
+            sent.addAndGet(count);
+        }
+    }
+
+    private static volatile boolean running;
+
+    public static void main(String[] args) throws Exception {
+        Options o = parseOptions(args);
+
+        // Only the results go to standard output, the server's logging included
+        PrintStream results = System.out;
+        System.setOut(System.err);
+
+        if (o.host == null) startServer(o);
+
+        List<MessengerClient> clients = new ArrayList<>();
+        List<Subscriber> subscribers = new ArrayList<>();
+        long setupEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+        long measureStart = setupEnd + (long) (o.warmup * TimeUnit.SECONDS.toNanos(1));
+        long measureEnd = measureStart + (long) (o.duration * TimeUnit.SECONDS.toNanos(1));
+
+        int wildcardCount = (int) Math.round(o.subscribers * o.wildcard);
+        for (int i = 0; i < o.subscribers; i++) {
+            MessengerClient client = connect(o, "Bench Subscriber " + i);
+            clients.add(client);
+            subscribers.add(new Subscriber(client, o, i < wildcardCount, measureStart));
+        }
+
+        running = true;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < subscribers.size(); i++) {
+            Thread thread = new Thread(subscribers.get(i), "Bench Subscriber " + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        // Let the subscriptions reach the server before publishing
+        while (System.nanoTime() < setupEnd) Thread.sleep(10);
+
+        AtomicLong sent = new AtomicLong(0);
+        List<Thread> publishers = new ArrayList<>();
+        for (int i = 0; i < o.publishers; i++) {
+            MessengerClient client = connect(o, "Bench Publisher " + i);
+            clients.add(client);
+            Thread thread =
+                    new Thread(
+                            new Publisher(
+                                    client, o, i % o.types, measureStart, measureEnd, sent),
+                            "Bench Publisher " + i);
+            thread.start();
+            publishers.add(thread);
+        }
+
+        for (Thread thread : publishers) thread.join();
+        Thread.sleep(DRAIN_TIME);
+        running = false;
+        for (Thread thread : threads) thread.join();
+
+        LatencyRecorder latency = new LatencyRecorder();
+        long received = 0;
+        for (Subscriber subscriber : subscribers) {
+            latency.addAll(subscriber.latency);
+            received += subscriber.received;
+        }
+        for (MessengerClient client : clients) client.disconnect();
+
+        long expected = sent.get() * o.subscribers;
+        results.println(
+                String.format(
+                        Locale.ROOT,
+                        "{\"publishers\":%d,\"subscribers\":%d,\"size\":%d,\"rate\":%s,"
+                                + "\"types\":%d,\"wildcard\":%s,\"duration\":%s,"
+                                + "\"sent\":%d,\"expected\":%d,\"received\":%d,"
+                                + "\"messagesPerSecond\":%.1f,\"bytesPerSecond\":%.1f,"
+                                + "\"latencyUs\":{\"p50\":%.1f,\"p99\":%.1f,\"p999\":%.1f,"
+                                + "\"max\":%.1f}}",
+                        o.publishers,
+                        o.subscribers,
+                        o.size,
+                        o.rate,
+                        o.types,
+                        o.wildcard,
+                        o.duration,
+                        sent.get(),
+                        expected,
+                        received,
+                        received / o.duration,
+                        received * o.size / o.duration,
+                        latency.getPercentile(0.5) / 1000.0,
+                        latency.getPercentile(0.99) / 1000.0,
+                        latency.getPercentile(0.999) / 1000.0,
+                        latency.getMax() / 1000.0));
+        System.exit(0);
+    }
+}
@@ -0,0 +1,144 @@
+package com.swrobotics.messenger.test;
+
+import com.swrobotics.messenger.client.MessageBuilder;
+import com.swrobotics.messenger.client.MessengerClient;
+
+import java.util.Arrays;
+
+/**
+ * Measures the round trip from the robot sending {@code Pathfinder:SetPos} to receiving a {@code
+ * Pathfinder:Path} in reply, once over TCP and once over shared memory. A second client stands in
+ * for the pathfinder and replies with a fixed path. Both clients must run on the same host as the
+ * server, and the server must have {@code sharedMemory=true} in its configuration, for shared
+ * memory to be used.
+ *
+ * <p>Usage: {@code SharedMemoryBenchmark [host] [port] [iterations]}
+ */
+public final class SharedMemoryBenchmark {
+    private static final String MSG_SET_POS = "Pathfinder:SetPos";
+    private static final String MSG_PATH = "Pathfinder:Path";
+
+    private static final int PATH_LENGTH = 20;
+    private static final int WARMUP_ITERATIONS = 1000;
+
+    private static volatile boolean running;
+    private static volatile double receivedSequence;
+
+    private static MessengerClient connect(String host, int port, String name, boolean shm)
+            throws InterruptedException {
+        MessengerClient client = new MessengerClient(host, port, name, false, shm);
+        while (!client.isConnected()) Thread.sleep(10);
+
+        // Give the negotiation time to finish
+        long deadline = System.currentTimeMillis() + 1000;
+        while (client.isUsingSharedMemory() != shm && System.currentTimeMillis() < deadline) {
+            client.readMessages();
+            Thread.sleep(10);
+        }
+        return client;
+    }
+
+    private static long[] run(String host, int port, int iterations, boolean shm)
+            throws InterruptedException {
+        MessengerClient pathfinder = connect(host, port, "Benchmark Pathfinder", shm);
+        MessengerClient robot = connect(host, port, "Benchmark Robot", shm);
+        System.out.println(
+                (shm ? "Shared memory" : "TCP")
+                        + ": pathfinder "
+                        + (pathfinder.isUsingSharedMemory() ? "shm" : "tcp")
+                        + ", robot "
+                        + (robot.isUsingSharedMemory() ? "shm" : "tcp"));
+
+        // Replies with a path starting at the received position, so the
+        // robot can match it to the request
+        pathfinder.addHandler(
+                MSG_SET_POS,
+                (type, reader) -> {
+                    double x = reader.readDouble();
+                    double y = reader.readDouble();
+
+                    MessageBuilder builder = pathfinder.preparePooled(MSG_PATH);
+                    builder.addBoolean(true);
+                    builder.addInt(PATH_LENGTH);
+                    for (int i = 0; i < PATH_LENGTH; i++) {
+                        builder.addDouble(x + i);
+                        builder.addDouble(y);
+                    }
+                    builder.send();
+                });
+        robot.addHandler(
+                MSG_PATH,
+                (type, reader) -> {
+                    if (reader.readBoolean() && reader.readInt() > 0)
+                        receivedSequence = reader.readDouble();
+                });
+
+        running = true;
+        Thread responder =
+                new Thread(
+                        () -> {
+                            while (running) {
+                                pathfinder.readMessages();
+                                Thread.yield();
+                            }
+                        },
+                        "Benchmark Pathfinder");
+        responder.start();
+
+        // Let the listen messages reach the server
+        Thread.sleep(500);
+
+        long[] times = new long[iterations];
+        for (int i = -WARMUP_ITERATIONS; i < iterations; i++) {
+            double sequence = i;
+            receivedSequence = Double.NaN;
+
+            long start = System.nanoTime();
+            robot.preparePooled(MSG_SET_POS).addDouble(sequence).addDouble(0).send();
+            while (receivedSequence != sequence) {
+                robot.readMessages();
+                Thread.yield();
+            }
+            long time = System.nanoTime() - start;
+
+            if (i >= 0) times[i] = time;
+        }
+
+        running = false;
+        responder.join();
+        robot.disconnect();
+        pathfinder.disconnect();
+
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static void report(String name, long[] times) {
+        System.out.printf(
+                "%-14s p50 %8.1f us   p90 %8.1f us   p99 %8.1f us   max %8.1f us%n",
+                name,
+                percentile(times, 0.5),
+                percentile(times, 0.9),
+                percentile(times, 0.99),
+                times[times.length - 1] / 1000.0);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * p)] / 1000.0;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 5805;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+        long[] tcp = run(host, port, iterations, false);
+        long[] shm = run(host, port, iterations, true);
+
+        System.out.println();
+        System.out.println("SetPos -> Path round trip, " + iterations + " iterations:");
+        report("TCP", tcp);
+        report("Shared memory", shm);
+        System.exit(0);
+    }
+}
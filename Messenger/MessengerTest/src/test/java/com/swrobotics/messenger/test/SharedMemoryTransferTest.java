@@ -0,0 +1,117 @@
+package com.swrobotics.messenger.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.swrobotics.messenger.client.MessengerClient;
+import com.swrobotics.messenger.server.MessengerServer;
+import com.swrobotics.messenger.server.RemoteClientConnector;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks that the server keeps writing to a client's shared memory ring after it fills up, instead
+ * of waiting for an unrelated message to trigger the next write.
+ */
+public class SharedMemoryTransferTest {
+    private static final int PORT = 5899;
+    private static final int RING_SIZE = 16 * 1024;
+    private static final int MESSAGE_SIZE = 1024;
+
+    // Enough to fill the ring 32 times. Resuming only on the next heartbeat
+    // would take about a second per ring.
+    private static final int MESSAGE_COUNT = 32 * RING_SIZE / MESSAGE_SIZE;
+    private static final long TIME_LIMIT = TimeUnit.SECONDS.toNanos(5);
+
+    private static final String DATA = "Test:Data";
+    private static final String PING = "Test:Ping";
+
+    private static MessengerClient publisher, subscriber;
+
+    @BeforeClass
+    public static void startServer() throws IOException, InterruptedException {
+        Properties props = new Properties();
+        props.setProperty("port", String.valueOf(PORT));
+        props.setProperty("statsInterval", "0");
+        props.setProperty("sharedMemory", "true");
+        props.setProperty("sharedMemoryRingSize", String.valueOf(RING_SIZE));
+        props.setProperty("datagram", "false");
+
+        File config = File.createTempFile("messenger-test", ".properties");
+        config.deleteOnExit();
+        try (FileWriter writer = new FileWriter(config)) {
+            props.store(writer, "Messenger test server");
+        }
+
+        System.setProperty(MessengerServer.CONFIG_PROPERTY, config.getAbsolutePath());
+        Thread server = new Thread(new RemoteClientConnector(), "Messenger Server");
+        server.setDaemon(true);
+        server.start();
+
+        publisher = connect("Test Publisher");
+        subscriber = connect("Test Subscriber");
+    }
+
+    @AfterClass
+    public static void disconnect() {
+        if (publisher != null) publisher.disconnect();
+        if (subscriber != null) subscriber.disconnect();
+    }
+
+    private static MessengerClient connect(String name) throws InterruptedException {
+        MessengerClient client = new MessengerClient("localhost", PORT, name, false, true);
+        while (!client.isConnected()) Thread.sleep(10);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!client.isUsingSharedMemory() && System.nanoTime() < deadline) {
+            client.readMessages();
+            Thread.sleep(10);
+        }
+        assertTrue(name + " should be using shared memory", client.isUsingSharedMemory());
+        return client;
+    }
+
+    @Test
+    public void serverToClientTransferDoesNotStallOnFullRing() throws InterruptedException {
+        int[] received = new int[1];
+        boolean[] pinged = new boolean[1];
+        subscriber.addHandler(DATA, (type, reader) -> received[0]++);
+        subscriber.addHandler(PING, (type, reader) -> pinged[0] = true);
+
+        // Listens are handled in order, so once a ping arrives the server
+        // knows about the data listener too
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!pinged[0] && System.nanoTime() < deadline) {
+            publisher.prepare(PING).send();
+            Thread.sleep(10);
+            subscriber.readMessages();
+        }
+        assertTrue("Subscriber should receive a ping", pinged[0]);
+
+        byte[] data = new byte[MESSAGE_SIZE];
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGE_COUNT; i++) {
+            publisher.prepare(DATA).addRaw(data).send();
+        }
+
+        deadline = start + 4 * TIME_LIMIT;
+        while (received[0] < MESSAGE_COUNT && System.nanoTime() < deadline) {
+            subscriber.readMessages();
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        assertEquals(MESSAGE_COUNT, received[0]);
+        assertTrue(
+                "Transfer took " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms",
+                elapsed < TIME_LIMIT);
+    }
+}
@@ -0,0 +1,108 @@
+package com.swrobotics.pathfinding.core.grid;
+
+import com.swrobotics.pathfinding.field.Field;
+import com.swrobotics.pathfinding.task.GridsFile;
+import com.swrobotics.pathfinding.task.PathfinderConfigFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures uncached line of sight checks per second on the grids the pathfinder actually uses,
+ * loaded from {@code config.json} and {@code grids.json} in the working directory. Each check is
+ * done both by testing whole words of cells at once and by walking cell by cell, on the union of
+ * the grids and on a single bitfield with the same cells.
+ *
+ * <p>Run with {@code ./gradlew :Pathfinding:jmh}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LineOfSightBenchmark {
+    private static final int PAIRS = 4096;
+
+    private GridUnion union;
+    private BitfieldGrid bitfield;
+    private Point[] from, to;
+
+    @Setup
+    public void setup() {
+        PathfinderConfigFile config = PathfinderConfigFile.load(new File("config.json"));
+        Field field = config.getField().createField();
+
+        union = new GridUnion(field.getCellsX(), field.getCellsY());
+        for (Grid grid : GridsFile.load(new File("grids.json"), field).getGrids()) {
+            union.addGrid(grid);
+        }
+
+        bitfield = new BitfieldGrid(field.getCellsX(), field.getCellsY());
+        for (int y = 0; y < field.getCellsY(); y++) {
+            for (int x = 0; x < field.getCellsX(); x++) {
+                bitfield.set(x, y, union.canCellPass(x, y));
+            }
+        }
+
+        Random random = new Random(5499);
+        from = new Point[PAIRS];
+        to = new Point[PAIRS];
+        for (int i = 0; i < PAIRS; i++) {
+            from[i] = randomPoint(random);
+            to[i] = randomPoint(random);
+        }
+    }
+
+    private Point randomPoint(Random random) {
+        return new Point(
+                random.nextInt(union.getPointWidth()), random.nextInt(union.getPointHeight()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public int unionWords() {
+        int visible = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            if (union.calcLineOfSight(from[i], to[i])) visible++;
+        }
+        return visible;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public int unionCells() {
+        int visible = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            if (union.cellLineOfSight(from[i], to[i])) visible++;
+        }
+        return visible;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public int bitfieldWords() {
+        int visible = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            if (bitfield.calcLineOfSight(from[i], to[i])) visible++;
+        }
+        return visible;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAIRS)
+    public int bitfieldCells() {
+        int visible = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            if (bitfield.cellLineOfSight(from[i], to[i])) visible++;
+        }
+        return visible;
+    }
+}
@@ -0,0 +1,248 @@
+package com.swrobotics.pathfinding.core.finder;
+
+import com.swrobotics.pathfinding.core.grid.Grid;
+import com.swrobotics.pathfinding.core.grid.Point;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A* and Theta* specialized for a {@link Grid}. Points are identified by their index {@code x + y
+ * * pointWidth}, and all per-point state is kept in parallel arrays sized for the whole grid, so
+ * searching does not allocate apart from the returned path. The open set is an indexed binary heap,
+ * so a point's priority can be lowered in place instead of searching the heap for it.
+ *
+ * <p>State is reset between searches by incrementing a generation counter instead of clearing the
+ * arrays: a point whose stored generation is not the current one has not been reached yet.
+ *
+ * <p>Costs and heuristic are the same as {@link Grid#asGraph()}, so A* paths have the same length
+ * as those of {@link AStarPathfinder}. Ties may be broken differently, and since Theta* is not
+ * optimal, its paths can be slightly longer or shorter than those of {@link ThetaStarPathfinder}.
+ */
+public final class GridPathfinder implements Pathfinder<Point> {
+    private static final int NOT_IN_HEAP = -1;
+    private static final int CLOSED = -2;
+
+    private static final double SQRT_2 = Math.sqrt(2);
+    private static final int[] NEIGHBOR_X = {-1, -1, -1, 0, 0, 1, 1, 1};
+    private static final int[] NEIGHBOR_Y = {-1, 0, 1, -1, 1, -1, 0, 1};
+
+    private final Grid grid;
+    private final boolean anyAngle;
+    private final int width, height;
+    private final Point[] points;
+
+    // Per-point state, only valid where generation[i] == currentGeneration
+    private final int[] generation;
+    private final double[] cost;
+    private final double[] priority;
+    private final int[] parent;
+    private final int[] heapIndex; // Position in the heap, or NOT_IN_HEAP or CLOSED
+
+    private final int[] heap;
+    private int heapSize;
+    private int currentGeneration;
+
+    private Point start, goal;
+
+    /**
+     * @param grid grid to search
+     * @param anyAngle whether to allow paths between any two points with line of sight (Theta*),
+     *     instead of only between neighboring points (A*)
+     */
+    public GridPathfinder(Grid grid, boolean anyAngle) {
+        this.grid = grid;
+        this.anyAngle = anyAngle;
+        width = grid.getPointWidth();
+        height = grid.getPointHeight();
+
+        int count = width * height;
+        points = new Point[count];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                points[x + y * width] = new Point(x, y);
+            }
+        }
+
+        generation = new int[count];
+        cost = new double[count];
+        priority = new double[count];
+        parent = new int[count];
+        heapIndex = new int[count];
+        heap = new int[count];
+        currentGeneration = 0;
+    }
+
+    @Override
+    public void setStart(Point start) {
+        this.start = start;
+    }
+
+    @Override
+    public void setGoal(Point goal) {
+        this.goal = goal;
+    }
+
+    private boolean inBounds(Point p) {
+        return p.x >= 0 && p.x < width && p.y >= 0 && p.y < height;
+    }
+
+    @Override
+    public List<Point> findPath() {
+        if (!inBounds(start) || !inBounds(goal)) return null;
+
+        currentGeneration++;
+        if (currentGeneration == 0) {
+            // Wrapped around, so old generations could look current
+            Arrays.fill(generation, 0);
+            currentGeneration = 1;
+        }
+        heapSize = 0;
+
+        int startIdx = start.x + start.y * width;
+        int goalIdx = goal.x + goal.y * width;
+        int goalX = goal.x, goalY = goal.y;
+
+        reach(startIdx);
+        cost[startIdx] = 0;
+        push(startIdx, heuristic(start.x, start.y, goalX, goalY));
+
+        while (heapSize > 0) {
+            int current = pop();
+            if (current == goalIdx) return extractPath(current);
+            heapIndex[current] = CLOSED;
+
+            int cx = current % width;
+            int cy = current / width;
+            Point currentPoint = points[current];
+            for (int i = 0; i < NEIGHBOR_X.length; i++) {
+                int nx = cx + NEIGHBOR_X[i];
+                int ny = cy + NEIGHBOR_Y[i];
+                if (nx < 0 || nx >= width || ny < 0 || ny >= height) continue;
+
+                int next = nx + ny * width;
+                if (generation[next] == currentGeneration && heapIndex[next] == CLOSED) continue;
+                if (!grid.lineOfSight(currentPoint, points[next])) continue;
+                if (generation[next] != currentGeneration) reach(next);
+
+                updateVertex(current, next, nx, ny, goalX, goalY);
+            }
+        }
+
+        return null;
+    }
+
+    private void updateVertex(int current, int next, int nx, int ny, int goalX, int goalY) {
+        int from = current;
+        double newCost;
+
+        int grandparent = parent[current];
+        if (anyAngle && grandparent >= 0 && grid.lineOfSight(points[grandparent], points[next])) {
+            from = grandparent;
+            newCost = cost[grandparent] + distance(grandparent, nx, ny);
+        } else {
+            double step = (nx == current % width || ny == current / width) ? 1 : SQRT_2;
+            newCost = cost[current] + step;
+        }
+
+        if (newCost < cost[next]) {
+            cost[next] = newCost;
+            parent[next] = from;
+
+            double p = newCost + heuristic(nx, ny, goalX, goalY);
+            if (heapIndex[next] == NOT_IN_HEAP) push(next, p);
+            else decreaseKey(next, p);
+        }
+    }
+
+    // Marks a point as reached in this search, resetting its state
+    private void reach(int idx) {
+        generation[idx] = currentGeneration;
+        cost[idx] = Double.POSITIVE_INFINITY;
+        parent[idx] = -1;
+        heapIndex[idx] = NOT_IN_HEAP;
+    }
+
+    private double distance(int from, int x, int y) {
+        double dx = from % width - x;
+        double dy = from / width - y;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private static double heuristic(int x, int y, int goalX, int goalY) {
+        double dx = x - goalX;
+        double dy = y - goalY;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    private List<Point> extractPath(int idx) {
+        int length = 0;
+        for (int i = idx; i >= 0; i = parent[i]) length++;
+
+        Point[] path = new Point[length];
+        for (int i = idx; i >= 0; i = parent[i]) path[--length] = points[i];
+        return Arrays.asList(path);
+    }
+
+    // --- Indexed binary min-heap on priority ---
+
+    private void push(int idx, double p) {
+        priority[idx] = p;
+        heap[heapSize] = idx;
+        heapIndex[idx] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private int pop() {
+        int top = heap[0];
+        heapSize--;
+        if (heapSize > 0) {
+            heap[0] = heap[heapSize];
+            heapIndex[heap[0]] = 0;
+            siftDown(0);
+        }
+        heapIndex[top] = NOT_IN_HEAP;
+        return top;
+    }
+
+    private void decreaseKey(int idx, double p) {
+        priority[idx] = p;
+        siftUp(heapIndex[idx]);
+    }
+
+    private void siftUp(int pos) {
+        int idx = heap[pos];
+        double p = priority[idx];
+        while (pos > 0) {
+            int parentPos = (pos - 1) >>> 1;
+            int parentIdx = heap[parentPos];
+            if (priority[parentIdx] <= p) break;
+
+            heap[pos] = parentIdx;
+            heapIndex[parentIdx] = pos;
+            pos = parentPos;
+        }
+        heap[pos] = idx;
+        heapIndex[idx] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int idx = heap[pos];
+        double p = priority[idx];
+        int half = heapSize >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < heapSize && priority[heap[right]] < priority[heap[child]]) child = right;
+
+            int childIdx = heap[child];
+            if (p <= priority[childIdx]) break;
+
+            heap[pos] = childIdx;
+            heapIndex[childIdx] = pos;
+            pos = child;
+        }
+        heap[pos] = idx;
+        heapIndex[idx] = pos;
+    }
+}
@@ -0,0 +1,432 @@
+package com.swrobotics.pathfinding.core.finder;
+
+import com.swrobotics.pathfinding.core.grid.Grid;
+import com.swrobotics.pathfinding.core.grid.Point;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental planner for a {@link Grid}, using D* Lite. The search runs backwards from the goal
+ * and is kept between calls to {@link #findPath}, so when the start moves or some cells change,
+ * only the part of the search affected by the change is repaired instead of searching again from
+ * scratch. Changing the goal starts a new search.
+ *
+ * <p>The grid reports the regions where cells may have changed, and only those regions are
+ * compared against a snapshot to find the cells that actually changed. The search itself moves
+ * between neighboring points, so the resulting path is smoothed afterwards by skipping points that
+ * are in line of sight of an earlier one, which gives paths close to those of {@link
+ * ThetaStarPathfinder}.
+ *
+ * <p>Per-point state is kept in parallel arrays, like {@link GridPathfinder}, and is reset for a
+ * new search by incrementing a generation counter.
+ */
+public final class IncrementalPathfinder implements Pathfinder<Point> {
+    private static final double INF = Double.POSITIVE_INFINITY;
+    private static final double EPSILON = 1e-9;
+    private static final double SQRT_2 = Math.sqrt(2);
+    private static final int[] NEIGHBOR_X = {-1, -1, -1, 0, 0, 1, 1, 1};
+    private static final int[] NEIGHBOR_Y = {-1, 0, 1, -1, 1, -1, 0, 1};
+
+    private final Grid grid;
+    private final int width, height;
+    private final int cellWidth, cellHeight;
+    private final Point[] points;
+
+    // Passability of each cell as of the last search, to find what changed
+    private final boolean[] cellSnapshot;
+
+    // Region that may have changed since the last search, empty if min > max
+    private int dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY;
+
+    // Per-point state, only valid where generation[i] == currentGeneration
+    private final int[] generation;
+    private final double[] g;
+    private final double[] rhs;
+    private final double[] key1, key2;
+    private final int[] heapIndex; // Position in the heap, or -1 if not in it
+
+    private final int[] heap;
+    private int heapSize;
+    private int currentGeneration;
+
+    private Point start, goal;
+    private int searchGoal; // Goal of the current search, or -1 if there is none
+    private int lastStart;
+    private double km; // Total heuristic change from the start moving
+
+    public IncrementalPathfinder(Grid grid) {
+        this.grid = grid;
+        width = grid.getPointWidth();
+        height = grid.getPointHeight();
+        cellWidth = grid.getCellWidth();
+        cellHeight = grid.getCellHeight();
+
+        int count = width * height;
+        points = new Point[count];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                points[x + y * width] = new Point(x, y);
+            }
+        }
+
+        cellSnapshot = new boolean[cellWidth * cellHeight];
+        generation = new int[count];
+        g = new double[count];
+        rhs = new double[count];
+        key1 = new double[count];
+        key2 = new double[count];
+        heapIndex = new int[count];
+        heap = new int[count];
+        currentGeneration = 0;
+        searchGoal = -1;
+        clearDirtyRegion();
+
+        grid.addChangeListener(this::onCellsChanged);
+    }
+
+    private void onCellsChanged(int minX, int minY, int maxX, int maxY) {
+        dirtyMinX = Math.min(dirtyMinX, minX);
+        dirtyMinY = Math.min(dirtyMinY, minY);
+        dirtyMaxX = Math.max(dirtyMaxX, maxX);
+        dirtyMaxY = Math.max(dirtyMaxY, maxY);
+    }
+
+    private void clearDirtyRegion() {
+        dirtyMinX = dirtyMinY = Integer.MAX_VALUE;
+        dirtyMaxX = dirtyMaxY = Integer.MIN_VALUE;
+    }
+
+    @Override
+    public void setStart(Point start) {
+        this.start = start;
+    }
+
+    @Override
+    public void setGoal(Point goal) {
+        this.goal = goal;
+    }
+
+    private boolean inBounds(Point p) {
+        return p.x >= 0 && p.x < width && p.y >= 0 && p.y < height;
+    }
+
+    @Override
+    public List<Point> findPath() {
+        if (!inBounds(start) || !inBounds(goal)) return null;
+
+        int startIdx = start.x + start.y * width;
+        int goalIdx = goal.x + goal.y * width;
+        if (goalIdx != searchGoal) {
+            beginSearch(startIdx, goalIdx);
+        } else {
+            if (startIdx != lastStart) {
+                km += heuristic(lastStart, startIdx);
+                lastStart = startIdx;
+            }
+            if (dirtyMinX <= dirtyMaxX) updateChangedCells();
+        }
+
+        computeShortestPath(startIdx);
+        if (getG(startIdx) == INF) return null;
+        return extractPath(startIdx);
+    }
+
+    // Cost of the path between neighbors found by the last call to
+    // findPath, before it was smoothed. Used by tests.
+    double getSearchCost() {
+        return getG(lastStart);
+    }
+
+    private void beginSearch(int startIdx, int goalIdx) {
+        currentGeneration++;
+        if (currentGeneration == 0) {
+            // Wrapped around, so old generations could look current
+            Arrays.fill(generation, 0);
+            currentGeneration = 1;
+        }
+        heapSize = 0;
+        km = 0;
+        searchGoal = goalIdx;
+        lastStart = startIdx;
+        takeSnapshot();
+
+        setRhs(goalIdx, 0);
+        updateVertex(goalIdx, startIdx);
+    }
+
+    private void takeSnapshot() {
+        for (int y = 0; y < cellHeight; y++) {
+            for (int x = 0; x < cellWidth; x++) {
+                cellSnapshot[x + y * cellWidth] = grid.canCellPass(x, y);
+            }
+        }
+        clearDirtyRegion();
+    }
+
+    // Finds the cells whose passability changed, and updates the points
+    // whose edges they affect
+    private void updateChangedCells() {
+        // Reading a cell makes any ShapeGrid with new shapes regenerate now,
+        // so the cells it changes are included in the region
+        grid.canCellPass(0, 0);
+
+        int minX = Math.max(0, dirtyMinX), maxX = Math.min(cellWidth - 1, dirtyMaxX);
+        int minY = Math.max(0, dirtyMinY), maxY = Math.min(cellHeight - 1, dirtyMaxY);
+        clearDirtyRegion();
+
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                int i = x + y * cellWidth;
+                boolean pass = grid.canCellPass(x, y);
+                if (pass == cellSnapshot[i]) continue;
+                cellSnapshot[i] = pass;
+
+                // Edges affected by a cell all touch one of its corners, so
+                // updating the corners and their neighbors covers them
+                for (int py = Math.max(0, y - 1); py <= Math.min(height - 1, y + 2); py++) {
+                    for (int px = Math.max(0, x - 1); px <= Math.min(width - 1, x + 2); px++) {
+                        int p = px + py * width;
+                        if (p != searchGoal) setRhs(p, minSuccessorCost(p));
+                        updateVertex(p, lastStart);
+                    }
+                }
+            }
+        }
+    }
+
+    private void computeShortestPath(int startIdx) {
+        while (heapSize > 0) {
+            int u = heap[0];
+
+            // Points with the same key as the start are also processed, since
+            // they can tie with the path through the start's best successor.
+            // Keys are sums of costs, so equal keys can differ by rounding.
+            double startKey = Math.min(getG(startIdx), getRhs(startIdx)) + km;
+            if (startKey < key1[u] - EPSILON && getRhs(startIdx) == getG(startIdx)) break;
+
+            double gu = getG(u);
+            double rhsU = getRhs(u);
+            double min = Math.min(gu, rhsU);
+            double newKey1 = min + heuristic(u, startIdx) + km;
+            double newKey2 = min;
+
+            int ux = u % width, uy = u / width;
+            if (keyLess(key1[u], key2[u], newKey1, newKey2)) {
+                // Key is out of date since the start moved
+                setKey(u, newKey1, newKey2);
+            } else if (gu > rhsU) {
+                g[u] = rhsU;
+                removeFromHeap(u);
+                for (int i = 0; i < NEIGHBOR_X.length; i++) {
+                    int sx = ux + NEIGHBOR_X[i], sy = uy + NEIGHBOR_Y[i];
+                    if (sx < 0 || sx >= width || sy < 0 || sy >= height) continue;
+
+                    int s = sx + sy * width;
+                    if (s != searchGoal) {
+                        double c = edgeCost(s, u);
+                        if (c + rhsU < getRhs(s)) setRhs(s, c + rhsU);
+                    }
+                    updateVertex(s, startIdx);
+                }
+            } else {
+                double oldG = gu;
+                g[u] = INF;
+                for (int i = 0; i < NEIGHBOR_X.length; i++) {
+                    int sx = ux + NEIGHBOR_X[i], sy = uy + NEIGHBOR_Y[i];
+                    if (sx < 0 || sx >= width || sy < 0 || sy >= height) continue;
+
+                    int s = sx + sy * width;
+                    if (s != searchGoal && getRhs(s) == edgeCost(s, u) + oldG)
+                        setRhs(s, minSuccessorCost(s));
+                    updateVertex(s, startIdx);
+                }
+                if (u != searchGoal) setRhs(u, minSuccessorCost(u));
+                updateVertex(u, startIdx);
+            }
+        }
+    }
+
+    private void updateVertex(int u, int startIdx) {
+        touch(u);
+        double gu = getG(u);
+        double rhsU = getRhs(u);
+        boolean inHeap = heapIndex[u] >= 0;
+
+        if (gu != rhsU) {
+            double min = Math.min(gu, rhsU);
+            double k1 = min + heuristic(u, startIdx) + km;
+            if (inHeap) setKey(u, k1, min);
+            else push(u, k1, min);
+        } else if (inHeap) {
+            removeFromHeap(u);
+        }
+    }
+
+    private double minSuccessorCost(int u) {
+        int ux = u % width, uy = u / width;
+        double best = INF;
+        for (int i = 0; i < NEIGHBOR_X.length; i++) {
+            int sx = ux + NEIGHBOR_X[i], sy = uy + NEIGHBOR_Y[i];
+            if (sx < 0 || sx >= width || sy < 0 || sy >= height) continue;
+
+            int s = sx + sy * width;
+            double gs = getG(s);
+            if (gs == INF) continue;
+            double cost = edgeCost(u, s) + gs;
+            if (cost < best) best = cost;
+        }
+        return best;
+    }
+
+    // Cost of moving between neighboring points, or infinity if blocked
+    private double edgeCost(int a, int b) {
+        if (!grid.lineOfSight(points[a], points[b])) return INF;
+        return (a % width == b % width || a / width == b / width) ? 1 : SQRT_2;
+    }
+
+    private double heuristic(int a, int b) {
+        double dx = a % width - b % width;
+        double dy = a / width - b / width;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    // Follows the cheapest successors from the start to the goal, then skips
+    // points that are in line of sight of an earlier one
+    private List<Point> extractPath(int startIdx) {
+        List<Point> out = new ArrayList<>();
+        out.add(points[startIdx]);
+
+        int anchor = startIdx;
+        int current = startIdx;
+        int steps = 0;
+        while (current != searchGoal) {
+            int ux = current % width, uy = current / width;
+            int next = -1;
+            double best = INF;
+            for (int i = 0; i < NEIGHBOR_X.length; i++) {
+                int sx = ux + NEIGHBOR_X[i], sy = uy + NEIGHBOR_Y[i];
+                if (sx < 0 || sx >= width || sy < 0 || sy >= height) continue;
+
+                int s = sx + sy * width;
+                double gs = getG(s);
+                if (gs == INF) continue;
+                double cost = edgeCost(current, s) + gs;
+                if (cost < best) {
+                    best = cost;
+                    next = s;
+                }
+            }
+
+            // Can only happen if the search is inconsistent, which is a bug
+            if (next < 0 || ++steps > points.length) return null;
+
+            if (!grid.lineOfSight(points[anchor], points[next])) {
+                out.add(points[current]);
+                anchor = current;
+            }
+            current = next;
+        }
+
+        if (current != startIdx) out.add(points[current]);
+        return out;
+    }
+
+    // --- Lazily reset per-point state ---
+
+    private void touch(int i) {
+        if (generation[i] != currentGeneration) {
+            generation[i] = currentGeneration;
+            g[i] = INF;
+            rhs[i] = INF;
+            heapIndex[i] = -1;
+        }
+    }
+
+    private double getG(int i) {
+        return generation[i] == currentGeneration ? g[i] : INF;
+    }
+
+    private double getRhs(int i) {
+        return generation[i] == currentGeneration ? rhs[i] : INF;
+    }
+
+    private void setRhs(int i, double value) {
+        touch(i);
+        rhs[i] = value;
+    }
+
+    // --- Indexed binary min-heap on (key1, key2) ---
+
+    private static boolean keyLess(double a1, double a2, double b1, double b2) {
+        return a1 < b1 || (a1 == b1 && a2 < b2);
+    }
+
+    private boolean less(int a, int b) {
+        return keyLess(key1[a], key2[a], key1[b], key2[b]);
+    }
+
+    private void push(int u, double k1, double k2) {
+        key1[u] = k1;
+        key2[u] = k2;
+        heap[heapSize] = u;
+        heapIndex[u] = heapSize;
+        siftUp(heapSize++);
+    }
+
+    private void setKey(int u, double k1, double k2) {
+        key1[u] = k1;
+        key2[u] = k2;
+        int pos = heapIndex[u];
+        siftUp(pos);
+        siftDown(heapIndex[u]);
+    }
+
+    private void removeFromHeap(int u) {
+        int pos = heapIndex[u];
+        heapIndex[u] = -1;
+        heapSize--;
+        if (pos == heapSize) return;
+
+        int last = heap[heapSize];
+        heap[pos] = last;
+        heapIndex[last] = pos;
+        siftUp(pos);
+        siftDown(heapIndex[last]);
+    }
+
+    private void siftUp(int pos) {
+        int u = heap[pos];
+        while (pos > 0) {
+            int parentPos = (pos - 1) >>> 1;
+            int parent = heap[parentPos];
+            if (!less(u, parent)) break;
+
+            heap[pos] = parent;
+            heapIndex[parent] = pos;
+            pos = parentPos;
+        }
+        heap[pos] = u;
+        heapIndex[u] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int u = heap[pos];
+        int half = heapSize >>> 1;
+        while (pos < half) {
+            int child = 2 * pos + 1;
+            int right = child + 1;
+            if (right < heapSize && less(heap[right], heap[child])) child = right;
+
+            int c = heap[child];
+            if (!less(c, u)) break;
+
+            heap[pos] = c;
+            heapIndex[c] = pos;
+            pos = child;
+        }
+        heap[pos] = u;
+        heapIndex[u] = pos;
+    }
+}
@@ -10,37 +10,120 @@ import com.google.gson.JsonSerializer;
 import com.swrobotics.messenger.client.MessageBuilder;
 
 import java.lang.reflect.Type;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.BitSet;
 
 public class BitfieldGrid extends Grid {
-    private final BitSet data;
+    // Cells are stored both by row and by column, so runs of cells along
+    // either axis can be checked a word at a time
+    private final int rowWords, columnWords;
+    private final long[] rows; // Cell (x, y) is bit x of row y
+    private final long[] columns; // Cell (x, y) is bit y of column x
 
     public BitfieldGrid(int width, int height) {
         super(width, height);
-        data = new BitSet(width * height);
+        rowWords = (width + 63) >> 6;
+        columnWords = (height + 63) >> 6;
+        rows = new long[rowWords * height];
+        columns = new long[columnWords * width];
         clear();
     }
 
     private BitfieldGrid(int width, int height, byte[] data) {
-        super(width, height);
-        this.data = BitSet.valueOf(data);
+        this(width, height);
+
+        BitSet bits = BitSet.valueOf(data);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (!bits.get(x + y * width)) setBits(x, y, false);
+            }
+        }
     }
 
     public void set(int x, int y, boolean value) {
-        data.set(x + y * width, value);
-        invalidateLineOfSightCache();
+        if (getBit(x, y) == value) return;
+
+        setBits(x, y, value);
+        markChanged(x, y, x, y);
+    }
+
+    private void setBits(int x, int y, boolean value) {
+        int row = y * rowWords + (x >> 6);
+        int column = x * columnWords + (y >> 6);
+        if (value) {
+            rows[row] |= 1L << x;
+            columns[column] |= 1L << y;
+        } else {
+            rows[row] &= ~(1L << x);
+            columns[column] &= ~(1L << y);
+        }
     }
 
     public void copyFrom(BitfieldGrid other) {
+        beginChanges();
         for (int x = 0; x < width && x < other.width; x++)
             for (int y = 0; y < height && y < other.height; y++) set(x, y, other.canCellPass(x, y));
+        endChanges();
     }
 
     @Override
     public boolean canCellPass(int x, int y) {
         if (x < 0 || y < 0 || x >= width || y >= height) return false;
-        return data.get(x + y * width);
+        return getBit(x, y);
+    }
+
+    private boolean getBit(int x, int y) {
+        return (rows[y * rowWords + (x >> 6)] & (1L << x)) != 0;
+    }
+
+    @Override
+    boolean hasCellWords() {
+        return true;
+    }
+
+    @Override
+    long getCellRowWord(int y, int word) {
+        if (y < 0 || y >= height || word < 0 || word >= rowWords) return 0;
+        return rows[y * rowWords + word];
+    }
+
+    @Override
+    long getCellColumnWord(int x, int word) {
+        if (x < 0 || x >= width || word < 0 || word >= columnWords) return 0;
+        return columns[x * columnWords + word];
+    }
+
+    // Replaces 64 cells of a row at once, keeping the columns in sync. Bits
+    // for cells past the edge of the grid are ignored. The cells are not
+    // marked as changed, so this is only for grids nothing else depends on.
+    void setRowWord(int y, int word, long bits) {
+        int valid = width - (word << 6);
+        if (valid < 64) bits &= (1L << valid) - 1;
+
+        int idx = y * rowWords + word;
+        long changed = rows[idx] ^ bits;
+        rows[idx] = bits;
+        while (changed != 0) {
+            int x = (word << 6) + Long.numberOfTrailingZeros(changed);
+            columns[x * columnWords + (y >> 6)] ^= 1L << y;
+            changed &= changed - 1;
+        }
+    }
+
+    // Gets the cells in the layout used for saving and sending, where cell
+    // (x, y) is bit x + y * width
+    private BitSet toBitSet() {
+        BitSet bits = new BitSet(width * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (canCellPass(x, y)) bits.set(x + y * width);
+            }
+        }
+
+        // Padding at the end is set, so the last word is never left out
+        bits.set(width * height, ((width * height + 63) >> 6) << 6);
+        return bits;
     }
 
     @Override
@@ -52,7 +135,7 @@ public class BitfieldGrid extends Grid {
     public void writeToMessengerNoTypeId(MessageBuilder builder) {
         builder.addInt(width);
         builder.addInt(height);
-        long[] data = this.data.toLongArray();
+        long[] data = toBitSet().toLongArray();
         builder.addInt(data.length);
         for (long val : data) {
             builder.addLong(val);
@@ -60,7 +143,20 @@ public class BitfieldGrid extends Grid {
     }
 
     public void clear() {
-        data.set(0, data.size());
+        for (int y = 0; y < height; y++) {
+            fillWords(rows, y * rowWords, width);
+        }
+        for (int x = 0; x < width; x++) {
+            fillWords(columns, x * columnWords, height);
+        }
+        markChanged();
+    }
+
+    // Sets the first count bits of the words starting at offset
+    private static void fillWords(long[] words, int offset, int count) {
+        int full = count >> 6;
+        Arrays.fill(words, offset, offset + full, -1L);
+        if ((count & 63) != 0) words[offset + full] = (1L << count) - 1;
     }
 
     public static final class Serializer
@@ -80,7 +176,8 @@ public class BitfieldGrid extends Grid {
                 BitfieldGrid src, Type typeOfSrc, JsonSerializationContext context) {
             JsonObject obj = new JsonObject();
             obj.addProperty("type", GridType.BITFIELD.toString());
-            obj.addProperty("data", Base64.getUrlEncoder().encodeToString(src.data.toByteArray()));
+            obj.addProperty(
+                    "data", Base64.getUrlEncoder().encodeToString(src.toBitSet().toByteArray()));
             return obj;
         }
     }
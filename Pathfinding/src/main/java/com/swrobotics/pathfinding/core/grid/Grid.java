@@ -17,6 +17,8 @@ import com.swrobotics.pathfinding.field.Field;
 import com.swrobotics.pathfinding.task.PathfinderTask;
 
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 public abstract class Grid {
@@ -47,6 +49,11 @@ public abstract class Grid {
     private LineOfSightCache sightCache;
     private GridUnion parent;
     private UUID id;
+    private final List<GridChangeListener> changeListeners;
+
+    // Region changed during the current batch, empty if min > max
+    private int batchDepth;
+    private int batchMinX, batchMinY, batchMaxX, batchMaxY;
 
     // Sizes are in number of cells, points is one larger
     public Grid(int width, int height) {
@@ -54,6 +61,9 @@ public abstract class Grid {
         this.width = width;
         this.height = height;
         sightCache = null;
+        changeListeners = new ArrayList<>();
+        batchDepth = 0;
+        clearBatchRegion();
     }
 
     private static final double SQRT_2_MINUS_2 = Math.sqrt(2) - 2;
@@ -171,20 +181,118 @@ public abstract class Grid {
         int ox = (dx - 2) / 2;
         int oy = (dy - 2) / 2;
 
+        // Cells on both sides of the edge, or the one it crosses if diagonal
+        int minX, minY, maxX, maxY;
         if (dx != 0 && dy != 0) {
-            return canCellPass(p1.x + ox, p1.y + oy);
+            minX = maxX = p1.x + ox;
+            minY = maxY = p1.y + oy;
+        } else if (dx != 0) {
+            minX = maxX = dx > 0 ? p1.x : p1.x - 1;
+            minY = p1.y - 1;
+            maxY = p1.y;
+        } else if (dy != 0) {
+            minX = p1.x - 1;
+            maxX = p1.x;
+            minY = maxY = dy > 0 ? p1.y : p1.y - 1;
         } else {
-            if (dx > 0) return canCellPass(p1) && canCellPass(p1.x, p1.y - 1);
-            if (dx < 0) return canCellPass(p1.x - 1, p1.y) && canCellPass(p1.x - 1, p1.y - 1);
-            if (dy > 0) return canCellPass(p1) && canCellPass(p1.x - 1, p1.y);
-            if (dy < 0) return canCellPass(p1.x, p1.y - 1) && canCellPass(p1.x - 1, p1.y - 1);
-
             throw new IllegalStateException();
         }
+
+        if (hasCellWords()) {
+            // The cells are all in one column or row
+            if (minX == maxX) return spanPassable(true, minY, maxY, minX, minX);
+            return spanPassable(false, minX, maxX, minY, minY);
+        }
+        return canCellPass(minX, minY) && canCellPass(maxX, maxY);
+    }
+
+    /**
+     * Gets whether this grid can provide its cells as words of bits, through {@link
+     * #getCellRowWord} and {@link #getCellColumnWord}. If so, line of sight checks test whole runs
+     * of cells at once instead of checking each cell individually.
+     */
+    boolean hasCellWords() {
+        return false;
+    }
+
+    /**
+     * Gets 64 cells of a row as bits. Bit {@code i} is set if cell {@code (word * 64 + i, y)} is
+     * passable. Cells outside the grid are not passable.
+     */
+    long getCellRowWord(int y, int word) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Gets 64 cells of a column as bits. Bit {@code i} is set if cell {@code (x, word * 64 + i)} is
+     * passable. Cells outside the grid are not passable.
+     */
+    long getCellColumnWord(int x, int word) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Called whenever the passability of any cell may have changed. Invalidates the line of sight
+     * caches of this grid and every union containing it, since their cells depend on this one.
+     */
+    protected void markChanged() {
+        markChanged(0, 0, width - 1, height - 1);
+    }
+
+    /**
+     * Called whenever the passability of cells within a rectangle may have changed. The bounds are
+     * in cells and inclusive.
+     */
+    protected void markChanged(int minX, int minY, int maxX, int maxY) {
+        if (batchDepth > 0) {
+            batchMinX = Math.min(batchMinX, minX);
+            batchMinY = Math.min(batchMinY, minY);
+            batchMaxX = Math.max(batchMaxX, maxX);
+            batchMaxY = Math.max(batchMaxY, maxY);
+            return;
+        }
+
+        if (sightCache != null) sightCache.invalidate(minX, minY, maxX, maxY);
+        for (GridChangeListener listener : changeListeners) {
+            listener.onCellsChanged(minX, minY, maxX, maxY);
+        }
+        if (parent != null) parent.markChanged(minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Starts a batch of changes. Changes marked until the matching {@link #endChanges()} are
+     * combined into one region and reported once the batch ends, so caches and listeners are only
+     * updated once for many cells.
+     */
+    protected void beginChanges() {
+        batchDepth++;
+    }
+
+    protected void endChanges() {
+        if (--batchDepth > 0 || batchMinX > batchMaxX) return;
+
+        int minX = batchMinX, minY = batchMinY, maxX = batchMaxX, maxY = batchMaxY;
+        clearBatchRegion();
+        markChanged(minX, minY, maxX, maxY);
     }
 
-    protected void invalidateLineOfSightCache() {
-        if (sightCache != null) sightCache.invalidate();
+    private void clearBatchRegion() {
+        batchMinX = batchMinY = Integer.MAX_VALUE;
+        batchMaxX = batchMaxY = Integer.MIN_VALUE;
+    }
+
+    /**
+     * Adds a listener to be notified when cells in this grid change, including through changes to
+     * child grids.
+     *
+     * @param listener listener to add
+     */
+    public void addChangeListener(GridChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(GridChangeListener listener) {
+        changeListeners.remove(listener);
     }
 
     public boolean lineOfSight(Point a, Point b) {
@@ -195,6 +303,77 @@ public abstract class Grid {
     }
 
     boolean calcLineOfSight(Point s, Point sp) {
+        if (hasCellWords()) return wordLineOfSight(s, sp);
+        return cellLineOfSight(s, sp);
+    }
+
+    // Same as cellLineOfSight, but checks each row (or column if steep) that
+    // the line passes through as one span of cells
+    private boolean wordLineOfSight(Point s, Point sp) {
+        int dx = sp.x - s.x;
+        int dy = sp.y - s.y;
+        if (Math.abs(dx) >= Math.abs(dy)) return runsPassable(false, s.x, s.y, dx, dy);
+        return runsPassable(true, s.y, s.x, dy, dx);
+    }
+
+    // Checks the cells along a line moving du along its major axis u and dv
+    // along its minor axis v, where |du| >= |dv|. If transposed, u is Y
+    // instead of X. The cells checked match the ones cellLineOfSight checks
+    // for each step along u, grouped by which line of v they are in.
+    private boolean runsPassable(boolean transposed, int u0, int v0, int du, int dv) {
+        int su = du < 0 ? -1 : 1;
+        int sv = dv < 0 ? -1 : 1;
+        int n = Math.abs(du);
+        int m = Math.abs(dv);
+        int ou = (su - 1) / 2;
+        int ov = (sv - 1) / 2;
+        if (n == 0) return true;
+
+        // Step k (from 1 to n) checks the cell at u0 + (k - 1) * su + ou
+        if (m == 0) {
+            // Along an axis, the cell on either side of the line must be passable
+            int uMin = su > 0 ? u0 : u0 - n;
+            return spanPassable(transposed, uMin, uMin + n - 1, v0, v0 - 1);
+        }
+
+        for (int j = 0; j < m; j++) {
+            // Line j of v is checked from the first step after moving onto it,
+            // unless the line passes exactly through a corner there, up to
+            // and including the step that moves off of it
+            long kFrom = 1;
+            if (j > 0) {
+                kFrom = ((long) j * n + m - 1) / m;
+                if (kFrom * m == (long) j * n) kFrom++;
+            }
+            long kTo = ((long) (j + 1) * n + m - 1) / m;
+
+            int uA = u0 + (int) (kFrom - 1) * su + ou;
+            int uB = u0 + (int) (kTo - 1) * su + ou;
+            int v = v0 + j * sv + ov;
+            if (!spanPassable(transposed, Math.min(uA, uB), Math.max(uA, uB), v, v)) return false;
+        }
+        return true;
+    }
+
+    // Checks that for every u from uMin to uMax, the cell in line a or line b
+    // is passable. Lines are rows, or columns if transposed.
+    private boolean spanPassable(boolean transposed, int uMin, int uMax, int a, int b) {
+        int length = transposed ? height : width;
+        if (uMin < 0 || uMax >= length) return false;
+
+        for (int word = uMin >> 6; word <= uMax >> 6; word++) {
+            long mask = -1L;
+            if (word == uMin >> 6) mask &= -1L << uMin;
+            if (word == uMax >> 6) mask &= -1L >>> (63 - (uMax & 63));
+
+            long bits = transposed ? getCellColumnWord(a, word) : getCellRowWord(a, word);
+            if (b != a) bits |= transposed ? getCellColumnWord(b, word) : getCellRowWord(b, word);
+            if ((bits & mask) != mask) return false;
+        }
+        return true;
+    }
+
+    boolean cellLineOfSight(Point s, Point sp) {
         int x0 = s.x;
         int y0 = s.y;
         int x1 = sp.x;
@@ -0,0 +1,15 @@
+package com.swrobotics.pathfinding.core.grid;
+
+/** Notified when the passability of cells in a {@link Grid} may have changed. */
+public interface GridChangeListener {
+    /**
+     * Called when any cell within a rectangle may have changed. The bounds are in cells and
+     * inclusive.
+     *
+     * @param minX minimum X coordinate
+     * @param minY minimum Y coordinate
+     * @param maxX maximum X coordinate
+     * @param maxY maximum Y coordinate
+     */
+    void onCellsChanged(int minX, int minY, int maxX, int maxY);
+}
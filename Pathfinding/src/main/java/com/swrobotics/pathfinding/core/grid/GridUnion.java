@@ -15,23 +15,110 @@ import java.lang.reflect.Type;
 import java.util.HashSet;
 import java.util.Set;
 
+/**
+ * Combines several grids, where a cell is passable if it is passable in all of them. The combined
+ * cells are kept in a bitfield, so checking a cell does not have to check every child. When a
+ * child changes, only the changed region is recomposed, the next time the cells are needed.
+ */
 public final class GridUnion extends Grid {
     private final Set<Grid> children;
+    private final BitfieldGrid cells;
+
+    // Region that needs to be recomposed, empty if min > max
+    private int dirtyMinX, dirtyMinY, dirtyMaxX, dirtyMaxY;
 
     public GridUnion(int width, int height) {
         super(width, height);
         children = new HashSet<>();
+
+        // With no children, every cell is passable, which is how the
+        // bitfield starts out
+        cells = new BitfieldGrid(width, height);
+        clearDirtyRegion();
     }
 
-    // Cell is passable if all children's cells are passable
     @Override
     public boolean canCellPass(int x, int y) {
-        for (Grid grid : children) {
-            if (!grid.canCellPass(x, y)) {
-                return false;
+        recomposeDirtyRegion();
+        return cells.canCellPass(x, y);
+    }
+
+    @Override
+    boolean hasCellWords() {
+        return true;
+    }
+
+    @Override
+    long getCellRowWord(int y, int word) {
+        recomposeDirtyRegion();
+        return cells.getCellRowWord(y, word);
+    }
+
+    @Override
+    long getCellColumnWord(int x, int word) {
+        recomposeDirtyRegion();
+        return cells.getCellColumnWord(x, word);
+    }
+
+    @Override
+    protected void markChanged(int minX, int minY, int maxX, int maxY) {
+        dirtyMinX = Math.min(dirtyMinX, minX);
+        dirtyMinY = Math.min(dirtyMinY, minY);
+        dirtyMaxX = Math.max(dirtyMaxX, maxX);
+        dirtyMaxY = Math.max(dirtyMaxY, maxY);
+        super.markChanged(minX, minY, maxX, maxY);
+    }
+
+    private void clearDirtyRegion() {
+        dirtyMinX = dirtyMinY = Integer.MAX_VALUE;
+        dirtyMaxX = dirtyMaxY = Integer.MIN_VALUE;
+    }
+
+    private void recomposeDirtyRegion() {
+        // Reading a child can make it update its own cells and mark them
+        // changed again (i.e. a ShapeGrid regenerating), so keep going until
+        // nothing is left
+        while (dirtyMinX <= dirtyMaxX && dirtyMinY <= dirtyMaxY) {
+            int minX = Math.max(0, dirtyMinX), minY = Math.max(0, dirtyMinY);
+            int maxX = Math.min(width - 1, dirtyMaxX), maxY = Math.min(height - 1, dirtyMaxY);
+            clearDirtyRegion();
+            if (minX > maxX || minY > maxY) return;
+
+            // Whole words are recomposed, which also covers the cells in
+            // them that are outside the region
+            for (int y = minY; y <= maxY; y++) {
+                for (int word = minX >> 6; word <= maxX >> 6; word++) {
+                    long bits = -1L;
+                    for (Grid grid : children) {
+                        bits &= getRowWord(grid, y, word);
+                    }
+                    cells.setRowWord(y, word, bits);
+                }
             }
         }
-        return true;
+    }
+
+    private long getRowWord(Grid grid, int y, int word) {
+        if (grid.hasCellWords()) return grid.getCellRowWord(y, word);
+
+        int startX = word << 6;
+        int count = Math.min(64, width - startX);
+        long bits = 0;
+        for (int i = 0; i < count; i++) {
+            if (grid.canCellPass(startX + i, y)) bits |= 1L << i;
+        }
+        return bits;
+    }
+
+    /**
+     * Writes the combined cells in the same format as {@link
+     * BitfieldGrid#writeToMessengerNoTypeId}.
+     *
+     * @param builder builder to write to
+     */
+    public void writeCellsToMessenger(MessageBuilder builder) {
+        recomposeDirtyRegion();
+        cells.writeToMessengerNoTypeId(builder);
     }
 
     @Override
@@ -50,13 +137,13 @@ public final class GridUnion extends Grid {
         children.add(grid);
         grid.setParent(this);
 
-        invalidateLineOfSightCache();
+        markChanged();
     }
 
     public void removeGrid(Grid grid) {
         children.remove(grid);
         grid.setParent(null);
-        invalidateLineOfSightCache();
+        markChanged();
     }
 
     public Set<Grid> getChildren() {
@@ -1,41 +1,166 @@
 package com.swrobotics.pathfinding.core.grid;
 
-import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
-// Optimization: Caches line-of-sight checks between every combination of points
+/**
+ * Optimization: Caches line-of-sight checks between pairs of points.
+ *
+ * <p>Points are grouped into square tiles, and the results for segments from one tile to another
+ * are stored together in a block, which is only allocated once a segment between those tiles is
+ * checked. Each block is tagged with the cell tiles that its segments could cross, so a change to
+ * some cells only clears the blocks whose segments could pass through them.
+ */
 public final class LineOfSightCache {
+    private static final int TILE_SHIFT = 3;
+    private static final int TILE_SIZE = 1 << TILE_SHIFT;
+    private static final int TILE_MASK = TILE_SIZE - 1;
+    private static final int TILE_POINTS = TILE_SIZE * TILE_SIZE;
+    private static final int BLOCK_WORDS = TILE_POINTS * TILE_POINTS / 64;
+
+    private static final class Block {
+        final long[] present;
+        final long[] storage;
+        final long[] cellTiles; // Cell tiles its segments could cross
+
+        Block(int cellTileWords) {
+            present = new long[BLOCK_WORDS];
+            storage = new long[BLOCK_WORDS];
+            cellTiles = new long[cellTileWords];
+        }
+
+        boolean crossesAny(long[] tiles) {
+            for (int i = 0; i < tiles.length; i++) {
+                if ((cellTiles[i] & tiles[i]) != 0) return true;
+            }
+            return false;
+        }
+    }
+
     private final Grid grid;
-    private final int width;
-    private final int pointCount;
+    private final int pointTilesX, pointTileCount;
+    private final int cellTilesX, cellTilesY;
+    private final int cellTileWords;
 
-    private final BitSet present;
-    private final BitSet storage;
+    private final Block[] blocks; // Indexed by tile of first point * tile count + tile of second
+    private final List<Block> allocated;
+    private final long[] invalidTiles;
 
     public LineOfSightCache(Grid grid) {
         this.grid = grid;
-        this.width = grid.getCellWidth();
-        this.pointCount = width * grid.getCellHeight();
+        pointTilesX = (grid.getPointWidth() + TILE_MASK) >> TILE_SHIFT;
+        int pointTilesY = (grid.getPointHeight() + TILE_MASK) >> TILE_SHIFT;
+        pointTileCount = pointTilesX * pointTilesY;
 
-        int bitCount = pointCount * pointCount;
-        present = new BitSet(bitCount);
-        storage = new BitSet(bitCount);
-    }
+        cellTilesX = (grid.getCellWidth() + TILE_MASK) >> TILE_SHIFT;
+        cellTilesY = (grid.getCellHeight() + TILE_MASK) >> TILE_SHIFT;
+        cellTileWords = (cellTilesX * cellTilesY + 63) >> 6;
 
-    public void invalidate() {
-        present.clear();
+        blocks = new Block[pointTileCount * pointTileCount];
+        allocated = new ArrayList<>();
+        invalidTiles = new long[cellTileWords];
     }
 
-    private int index(int x1, int y1, int x2, int y2) {
-        return x1 + y1 * width + (x2 + y2 * width) * pointCount;
+    /**
+     * Clears the results of all segments that could cross any cell within a rectangle. The bounds
+     * are in cells and inclusive.
+     */
+    public void invalidate(int minX, int minY, int maxX, int maxY) {
+        minX = Math.max(0, minX) >> TILE_SHIFT;
+        minY = Math.max(0, minY) >> TILE_SHIFT;
+        maxX = Math.min(cellTilesX * TILE_SIZE - 1, maxX) >> TILE_SHIFT;
+        maxY = Math.min(cellTilesY * TILE_SIZE - 1, maxY) >> TILE_SHIFT;
+        if (minX > maxX || minY > maxY) return;
+
+        Arrays.fill(invalidTiles, 0);
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                int tile = x + y * cellTilesX;
+                invalidTiles[tile >> 6] |= 1L << tile;
+            }
+        }
+
+        for (Block block : allocated) {
+            if (block.crossesAny(invalidTiles)) Arrays.fill(block.present, 0);
+        }
     }
 
     public boolean lineOfSight(Point a, Point b) {
-        int idx = index(a.x, a.y, b.x, b.y);
-        if (present.get(idx)) return storage.get(idx);
+        int tileA = (a.x >> TILE_SHIFT) + (a.y >> TILE_SHIFT) * pointTilesX;
+        int tileB = (b.x >> TILE_SHIFT) + (b.y >> TILE_SHIFT) * pointTilesX;
+        int blockIdx = tileA * pointTileCount + tileB;
+        Block block = blocks[blockIdx];
+        if (block == null) {
+            block = new Block(cellTileWords);
+            tagCrossedTiles(block, tileA, tileB);
+            blocks[blockIdx] = block;
+            allocated.add(block);
+        }
+
+        int localA = (a.x & TILE_MASK) + ((a.y & TILE_MASK) << TILE_SHIFT);
+        int localB = (b.x & TILE_MASK) + ((b.y & TILE_MASK) << TILE_SHIFT);
+        int bit = localA * TILE_POINTS + localB;
+        int word = bit >> 6;
+        long mask = 1L << bit;
+
+        if ((block.present[word] & mask) != 0) return (block.storage[word] & mask) != 0;
 
         boolean out = grid.calcLineOfSight(a, b);
-        present.set(idx);
-        storage.set(idx, out);
+        block.present[word] |= mask;
+        if (out) block.storage[word] |= mask;
+        else block.storage[word] &= ~mask;
         return out;
     }
+
+    // Tags a block with every cell tile that a segment between its point
+    // tiles could touch. The segments are all within the convex hull of the
+    // two tiles' points, which is swept out by moving the first tile's box
+    // towards the second, so a cell tile is crossed if that moving box
+    // touches it at some point.
+    private void tagCrossedTiles(Block block, int tileA, int tileB) {
+        int ax = (tileA % pointTilesX) << TILE_SHIFT, ay = (tileA / pointTilesX) << TILE_SHIFT;
+        int bx = (tileB % pointTilesX) << TILE_SHIFT, by = (tileB / pointTilesX) << TILE_SHIFT;
+        int dx = bx - ax, dy = by - ay;
+
+        // Segments check the cells on both sides of the points they pass
+        // through, so the cells touched extend up to one cell further
+        // towards negative coordinates
+        double boxMinX = ax - 1, boxMaxX = ax + TILE_SIZE - 1;
+        double boxMinY = ay - 1, boxMaxY = ay + TILE_SIZE - 1;
+
+        for (int ty = 0; ty < cellTilesY; ty++) {
+            double[] rangeY = sweepRange(boxMinY, boxMaxY, dy, ty);
+            if (rangeY == null) continue;
+
+            for (int tx = 0; tx < cellTilesX; tx++) {
+                double[] rangeX = sweepRange(boxMinX, boxMaxX, dx, tx);
+                if (rangeX == null) continue;
+                if (Math.max(rangeX[0], rangeY[0]) > Math.min(rangeX[1], rangeY[1])) continue;
+
+                int tile = tx + ty * cellTilesX;
+                block.cellTiles[tile >> 6] |= 1L << tile;
+            }
+        }
+    }
+
+    // Finds the range of s in [0, 1] for which the interval [min, max] moved
+    // by s * d overlaps cell tile t along one axis, or null if there is none
+    private static double[] sweepRange(double min, double max, int d, int t) {
+        double tileMin = t << TILE_SHIFT;
+        double tileMax = tileMin + TILE_SIZE - 1;
+
+        // Need min + s * d <= tileMax and max + s * d >= tileMin
+        double lo = 0, hi = 1;
+        if (d == 0) {
+            if (min > tileMax || max < tileMin) return null;
+        } else if (d > 0) {
+            hi = Math.min(hi, (tileMax - min) / d);
+            lo = Math.max(lo, (tileMin - max) / d);
+        } else {
+            lo = Math.max(lo, (tileMax - min) / d);
+            hi = Math.min(hi, (tileMin - max) / d);
+        }
+        return lo <= hi ? new double[] {lo, hi} : null;
+    }
 }
@@ -36,19 +36,20 @@ public final class ShapeGrid extends BitfieldGrid {
         shapes.add(shape);
         shape.setParent(this);
         needsRegenerateBitfield = true;
-        invalidateLineOfSightCache();
+        markChanged();
     }
 
     public void removeShape(Shape shape) {
         shapes.remove(shape);
         shape.setParent(null);
         needsRegenerateBitfield = true;
-        invalidateLineOfSightCache();
+        markChanged();
     }
 
     private void regenerateBitfield() {
         needsRegenerateBitfield = false;
 
+        beginChanges();
         for (int y = 0; y < getCellHeight(); y++) {
             for (int x = 0; x < getCellWidth(); x++) {
                 double robotX = field.getCellCenterX(x);
@@ -64,6 +65,7 @@ public final class ShapeGrid extends BitfieldGrid {
                 set(x, y, canPass);
             }
         }
+        endChanges();
     }
 
     @Override
@@ -73,6 +75,20 @@ public final class ShapeGrid extends BitfieldGrid {
         return super.canCellPass(x, y);
     }
 
+    @Override
+    long getCellRowWord(int y, int word) {
+        if (needsRegenerateBitfield) regenerateBitfield();
+
+        return super.getCellRowWord(y, word);
+    }
+
+    @Override
+    long getCellColumnWord(int x, int word) {
+        if (needsRegenerateBitfield) regenerateBitfield();
+
+        return super.getCellColumnWord(x, word);
+    }
+
     @Override
     public void writeToMessenger(MessageBuilder builder) {
         builder.addByte(GridType.SHAPE.getTypeId());
@@ -49,8 +49,10 @@ public final class PathfinderConfigFile {
 
         public MessengerParams() {}
 
+        // The pathfinder runs on the same host as the server, so it can use
+        // shared memory if the server allows it
         public MessengerClient createClient() {
-            return new MessengerClient(host, port, name);
+            return new MessengerClient(host, port, name, false, true);
         }
     }
 
@@ -93,6 +93,13 @@ public final class PathfinderTask {
         msg.addHandler(MSG_GET_CELL_DATA, this::onGetCellData);
         msg.addHandler(MSG_GET_ROBOT_SHAPE, this::onGetRobotShape);
 
+        // These never change, so the server keeps them for new clients
+        // instead of each one requesting them
+        msg.addRetainedType(MSG_FIELD_INFO);
+        msg.addRetainedType(MSG_ROBOT_SHAPE);
+        sendFieldInfo();
+        sendRobotShape();
+
         pathfinder.setStart(new Point(0, 0));
         pathfinder.setGoal(new Point(0, 0));
 
@@ -260,6 +267,10 @@ public final class PathfinderTask {
     }
 
     private void onGetFieldInfo(String type, MessageReader reader) {
+        sendFieldInfo();
+    }
+
+    private void sendFieldInfo() {
         msg.prepare(MSG_FIELD_INFO)
                 .addDouble(field.getCellSize())
                 .addDouble(field.getWidth())
@@ -272,28 +283,22 @@ public final class PathfinderTask {
     }
 
     private void onGetGrids(String type, MessageReader reader) {
-        MessageBuilder builder = msg.prepare(MSG_GRIDS);
+        MessageBuilder builder = msg.prepareReply(MSG_GRIDS);
         grids.addToMessenger(builder);
         builder.send();
     }
 
     private void onGetCellData(String type, MessageReader reader) {
-        int width = grids.getCellWidth();
-        int height = grids.getCellHeight();
-        BitfieldGrid out = new BitfieldGrid(width, height);
-
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                out.set(x, y, grids.canCellPass(x, y));
-            }
-        }
-
-        MessageBuilder builder = msg.prepare(MSG_CELL_DATA);
-        out.writeToMessengerNoTypeId(builder);
+        MessageBuilder builder = msg.prepareReply(MSG_CELL_DATA);
+        grids.writeCellsToMessenger(builder);
         builder.send();
     }
 
     private void onGetRobotShape(String type, MessageReader reader) {
+        sendRobotShape();
+    }
+
+    private void sendRobotShape() {
         MessageBuilder builder = msg.prepare(MSG_ROBOT_SHAPE);
         robot.writeToMessenger(builder);
         builder.send();
@@ -0,0 +1,124 @@
+package com.swrobotics.pathfinding.core.finder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.swrobotics.pathfinding.core.grid.BitfieldGrid;
+import com.swrobotics.pathfinding.core.grid.Grid;
+import com.swrobotics.pathfinding.core.grid.Point;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+public final class GridPathfinderTest {
+    private static final int GRIDS = 20;
+    private static final int QUERIES = 50;
+    private static final double THETA_STAR_TOLERANCE = 0.05;
+
+    static BitfieldGrid randomGrid(Random random, int width, int height, double blocked) {
+        BitfieldGrid grid = new BitfieldGrid(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (random.nextDouble() < blocked) grid.set(x, y, false);
+            }
+        }
+        return grid;
+    }
+
+    private static BitfieldGrid randomGrid(Random random) {
+        return randomGrid(random, 10 + random.nextInt(60), 10 + random.nextInt(40), 0.3);
+    }
+
+    static Point randomPoint(Random random, Grid grid) {
+        return new Point(
+                random.nextInt(grid.getPointWidth()), random.nextInt(grid.getPointHeight()));
+    }
+
+    private static List<Point> findPath(Pathfinder<Point> finder, Point start, Point goal) {
+        finder.setStart(start);
+        finder.setGoal(goal);
+        return finder.findPath();
+    }
+
+    static double pathCost(List<Point> path) {
+        if (path == null) return Double.POSITIVE_INFINITY;
+
+        double cost = 0;
+        for (int i = 1; i < path.size(); i++) {
+            Point a = path.get(i - 1);
+            Point b = path.get(i);
+            double dx = b.x - a.x;
+            double dy = b.y - a.y;
+            cost += Math.sqrt(dx * dx + dy * dy);
+        }
+        return cost;
+    }
+
+    @Test
+    public void test_aStarCostsMatch() {
+        Random random = new Random(1);
+        for (int i = 0; i < GRIDS; i++) {
+            BitfieldGrid grid = randomGrid(random);
+            GridPathfinder finder = new GridPathfinder(grid, false);
+            AStarPathfinder<Point> reference = new AStarPathfinder<>(grid.asGraph());
+
+            for (int j = 0; j < QUERIES; j++) {
+                Point start = randomPoint(random, grid);
+                Point goal = randomPoint(random, grid);
+                String query = "grid " + i + ", " + start + " to " + goal;
+
+                double expected = pathCost(findPath(reference, start, goal));
+                assertEquals(query, expected, pathCost(findPath(finder, start, goal)), 0.0001);
+            }
+        }
+    }
+
+    // Theta* is not optimal, so breaking ties differently can give a path
+    // slightly longer or shorter than the reference finds. The paths must
+    // still be valid, and no longer than the shortest path between neighbors.
+    @Test
+    public void test_thetaStarCostsMatch() {
+        Random random = new Random(2);
+        for (int i = 0; i < GRIDS; i++) {
+            BitfieldGrid grid = randomGrid(random);
+            GridPathfinder finder = new GridPathfinder(grid, true);
+            GridPathfinder neighborFinder = new GridPathfinder(grid, false);
+            ThetaStarPathfinder<Point> reference = new ThetaStarPathfinder<>(grid.asGraph());
+
+            for (int j = 0; j < QUERIES; j++) {
+                Point start = randomPoint(random, grid);
+                Point goal = randomPoint(random, grid);
+                String query = "grid " + i + ", " + start + " to " + goal;
+
+                List<Point> path = findPath(finder, start, goal);
+                double expected = pathCost(findPath(reference, start, goal));
+                if (expected == Double.POSITIVE_INFINITY) {
+                    assertNull(query, path);
+                    continue;
+                }
+                assertNotNull(query, path);
+                assertEquals(query, start, path.get(0));
+                assertEquals(query, goal, path.get(path.size() - 1));
+                for (int k = 1; k < path.size(); k++)
+                    assertTrue(query, grid.lineOfSight(path.get(k - 1), path.get(k)));
+
+                double cost = pathCost(path);
+                assertEquals(query, expected, cost, expected * THETA_STAR_TOLERANCE);
+                assertTrue(query, cost <= pathCost(findPath(neighborFinder, start, goal)) + 0.0001);
+            }
+        }
+    }
+
+    @Test
+    public void test_outOfBounds() {
+        BitfieldGrid grid = new BitfieldGrid(4, 4);
+        GridPathfinder finder = new GridPathfinder(grid, false);
+        finder.setStart(new Point(0, 0));
+        finder.setGoal(new Point(5, 0));
+        assertNull(finder.findPath());
+    }
+}
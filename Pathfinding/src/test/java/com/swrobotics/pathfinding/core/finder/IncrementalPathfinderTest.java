@@ -0,0 +1,167 @@
+package com.swrobotics.pathfinding.core.finder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.swrobotics.pathfinding.core.geom.Circle;
+import com.swrobotics.pathfinding.core.geom.Shape;
+import com.swrobotics.pathfinding.core.grid.BitfieldGrid;
+import com.swrobotics.pathfinding.core.grid.GridUnion;
+import com.swrobotics.pathfinding.core.grid.Point;
+import com.swrobotics.pathfinding.core.grid.ShapeGrid;
+import com.swrobotics.pathfinding.field.Field;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public final class IncrementalPathfinderTest {
+    private static final int STEPS = 300;
+    private static final int NEW_GOAL_INTERVAL = 50;
+
+    private final Field field = new Field(0.1, 6, 4, 0.5, 0.5);
+    private final GridUnion union = new GridUnion(field.getCellsX(), field.getCellsY());
+    private final BitfieldGrid cells = new BitfieldGrid(field.getCellsX(), field.getCellsY());
+    private final Circle robot = new Circle(0, 0, 0.15, false);
+    private final ShapeGrid shapes =
+            new ShapeGrid(field.getCellsX(), field.getCellsY(), field, robot);
+    private final List<Shape> addedShapes = new ArrayList<>();
+
+    private Random random;
+    private IncrementalPathfinder finder;
+    private Point start, goal;
+
+    private void setUp(long seed) {
+        random = new Random(seed);
+        for (int y = 0; y < cells.getCellHeight(); y++) {
+            for (int x = 0; x < cells.getCellWidth(); x++) {
+                if (random.nextDouble() < 0.15) cells.set(x, y, false);
+            }
+        }
+        union.addGrid(cells);
+        union.addGrid(shapes);
+
+        finder = new IncrementalPathfinder(union);
+        start = GridPathfinderTest.randomPoint(random, union);
+        goal = GridPathfinderTest.randomPoint(random, union);
+        finder.setGoal(goal);
+    }
+
+    private void moveStart() {
+        int x = start.x + random.nextInt(5) - 2;
+        int y = start.y + random.nextInt(5) - 2;
+        start =
+                new Point(
+                        Math.max(0, Math.min(union.getPointWidth() - 1, x)),
+                        Math.max(0, Math.min(union.getPointHeight() - 1, y)));
+    }
+
+    // Blocks a rectangle of cells in the middle of the current path, so the
+    // path has to change, or clears one somewhere else so paths can shorten
+    private void setCells(List<Point> path) {
+        Point center;
+        boolean pass;
+        if (path != null && path.size() > 2 && random.nextBoolean()) {
+            center = path.get(1 + random.nextInt(path.size() - 2));
+            pass = false;
+        } else {
+            center = GridPathfinderTest.randomPoint(random, union);
+            pass = true;
+        }
+        int minX = Math.max(0, center.x - 1 - random.nextInt(2));
+        int minY = Math.max(0, center.y - 1 - random.nextInt(2));
+        int maxX = Math.min(cells.getCellWidth() - 1, center.x + random.nextInt(2));
+        int maxY = Math.min(cells.getCellHeight() - 1, center.y + random.nextInt(2));
+
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                cells.set(x, y, pass);
+            }
+        }
+    }
+
+    private void changeShapes() {
+        if (!addedShapes.isEmpty() && random.nextInt(3) == 0) {
+            shapes.removeShape(addedShapes.remove(random.nextInt(addedShapes.size())));
+            return;
+        }
+
+        Shape shape =
+                new Circle(
+                        random.nextDouble() * 6 - 3,
+                        random.nextDouble() * 4 - 2,
+                        0.1 + random.nextDouble() * 0.4,
+                        false);
+        shapes.addShape(shape);
+        addedShapes.add(shape);
+    }
+
+    // Checks that the incremental search found the same cost as searching
+    // the current grid from scratch
+    private List<Point> checkMatchesFreshSearch(int step) {
+        finder.setStart(start);
+        List<Point> path = finder.findPath();
+
+        GridPathfinder fresh = new GridPathfinder(union, false);
+        fresh.setStart(start);
+        fresh.setGoal(goal);
+        double expected = GridPathfinderTest.pathCost(fresh.findPath());
+
+        String query = "step " + step + ", " + start + " to " + goal;
+        if (expected == Double.POSITIVE_INFINITY) {
+            assertNull(query, path);
+            return null;
+        }
+        assertNotNull(query, path);
+        assertEquals(query, expected, finder.getSearchCost(), 0.0001);
+
+        // Smoothing can only shorten the path
+        assertEquals(query, start, path.get(0));
+        assertEquals(query, goal, path.get(path.size() - 1));
+        for (int i = 1; i < path.size(); i++)
+            assertTrue(query, union.lineOfSight(path.get(i - 1), path.get(i)));
+        assertTrue(query, GridPathfinderTest.pathCost(path) <= expected + 0.0001);
+        return path;
+    }
+
+    private void run(long seed, boolean moveStart, boolean setCells, boolean changeShapes) {
+        setUp(seed);
+        List<Point> path = checkMatchesFreshSearch(0);
+
+        for (int step = 1; step <= STEPS; step++) {
+            if (moveStart) moveStart();
+            if (setCells && random.nextBoolean()) setCells(path);
+            if (changeShapes && random.nextInt(4) == 0) changeShapes();
+
+            if (step % NEW_GOAL_INTERVAL == 0) {
+                goal = GridPathfinderTest.randomPoint(random, union);
+                finder.setGoal(goal);
+            }
+            path = checkMatchesFreshSearch(step);
+        }
+    }
+
+    @Test
+    public void test_startMoves() {
+        run(1, true, false, false);
+    }
+
+    @Test
+    public void test_cellsChange() {
+        run(2, false, true, false);
+    }
+
+    @Test
+    public void test_shapesChange() {
+        run(3, false, false, true);
+    }
+
+    @Test
+    public void test_everythingChanges() {
+        run(4, true, true, true);
+    }
+}
@@ -0,0 +1,160 @@
+package com.swrobotics.pathfinding.core.grid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/** Checks that line of sight through words of cells matches checking each cell. */
+public final class GridLineOfSightTest {
+    private static BitfieldGrid randomGrid(Random random, int width, int height, double blocked) {
+        BitfieldGrid grid = new BitfieldGrid(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (random.nextDouble() < blocked) grid.set(x, y, false);
+            }
+        }
+        return grid;
+    }
+
+    private static void assertMatches(Grid grid, Point a, Point b) {
+        assertEquals(a + " to " + b, grid.cellLineOfSight(a, b), grid.calcLineOfSight(a, b));
+    }
+
+    private static void assertMatches(Grid grid, int x0, int y0, int x1, int y1) {
+        assertMatches(grid, new Point(x0, y0), new Point(x1, y1));
+    }
+
+    @Test
+    public void test_allPairs() {
+        Random random = new Random(1);
+        for (double blocked : new double[] {0.05, 0.2, 0.5}) {
+            BitfieldGrid grid = randomGrid(random, 13, 9, blocked);
+            assertTrue(grid.hasCellWords());
+
+            for (int y0 = 0; y0 < grid.getPointHeight(); y0++) {
+                for (int x0 = 0; x0 < grid.getPointWidth(); x0++) {
+                    for (int y1 = 0; y1 < grid.getPointHeight(); y1++) {
+                        for (int x1 = 0; x1 < grid.getPointWidth(); x1++) {
+                            assertMatches(grid, x0, y0, x1, y1);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Runs along an axis cross word boundaries, and lines along the edges of
+    // the grid have cells outside of it on one side
+    @Test
+    public void test_axisAligned() {
+        Random random = new Random(2);
+        BitfieldGrid grid = randomGrid(random, 150, 140, 0.02);
+        int w = grid.getPointWidth();
+        int h = grid.getPointHeight();
+
+        for (int i = 0; i < 20000; i++) {
+            int y = random.nextInt(4) == 0 ? (random.nextBoolean() ? 0 : h - 1) : random.nextInt(h);
+            assertMatches(grid, random.nextInt(w), y, random.nextInt(w), y);
+
+            int x = random.nextInt(4) == 0 ? (random.nextBoolean() ? 0 : w - 1) : random.nextInt(w);
+            assertMatches(grid, x, random.nextInt(h), x, random.nextInt(h));
+        }
+    }
+
+    // Lines that pass exactly through the corners of cells only check the
+    // cells they pass through, not the ones touching the corner
+    @Test
+    public void test_exactCorners() {
+        Random random = new Random(3);
+        BitfieldGrid grid = randomGrid(random, 140, 90, 0.1);
+        int w = grid.getPointWidth();
+        int h = grid.getPointHeight();
+
+        for (int i = 0; i < 20000; i++) {
+            int stepX = random.nextInt(9) - 4;
+            int stepY = random.nextInt(9) - 4;
+            int steps = 1 + random.nextInt(40);
+            int x0 = random.nextInt(w);
+            int y0 = random.nextInt(h);
+            int x1 = x0 + stepX * steps;
+            int y1 = y0 + stepY * steps;
+            if (x1 < 0 || x1 >= w || y1 < 0 || y1 >= h) continue;
+
+            assertMatches(grid, x0, y0, x1, y1);
+        }
+    }
+
+    @Test
+    public void test_gridEdges() {
+        Random random = new Random(4);
+        BitfieldGrid grid = randomGrid(random, 70, 65, 0.1);
+        int w = grid.getPointWidth();
+        int h = grid.getPointHeight();
+
+        for (int i = 0; i < 20000; i++) {
+            Point[] ends = new Point[2];
+            for (int j = 0; j < 2; j++) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        ends[j] = new Point(0, random.nextInt(h));
+                        break;
+                    case 1:
+                        ends[j] = new Point(w - 1, random.nextInt(h));
+                        break;
+                    case 2:
+                        ends[j] = new Point(random.nextInt(w), 0);
+                        break;
+                    default:
+                        ends[j] = new Point(random.nextInt(w), h - 1);
+                        break;
+                }
+            }
+            assertMatches(grid, ends[0], ends[1]);
+        }
+    }
+
+    @Test
+    public void test_randomLines() {
+        Random random = new Random(5);
+        for (int i = 0; i < 10; i++) {
+            BitfieldGrid grid =
+                    randomGrid(
+                            random,
+                            1 + random.nextInt(200),
+                            1 + random.nextInt(200),
+                            random.nextDouble() * 0.1);
+            int w = grid.getPointWidth();
+            int h = grid.getPointHeight();
+
+            for (int j = 0; j < 5000; j++) {
+                assertMatches(
+                        grid,
+                        random.nextInt(w),
+                        random.nextInt(h),
+                        random.nextInt(w),
+                        random.nextInt(h));
+            }
+        }
+    }
+
+    @Test
+    public void test_union() {
+        Random random = new Random(6);
+        GridUnion union = new GridUnion(100, 80);
+        union.addGrid(randomGrid(random, 100, 80, 0.03));
+        union.addGrid(randomGrid(random, 100, 80, 0.03));
+        assertTrue(union.hasCellWords());
+
+        for (int i = 0; i < 20000; i++) {
+            assertMatches(
+                    union,
+                    random.nextInt(101),
+                    random.nextInt(81),
+                    random.nextInt(101),
+                    random.nextInt(81));
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.swrobotics.pathfinding.core.grid;
+
+import static org.junit.Assert.assertEquals;
+
+import com.swrobotics.messenger.client.MessageBuilder;
+import com.swrobotics.pathfinding.core.geom.Circle;
+import com.swrobotics.pathfinding.core.geom.Shape;
+import com.swrobotics.pathfinding.field.Field;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public final class GridUnionTest {
+    // More than one word wide, and not a multiple of 64
+    private static final int WIDTH = 150;
+    private static final int HEIGHT = 70;
+
+    // Grid without cell words, so the union has to read it cell by cell
+    private static final class CellGrid extends Grid {
+        private final boolean[] blocked;
+
+        CellGrid() {
+            super(WIDTH, HEIGHT);
+            blocked = new boolean[WIDTH * HEIGHT];
+        }
+
+        void set(int x, int y, boolean pass) {
+            blocked[x + y * WIDTH] = !pass;
+            markChanged(x, y, x, y);
+        }
+
+        @Override
+        public boolean canCellPass(int x, int y) {
+            if (x < 0 || y < 0 || x >= WIDTH || y >= HEIGHT) return false;
+            return !blocked[x + y * WIDTH];
+        }
+
+        @Override
+        public void writeToMessenger(MessageBuilder builder) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final Field field = new Field(0.1, WIDTH * 0.1, HEIGHT * 0.1, 0.5, 0.5);
+    private final Random random = new Random(1);
+
+    private final GridUnion union = new GridUnion(WIDTH, HEIGHT);
+    private final BitfieldGrid a = new BitfieldGrid(WIDTH, HEIGHT);
+    private final BitfieldGrid b = new BitfieldGrid(WIDTH, HEIGHT);
+    private final CellGrid c = new CellGrid();
+    private final ShapeGrid shapes =
+            new ShapeGrid(WIDTH, HEIGHT, field, new Circle(0, 0, 0.15, false));
+    private final GridUnion inner = new GridUnion(WIDTH, HEIGHT);
+    private final BitfieldGrid innerChild = new BitfieldGrid(WIDTH, HEIGHT);
+
+    private final List<Shape> addedShapes = new ArrayList<>();
+
+    public GridUnionTest() {
+        inner.addGrid(innerChild);
+    }
+
+    // Checks the union's cells, and the rows and columns of cells used for
+    // line of sight, against the children. The union is read first, so it
+    // is the one that makes a ShapeGrid regenerate.
+    private void assertComposed(String step) {
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean pass = union.canCellPass(x, y);
+                boolean row = (union.getCellRowWord(y, x >> 6) >>> x & 1) != 0;
+                boolean column = (union.getCellColumnWord(x, y >> 6) >>> y & 1) != 0;
+
+                boolean expected = true;
+                for (Grid child : union.getChildren()) {
+                    expected &= child.canCellPass(x, y);
+                }
+
+                String cell = step + ", cell (" + x + ", " + y + ")";
+                assertEquals(cell, expected, pass);
+                assertEquals(cell, expected, row);
+                assertEquals(cell, expected, column);
+            }
+        }
+    }
+
+    private void setRandomCells(int count) {
+        for (int i = 0; i < count; i++) {
+            int x = random.nextInt(WIDTH);
+            int y = random.nextInt(HEIGHT);
+            boolean pass = random.nextInt(3) != 0;
+            switch (random.nextInt(4)) {
+                case 0:
+                    a.set(x, y, pass);
+                    break;
+                case 1:
+                    b.set(x, y, pass);
+                    break;
+                case 2:
+                    c.set(x, y, pass);
+                    break;
+                default:
+                    innerChild.set(x, y, pass);
+                    break;
+            }
+        }
+    }
+
+    private void changeShapes() {
+        if (!addedShapes.isEmpty() && random.nextInt(3) == 0) {
+            shapes.removeShape(addedShapes.remove(random.nextInt(addedShapes.size())));
+            return;
+        }
+
+        Shape shape =
+                new Circle(
+                        (random.nextDouble() - 0.5) * WIDTH * 0.1,
+                        (random.nextDouble() - 0.5) * HEIGHT * 0.1,
+                        0.1 + random.nextDouble() * 0.5,
+                        false);
+        shapes.addShape(shape);
+        addedShapes.add(shape);
+    }
+
+    private void addAll() {
+        union.addGrid(a);
+        union.addGrid(b);
+        union.addGrid(c);
+        union.addGrid(shapes);
+        union.addGrid(inner);
+    }
+
+    @Test
+    public void test_empty() {
+        assertComposed("empty");
+    }
+
+    @Test
+    public void test_childEdits() {
+        addAll();
+        assertComposed("start");
+
+        for (int step = 1; step <= 50; step++) {
+            setRandomCells(1 + random.nextInt(40));
+            assertComposed("step " + step);
+        }
+    }
+
+    @Test
+    public void test_addRemoveGrids() {
+        Grid[] grids = {a, b, c, shapes, inner};
+        setRandomCells(2000);
+        shapes.addShape(new Circle(0, 0, 1, false));
+
+        for (int step = 1; step <= 50; step++) {
+            Grid grid = grids[random.nextInt(grids.length)];
+            if (union.getChildren().contains(grid)) union.removeGrid(grid);
+            else union.addGrid(grid);
+
+            // Changes to a removed grid must not affect the union
+            setRandomCells(random.nextInt(20));
+            assertComposed("step " + step);
+        }
+    }
+
+    @Test
+    public void test_shapeRegeneration() {
+        addAll();
+        setRandomCells(500);
+        assertComposed("start");
+
+        for (int step = 1; step <= 50; step++) {
+            changeShapes();
+            if (random.nextBoolean()) changeShapes();
+            assertComposed("step " + step);
+        }
+    }
+}
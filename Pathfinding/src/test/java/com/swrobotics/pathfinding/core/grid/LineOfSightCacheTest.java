@@ -0,0 +1,128 @@
+package com.swrobotics.pathfinding.core.grid;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public final class LineOfSightCacheTest {
+    private static final int PAIRS = 3000;
+    private static final int ROUNDS = 100;
+
+    private static Point[][] randomPairs(Random random, Grid grid) {
+        int w = grid.getPointWidth();
+        int h = grid.getPointHeight();
+
+        Point[][] pairs = new Point[PAIRS][];
+        for (int i = 0; i < PAIRS; i++) {
+            Point a = new Point(random.nextInt(w), random.nextInt(h));
+            Point b;
+            if (random.nextInt(3) == 0) {
+                b = new Point(random.nextInt(w), random.nextInt(h));
+            } else {
+                // Short segments, which land in the same or nearby tiles
+                b =
+                        new Point(
+                                Math.max(0, Math.min(w - 1, a.x + random.nextInt(21) - 10)),
+                                Math.max(0, Math.min(h - 1, a.y + random.nextInt(21) - 10)));
+            }
+            pairs[i] = new Point[] {a, b};
+        }
+        return pairs;
+    }
+
+    // Sets a random rectangle of cells, which may be only one cell
+    private static void setRandomRect(Random random, BitfieldGrid grid) {
+        int minX = random.nextInt(grid.getCellWidth());
+        int minY = random.nextInt(grid.getCellHeight());
+        int maxX = Math.min(grid.getCellWidth() - 1, minX + random.nextInt(4));
+        int maxY = Math.min(grid.getCellHeight() - 1, minY + random.nextInt(4));
+
+        boolean pass = random.nextInt(3) != 0;
+        for (int y = minY; y <= maxY; y++) {
+            for (int x = minX; x <= maxX; x++) {
+                grid.set(x, y, pass);
+            }
+        }
+    }
+
+    private static void assertCacheMatches(Grid grid, Point[][] pairs, int round) {
+        for (Point[] pair : pairs) {
+            assertEquals(
+                    "round " + round + ", " + pair[0] + " to " + pair[1],
+                    grid.calcLineOfSight(pair[0], pair[1]),
+                    grid.lineOfSight(pair[0], pair[1]));
+        }
+    }
+
+    @Test
+    public void test_cellChanges() {
+        Random random = new Random(1);
+
+        // Not a multiple of the tile size, so edge tiles are partial
+        BitfieldGrid grid = new BitfieldGrid(77, 45);
+        Point[][] pairs = randomPairs(random, grid);
+
+        assertCacheMatches(grid, pairs, 0);
+        for (int round = 1; round <= ROUNDS; round++) {
+            setRandomRect(random, grid);
+            assertCacheMatches(grid, pairs, round);
+        }
+    }
+
+    // A segment along the edge of a tile also checks the cells on the other
+    // side of the edge, which are in the previous tile
+    @Test
+    public void test_tileEdges() {
+        Random random = new Random(3);
+        BitfieldGrid grid = new BitfieldGrid(40, 40);
+        for (int i = 0; i < 40; i++) {
+            for (int j = 0; j < 40; j += 8) {
+                grid.set(j, i, false);
+                grid.set(i, j, false);
+            }
+        }
+
+        Point[][] pairs = new Point[PAIRS][];
+        for (int i = 0; i < PAIRS; i++) {
+            int edge = 8 + 8 * random.nextInt(4);
+            int from = random.nextInt(41);
+            int to = random.nextInt(41);
+            pairs[i] =
+                    random.nextBoolean()
+                            ? new Point[] {new Point(edge, from), new Point(edge, to)}
+                            : new Point[] {new Point(from, edge), new Point(to, edge)};
+        }
+
+        assertCacheMatches(grid, pairs, 0);
+        for (int round = 1; round <= ROUNDS; round++) {
+            int before = 7 + 8 * random.nextInt(4);
+            int along = random.nextInt(40);
+            boolean pass = random.nextBoolean();
+            if (random.nextBoolean()) grid.set(before, along, pass);
+            else grid.set(along, before, pass);
+            assertCacheMatches(grid, pairs, round);
+        }
+    }
+
+    @Test
+    public void test_childChanges() {
+        Random random = new Random(2);
+        BitfieldGrid a = new BitfieldGrid(77, 45);
+        BitfieldGrid b = new BitfieldGrid(77, 45);
+        GridUnion union = new GridUnion(77, 45);
+        union.addGrid(a);
+        union.addGrid(b);
+        Point[][] pairs = randomPairs(random, union);
+
+        // Child caches are filled too, so both have to be cleared
+        assertCacheMatches(union, pairs, 0);
+        assertCacheMatches(a, pairs, 0);
+        for (int round = 1; round <= ROUNDS; round++) {
+            setRandomRect(random, random.nextBoolean() ? a : b);
+            assertCacheMatches(union, pairs, round);
+            assertCacheMatches(a, pairs, round);
+        }
+    }
+}
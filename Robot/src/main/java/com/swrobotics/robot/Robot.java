@@ -2,9 +2,12 @@ package com.swrobotics.robot;
 
 import edu.wpi.first.wpilibj.TimedRobot;
 import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
 import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.CommandScheduler;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * The VM is configured to automatically run this class, and to call the functions corresponding to
  * each mode, as described in the TimedRobot documentation. If you change the name of this class or
@@ -12,6 +15,9 @@ import edu.wpi.first.wpilibj2.command.CommandScheduler;
  * project.
  */
 public class Robot extends TimedRobot {
+    // Maximum time per loop spent handling Messenger messages
+    private static final long MESSENGER_READ_BUDGET = TimeUnit.MILLISECONDS.toNanos(2);
+
     private Command autonomousCommand;
     private final Timer autonomousTimer = new Timer();
 
@@ -48,9 +54,11 @@ public class Robot extends TimedRobot {
         // Run all operations queued to run on main thread
         // ThreadUtils.runMainThreadOperations();
 
-        // Handle messages being sent by the raspberry pi
-        // FIXME: Re-enable once loop overrun is fixed
-        // robotContainer.getMessenger().readMessages();
+        // Handle messages being sent by the raspberry pi. They are received on
+        // a background thread, so this only runs the handlers, and anything
+        // left over when the budget runs out is handled next loop.
+        int deferred = robotContainer.messenger.readMessages(MESSENGER_READ_BUDGET);
+        SmartDashboard.putNumber("Messenger Deferred", deferred);
     }
 
     /** This function is called once each time the robot enters Disabled mode. */
@@ -57,6 +57,7 @@ public class RobotContainer {
     private static final String MESSENGER_HOST_SIM = "localhost";
     private static final int MESSENGER_PORT = 5805;
     private static final String MESSENGER_NAME = "Robot";
+    private static final long MESSENGER_STATS_INTERVAL = 1000; // Milliseconds
 
     // Create a way to choose between autonomous sequences
     private final SendableChooser<Supplier<Command>> autoSelector;
@@ -86,7 +87,16 @@ public class RobotContainer {
                 new MessengerClient(
                         RobotBase.isSimulation() ? MESSENGER_HOST_SIM : MESSENGER_HOST_ROBOT,
                         MESSENGER_PORT,
-                        MESSENGER_NAME);
+                        MESSENGER_NAME,
+                        true);
+
+        // Don't let a slow connection stall the main loop while sending
+        messenger.setAsyncSend(true);
+        messenger.setStatsInterval(MESSENGER_STATS_INTERVAL);
+
+        // Pathfinder position updates are lossy, so send them as datagrams if
+        // the server allows it
+        messenger.setDatagramEnabled(true);
 
         new FileSystemAPI(messenger, "RoboRIO", Filesystem.getOperatingDirectory());
         arm = new ArmSubsystem(messenger);
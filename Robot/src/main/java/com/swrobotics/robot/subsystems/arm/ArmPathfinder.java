@@ -32,7 +32,7 @@ public final class ArmPathfinder {
 
     public void setInfo(ArmPose current, ArmPose target) {
         goal = target;
-        msg.prepare(MSG_ARM_SET_INFO)
+        msg.preparePooled(MSG_ARM_SET_INFO)
                 .addDouble(current.bottomAngle)
                 .addDouble(current.topAngle)
                 .addDouble(target.bottomAngle)
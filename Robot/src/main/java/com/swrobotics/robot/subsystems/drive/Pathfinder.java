@@ -17,6 +17,11 @@ public final class Pathfinder extends SubsystemBase {
 
     private static final double CORRECT_TARGET_TOL = 0.1524 + 0.1;
 
+    // Each position or goal update makes the pathfinder replan, so limit how
+    // often the position is sent. It is sent over UDP, so a dropped packet on
+    // the field network can't hold up newer positions.
+    private static final double SET_POS_MAX_RATE = 20;
+
     private final MessengerClient msg;
     private final DrivetrainSubsystem drive;
 
@@ -29,13 +34,20 @@ public final class Pathfinder extends SubsystemBase {
         this.drive = drive;
         path = new ArrayList<>();
 
+        msg.addStateTopic(MSG_SET_POS, SET_POS_MAX_RATE);
+        msg.addLossyType(MSG_SET_POS);
+        msg.addStateTopic(MSG_SET_GOAL, 0);
+
+        // Repeated goals aren't sent, so have the server keep the current
+        // one for a pathfinder that restarts while the robot stays connected
+        msg.addRetainedType(MSG_SET_GOAL);
         msg.addHandler(MSG_PATH, this::onPath);
     }
 
     public void setGoal(double x, double y) {
         goalX = x;
         goalY = y;
-        msg.prepare(MSG_SET_GOAL).addDouble(x).addDouble(y).send();
+        msg.preparePooled(MSG_SET_GOAL).addDouble(x).addDouble(y).send();
     }
 
     private boolean pathTargetCorrect() {
@@ -64,7 +76,7 @@ public final class Pathfinder extends SubsystemBase {
     }
 
     private void setPosition(double x, double y) {
-        msg.prepare(MSG_SET_POS).addDouble(x).addDouble(y).send();
+        msg.preparePooled(MSG_SET_POS).addDouble(x).addDouble(y).send();
     }
 
     private void onPath(String type, MessageReader reader) {
@@ -44,8 +44,6 @@ public final class PathfindingLayer implements FieldLayer {
     private static final String MSG_REMOVE_SHAPE = "Pathfinder:RemoveShape";
 
     private static final String MSG_FIELD_INFO = "Pathfinder:FieldInfo";
-    private static final String MSG_GRIDS = "Pathfinder:Grids";
-    private static final String MSG_CELL_DATA = "Pathfinder:CellData";
     private static final String MSG_ROBOT_SHAPE = "Pathfinder:RobotShape";
 
     private final MessengerClient msg;
@@ -73,6 +71,7 @@ public final class PathfindingLayer implements FieldLayer {
     private double goalX, goalY;
 
     private FieldNode hoveredNode;
+    private boolean wasConnected;
 
     private PathFollowerTest follower = new PathFollowerTest();
 
@@ -86,8 +85,6 @@ public final class PathfindingLayer implements FieldLayer {
 
         msg.addHandler(MSG_PATH, this::onPath);
         msg.addHandler(MSG_FIELD_INFO, this::onFieldInfo);
-        msg.addHandler(MSG_GRIDS, this::onGrids);
-        msg.addHandler(MSG_CELL_DATA, this::onCellData);
         msg.addHandler(MSG_SET_POS, this::onSetPos);
         msg.addHandler(MSG_SET_GOAL, this::onSetGoal);
         msg.addHandler(MSG_ROBOT_SHAPE, this::onRobotShape);
@@ -138,14 +135,14 @@ public final class PathfindingLayer implements FieldLayer {
         fieldInfo = new FieldInfo(reader);
     }
 
-    private void onGrids(String type, MessageReader reader) {
+    private void onGrids(MessageReader reader) {
         grid = Grid.read(reader);
         idToGrid.clear();
         idToShape.clear();
         grid.register(this);
     }
 
-    private void onCellData(String type, MessageReader reader) {
+    private void onCellData(MessageReader reader) {
         cellData = new BitfieldGrid(null);
         cellData.readContent(reader);
         needsRefreshCellData = false;
@@ -172,13 +169,24 @@ public final class PathfindingLayer implements FieldLayer {
 
     @Override
     public void draw(PGraphics g) {
-        if (!msg.isConnected()) return;
+        if (!msg.isConnected()) {
+            wasConnected = false;
+            return;
+        }
+
+        // The server sends the field info and robot shape as soon as we
+        // listen, so they are only requested if that doesn't happen
+        if (!wasConnected) {
+            wasConnected = true;
+            reqFieldInfoCooldown.restart();
+            reqRobotShapeCooldown.restart();
+        }
 
         if (grid == null && reqGridsCooldown.request()) {
-            msg.send(MSG_GET_GRIDS);
+            msg.request(MSG_GET_GRIDS).thenAccept(this::onGrids);
         }
         if (needsRefreshCellData && reqCellDataCooldown.request()) {
-            msg.send(MSG_GET_CELL_DATA);
+            msg.request(MSG_GET_CELL_DATA).thenAccept(this::onCellData);
         }
         if (robotShape == null && reqRobotShapeCooldown.request()) {
             msg.send(MSG_GET_ROBOT_SHAPE);
@@ -0,0 +1,160 @@
+package com.swrobotics.shufflelog.tool.messenger;
+
+import com.swrobotics.messenger.client.MessageReader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/** Statistics snapshot decoded from a {@code Messenger:Stats} message. */
+public final class MessengerStats {
+    public static final class TypeStats {
+        private final String type;
+        private final double messagesPerSecond;
+        private final double bytesPerSecond;
+
+        public TypeStats(String type, double messagesPerSecond, double bytesPerSecond) {
+            this.type = type;
+            this.messagesPerSecond = messagesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public double getMessagesPerSecond() {
+            return messagesPerSecond;
+        }
+
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+    }
+
+    public static final class QueueStats {
+        private final String name;
+        private final long queued;
+        private final long dropped;
+
+        public QueueStats(String name, long queued, long dropped) {
+            this.name = name;
+            this.queued = queued;
+            this.dropped = dropped;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getQueued() {
+            return queued;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+    }
+
+    private static final double NANOS_PER_MS = 1_000_000.0;
+
+    private final String source;
+    private final List<TypeStats> types;
+    private final List<QueueStats> queues;
+    private final double messagesPerSecond;
+    private final double bytesPerSecond;
+    private final long latencyCount;
+    private final double latencyMean, latencyP50, latencyP90, latencyP99, latencyMax;
+
+    public MessengerStats(MessageReader reader) {
+        source = reader.readString();
+        double interval = reader.readDouble();
+
+        int typeCount = reader.readInt();
+        List<TypeStats> types = new ArrayList<>(typeCount);
+        double totalMessages = 0, totalBytes = 0;
+        for (int i = 0; i < typeCount; i++) {
+            String type = reader.readString();
+            long messages = reader.readLong();
+            long bytes = reader.readLong();
+            types.add(new TypeStats(type, messages / interval, bytes / interval));
+            totalMessages += messages;
+            totalBytes += bytes;
+        }
+        types.sort(Comparator.comparingDouble((t) -> -t.getMessagesPerSecond()));
+        this.types = Collections.unmodifiableList(types);
+        messagesPerSecond = totalMessages / interval;
+        bytesPerSecond = totalBytes / interval;
+
+        int queueCount = reader.readInt();
+        List<QueueStats> queues = new ArrayList<>(queueCount);
+        for (int i = 0; i < queueCount; i++) {
+            queues.add(new QueueStats(reader.readString(), reader.readLong(), reader.readLong()));
+        }
+        queues.sort(Comparator.comparing(QueueStats::getName, String.CASE_INSENSITIVE_ORDER));
+        this.queues = Collections.unmodifiableList(queues);
+
+        latencyCount = reader.readLong();
+        latencyMean = reader.readLong() / NANOS_PER_MS;
+        latencyP50 = reader.readLong() / NANOS_PER_MS;
+        latencyP90 = reader.readLong() / NANOS_PER_MS;
+        latencyP99 = reader.readLong() / NANOS_PER_MS;
+        latencyMax = reader.readLong() / NANOS_PER_MS;
+    }
+
+    /** @return name of the client that sent the statistics, or "Server" */
+    public String getSource() {
+        return source;
+    }
+
+    /** @return rates of each message type received, busiest first */
+    public List<TypeStats> getTypes() {
+        return types;
+    }
+
+    /**
+     * @return outgoing queue of each client for the server, or the send queue for a client. Server
+     *     queues are measured in messages, and client send queues in bytes.
+     */
+    public List<QueueStats> getQueues() {
+        return queues;
+    }
+
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getLatencyCount() {
+        return latencyCount;
+    }
+
+    /** @return mean latency in milliseconds */
+    public double getLatencyMean() {
+        return latencyMean;
+    }
+
+    /** @return median latency in milliseconds */
+    public double getLatencyP50() {
+        return latencyP50;
+    }
+
+    /** @return 90th percentile latency in milliseconds */
+    public double getLatencyP90() {
+        return latencyP90;
+    }
+
+    /** @return 99th percentile latency in milliseconds */
+    public double getLatencyP99() {
+        return latencyP99;
+    }
+
+    /** @return maximum latency in milliseconds */
+    public double getLatencyMax() {
+        return latencyMax;
+    }
+}
@@ -6,6 +6,8 @@ import com.swrobotics.shufflelog.ShuffleLog;
 import com.swrobotics.shufflelog.StreamUtil;
 import com.swrobotics.shufflelog.tool.Tool;
 import com.swrobotics.shufflelog.tool.ToolConstants;
+import com.swrobotics.shufflelog.tool.data.DoubleDataPlot;
+import com.swrobotics.shufflelog.tool.data.Graph;
 import com.swrobotics.shufflelog.util.Cooldown;
 import com.swrobotics.shufflelog.util.RollingBuffer;
 
@@ -16,6 +18,9 @@ import imgui.type.ImString;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.ToDoubleFunction;
 
 public final class MessengerTool implements Tool {
     private static final class QuickConnect {
@@ -36,6 +41,41 @@ public final class MessengerTool implements Tool {
     };
 
     private static final int LOG_HISTORY_SIZE = 128;
+    private static final double STATS_HISTORY_TIME = 30; // Seconds
+
+    /** Latest statistics from one server or client, and graphs of their history. */
+    private static final class StatsSource {
+        MessengerStats latest;
+        final Graph rateGraph;
+        final Graph latencyGraph;
+
+        StatsSource(MessengerStats first) {
+            latest = first;
+
+            String name = first.getSource();
+            rateGraph = new Graph(name + " throughput (messages/s)");
+            rateGraph.addPlot(plot("Messages/s", MessengerStats::getMessagesPerSecond));
+
+            latencyGraph = new Graph(name + " latency (ms)");
+            latencyGraph.addPlot(plot("p50", MessengerStats::getLatencyP50));
+            latencyGraph.addPlot(plot("p99", MessengerStats::getLatencyP99));
+            latencyGraph.addPlot(plot("Max", MessengerStats::getLatencyMax));
+        }
+
+        private DoubleDataPlot plot(String name, ToDoubleFunction<MessengerStats> getter) {
+            return new DoubleDataPlot(name, "", STATS_HISTORY_TIME) {
+                @Override
+                protected Double read() {
+                    return getter.applyAsDouble(latest);
+                }
+            };
+        }
+
+        void sample(double time) {
+            rateGraph.sample(time);
+            latencyGraph.sample(time);
+        }
+    }
 
     private final ShuffleLog shuffleLog;
     private final MessengerClient msg;
@@ -49,6 +89,8 @@ public final class MessengerTool implements Tool {
     private final List<String> clientNames;
     private final Cooldown clientsCooldown;
 
+    private final Map<String, StatsSource> statsSources;
+
     public MessengerTool(ShuffleLog log) {
         shuffleLog = log;
         host = new ImString(64);
@@ -61,6 +103,7 @@ public final class MessengerTool implements Tool {
         msg = new MessengerClient(host.get(), port.get(), name.get());
         msg.addHandler(MessengerClient.EVENT_TYPE, this::onEvent);
         msg.addHandler(MessengerClient.CLIENT_LIST_TYPE, this::onClients);
+        msg.addHandler(MessengerClient.STATS_TYPE, this::onStats);
         log.setMessenger(msg);
 
         eventLog = new RollingBuffer<>(LOG_HISTORY_SIZE);
@@ -68,6 +111,8 @@ public final class MessengerTool implements Tool {
 
         clientNames = new ArrayList<>();
         clientsCooldown = new Cooldown(ToolConstants.MSG_CONSTANT_QUERY_COOLDOWN_TIME);
+
+        statsSources = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
     }
 
     private void onEvent(String msgType, MessageReader reader) {
@@ -85,6 +130,13 @@ public final class MessengerTool implements Tool {
         clientNames.sort(String.CASE_INSENSITIVE_ORDER);
     }
 
+    private void onStats(String type, MessageReader reader) {
+        MessengerStats stats = new MessengerStats(reader);
+        StatsSource source = statsSources.get(stats.getSource());
+        if (source == null) statsSources.put(stats.getSource(), new StatsSource(stats));
+        else source.latest = stats;
+    }
+
     private void fancyLabel(String label) {
         ImGui.tableNextColumn();
         ImGui.text(label);
@@ -144,6 +196,85 @@ public final class MessengerTool implements Tool {
         ImGui.treePop();
     }
 
+    private void showStats() {
+        if (!ImGui.treeNodeEx("Statistics##stats")) return;
+
+        if (statsSources.isEmpty()) {
+            ImGui.text("No statistics received yet");
+        }
+
+        int tableFlags =
+                ImGuiTableFlags.BordersOuter
+                        | ImGuiTableFlags.BordersInnerV
+                        | ImGuiTableFlags.RowBg
+                        | ImGuiTableFlags.Resizable;
+
+        for (StatsSource source : statsSources.values()) {
+            MessengerStats stats = source.latest;
+            if (!ImGui.treeNodeEx(
+                    stats.getSource() + "##stats_" + stats.getSource(),
+                    ImGuiTreeNodeFlags.DefaultOpen)) continue;
+
+            ImGui.text(
+                    String.format(
+                            "%.1f messages/s, %.1f KB/s",
+                            stats.getMessagesPerSecond(), stats.getBytesPerSecond() / 1024));
+            ImGui.text(
+                    String.format(
+                            "Latency (%d messages): mean %.3f ms, p50 %.3f ms, p90 %.3f ms,"
+                                    + " p99 %.3f ms, max %.3f ms",
+                            stats.getLatencyCount(),
+                            stats.getLatencyMean(),
+                            stats.getLatencyP50(),
+                            stats.getLatencyP90(),
+                            stats.getLatencyP99(),
+                            stats.getLatencyMax()));
+
+            source.rateGraph.plot();
+            source.latencyGraph.plot();
+
+            if (ImGui.beginTable("stats_types_" + stats.getSource(), 3, tableFlags)) {
+                ImGui.tableSetupColumn("Type", ImGuiTableColumnFlags.WidthStretch, 3);
+                ImGui.tableSetupColumn("Messages/s", ImGuiTableColumnFlags.WidthStretch, 1);
+                ImGui.tableSetupColumn("KB/s", ImGuiTableColumnFlags.WidthStretch, 1);
+                ImGui.tableHeadersRow();
+
+                for (MessengerStats.TypeStats type : stats.getTypes()) {
+                    ImGui.tableNextColumn();
+                    ImGui.text(type.getType());
+                    ImGui.tableNextColumn();
+                    ImGui.text(String.format("%.1f", type.getMessagesPerSecond()));
+                    ImGui.tableNextColumn();
+                    ImGui.text(String.format("%.2f", type.getBytesPerSecond() / 1024));
+                }
+
+                ImGui.endTable();
+            }
+
+            if (ImGui.beginTable("stats_queues_" + stats.getSource(), 3, tableFlags)) {
+                ImGui.tableSetupColumn("Queue", ImGuiTableColumnFlags.WidthStretch, 3);
+                ImGui.tableSetupColumn("Queued", ImGuiTableColumnFlags.WidthStretch, 1);
+                ImGui.tableSetupColumn("Dropped", ImGuiTableColumnFlags.WidthStretch, 1);
+                ImGui.tableHeadersRow();
+
+                for (MessengerStats.QueueStats queue : stats.getQueues()) {
+                    ImGui.tableNextColumn();
+                    ImGui.text(queue.getName());
+                    ImGui.tableNextColumn();
+                    ImGui.text(String.valueOf(queue.getQueued()));
+                    ImGui.tableNextColumn();
+                    ImGui.text(String.valueOf(queue.getDropped()));
+                }
+
+                ImGui.endTable();
+            }
+
+            ImGui.treePop();
+        }
+
+        ImGui.treePop();
+    }
+
     private void showEventLog() {
         boolean connected = msg.isConnected();
         if (connected && !prevConnected) {
@@ -186,6 +317,9 @@ public final class MessengerTool implements Tool {
 
     @Override
     public void process() {
+        double time = shuffleLog.getTimestamp();
+        for (StatsSource source : statsSources.values()) source.sample(time);
+
         if (ImGui.begin("Messenger")) {
             ImGui.setWindowPos(50, 50, ImGuiCond.FirstUseEver);
             ImGui.setWindowSize(500, 450, ImGuiCond.FirstUseEver);
@@ -206,6 +340,8 @@ public final class MessengerTool implements Tool {
             ImGui.separator();
             showClients();
             ImGui.separator();
+            showStats();
+            ImGui.separator();
             showEventLog();
         }
         ImGui.end();
@@ -52,12 +52,10 @@ public final class RemoteFileView {
         remoteRoot = new RemoteDirectory("");
         mkdirName = new ImString(64);
 
-        msg.addHandler(name + MSG_FILES, this::onFiles);
         msg.addHandler(name + MSG_DELETE_CONFIRM, this::onDeleteConfirm);
         msg.addHandler(name + MSG_MKDIR_CONFIRM, this::onMkdirConfirm);
         msg.addHandler(name + MSG_WRITE_CONFIRM, this::onWriteConfirm);
         msg.addHandler(name + MSG_MOVE_CONFIRM, this::onMoveConfirm);
-        msg.addHandler(name + MSG_FILE_CONTENT, this::onFileContent);
     }
 
     private RemoteNode evalPath(String path) {
@@ -71,7 +69,7 @@ public final class RemoteFileView {
         return node;
     }
 
-    private void onFiles(String type, MessageReader reader) {
+    private void onFiles(MessageReader reader) {
         String path = reader.readString();
         boolean success = reader.readBoolean();
         if (!success) {
@@ -183,7 +181,7 @@ public final class RemoteFileView {
         createLocalFile(dstPath, srcNode instanceof RemoteDirectory);
     }
 
-    private void onFileContent(String type, MessageReader reader) {
+    private void onFileContent(MessageReader reader) {
         String filePath = reader.readString();
         boolean success = reader.readBoolean();
         if (!success) return;
@@ -334,7 +332,10 @@ public final class RemoteFileView {
                 ImGui.unindent(ImGui.getTreeNodeToLabelSpacing());
 
                 if (reqContentCooldown.request()) {
-                    msg.prepare(name + MSG_LIST_FILES).addString(dir.getFullPath()).send();
+                    msg.prepare(name + MSG_LIST_FILES)
+                            .addString(dir.getFullPath())
+                            .request()
+                            .thenAccept(this::onFiles);
                 }
             } else {
                 for (RemoteNode node : dir.getChildren()) {
@@ -355,7 +356,10 @@ public final class RemoteFileView {
                 ImGui.closeCurrentPopup();
             }
             if (ImGui.selectable("Edit")) {
-                msg.prepare(name + MSG_READ_FILE).addString(file.getFullPath()).send();
+                msg.prepare(name + MSG_READ_FILE)
+                        .addString(file.getFullPath())
+                        .request()
+                        .thenAccept(this::onFileContent);
             }
             ImGui.endPopup();
         }
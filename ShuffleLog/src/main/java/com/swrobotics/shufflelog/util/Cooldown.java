@@ -9,6 +9,11 @@ public final class Cooldown {
         lastRunTime = System.nanoTime() - minInterval; // Guarantee that the first time will succeed
     }
 
+    /** Makes the next request wait for a full interval from now. */
+    public void restart() {
+        lastRunTime = System.nanoTime();
+    }
+
     public boolean request() {
         long time = System.nanoTime();
         if (time - lastRunTime > minInterval) {
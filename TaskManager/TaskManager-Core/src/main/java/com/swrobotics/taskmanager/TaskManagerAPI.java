@@ -40,11 +40,16 @@ public final class TaskManagerAPI {
                         + config.getMessengerPort()
                         + " as "
                         + config.getMessengerName());
+
+        // Runs on the coprocessor alongside the server, so shared memory is
+        // used if the server allows it
         msg =
                 new MessengerClient(
                         config.getMessengerHost(),
                         config.getMessengerPort(),
-                        config.getMessengerName());
+                        config.getMessengerName(),
+                        false,
+                        true);
 
         String prefix = config.getMessengerName();
         new FileSystemAPI(msg, prefix, config.getTasksRoot());
@@ -91,7 +91,7 @@ public final class FileSystemAPI {
     }
 
     private void onListFiles(String type, MessageReader reader) {
-        MessageBuilder out = msg.prepare(msgFiles);
+        MessageBuilder out = msg.prepareReply(msgFiles);
 
         String dirPath = reader.readString();
         File dir = new File(rootDir, localizePath(dirPath));
@@ -118,7 +118,7 @@ public final class FileSystemAPI {
     }
 
     private void onReadFile(String type, MessageReader reader) {
-        MessageBuilder out = msg.prepare(msgFileContent);
+        MessageBuilder out = msg.prepareReply(msgFileContent);
 
         String path = reader.readString();
         File file = new File(rootDir, localizePath(path));